@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link LatinSmartDialMap} with {@link TableSmartDialMap} on the per-character work of
+ * the matcher: normalizing every character of every name and mapping it to a dialpad digit.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmartDialMapBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int contacts;
+
+    @Param({"latin", "table"})
+    public String map;
+
+    private SyntheticAddressBook mAddressBook;
+    private SmartDialMap mMap;
+
+    @Setup
+    public void setUp() {
+        mAddressBook = SyntheticAddressBook.generate(contacts);
+        final SmartDialMap latinMap = new LatinSmartDialMap();
+        mMap = "table".equals(map) ? new TableSmartDialMap(latinMap) : latinMap;
+    }
+
+    @Benchmark
+    public int mapNames() {
+        final SmartDialMap map = mMap;
+        int checksum = 0;
+        for (String name : mAddressBook.names) {
+            final int length = name.length();
+            for (int i = 0; i < length; i++) {
+                final char ch = map.normalizeCharacter(name.charAt(i));
+                if (map.isValidDialpadCharacter(ch)) {
+                    checksum += map.isValidDialpadAlphabeticChar(ch)
+                            ? map.getDialpadNumericCharacter(ch) : ch;
+                }
+            }
+        }
+        return checksum;
+    }
+
+    /** Every char, to include the characters outside of the Latin blocks. */
+    @Benchmark
+    public int mapAllCharacters() {
+        final SmartDialMap map = mMap;
+        int checksum = 0;
+        for (int i = 0; i <= Character.MAX_VALUE; i++) {
+            checksum += map.getDialpadIndex(map.normalizeCharacter((char) i));
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the matching done for every candidate of a smart dial lookup. One operation matches
+ * the query against every contact of the address book, like a lookup would if every contact was
+ * a candidate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmartDialNameMatcherBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int contacts;
+
+    /** A first keystroke, a short name prefix, an initials match and a number prefix. */
+    @Param({"5", "5646", "957", "650555"})
+    public String query;
+
+    private SyntheticAddressBook mAddressBook;
+    private SmartDialNameMatcher mMatcher;
+    /** Numbers of the address book as stored in the smartdial table. */
+    private String[] mNormalizedNumbers;
+    private int[] mCountryCodeOffsets;
+    private int[] mNanpCodeOffsets;
+
+    @Setup
+    public void setUp() {
+        mAddressBook = SyntheticAddressBook.generate(contacts);
+        mMatcher = new SmartDialNameMatcher(query, SmartDialPrefix.getMap());
+        final int count = mAddressBook.numbers.length;
+        mNormalizedNumbers = new String[count];
+        mCountryCodeOffsets = new int[count];
+        mNanpCodeOffsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            final String number = mAddressBook.numbers[i];
+            final SmartDialPrefix.PhoneNumberTokens tokens =
+                    SmartDialPrefix.parsePhoneNumber(number);
+            mNormalizedNumbers[i] = SmartDialNameMatcher.normalizeNumber(number,
+                    SmartDialPrefix.getMap());
+            mCountryCodeOffsets[i] = SmartDialPrefix.getNormalizedOffset(number,
+                    tokens.countryCodeOffset);
+            mNanpCodeOffsets[i] = SmartDialPrefix.getNormalizedOffset(number,
+                    tokens.nanpCodeOffset);
+        }
+    }
+
+    @Benchmark
+    public int matchesCombination() {
+        int matches = 0;
+        for (String name : mAddressBook.names) {
+            if (mMatcher.matchesCombination(name, query,
+                    new ArrayList<SmartDialMatchPosition>())) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int matchesInPlace() {
+        int matches = 0;
+        for (String name : mAddressBook.names) {
+            if (mMatcher.matchesInPlace(name)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int matchesNormalized() {
+        int matches = 0;
+        for (String normalizedName : mAddressBook.normalizedNames) {
+            if (mMatcher.matchesNormalized(normalizedName)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public void matchesNumber(Blackhole blackhole) {
+        for (String number : mAddressBook.numbers) {
+            blackhole.consume(mMatcher.matchesNumber(number, query));
+        }
+    }
+
+    @Benchmark
+    public int matchesNormalizedNumber() {
+        int matches = 0;
+        for (int i = 0; i < mNormalizedNumbers.length; i++) {
+            if (mMatcher.matchesNormalizedNumber(mNormalizedNumbers[i], query,
+                    mCountryCodeOffsets[i], mNanpCodeOffsets[i])) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
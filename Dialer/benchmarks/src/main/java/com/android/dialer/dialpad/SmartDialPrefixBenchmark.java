@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the prefix generation done for every contact when the smart dial database is built.
+ * One operation processes the whole address book.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmartDialPrefixBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int contacts;
+
+    private SyntheticAddressBook mAddressBook;
+
+    @Setup
+    public void setUp() {
+        mAddressBook = SyntheticAddressBook.generate(contacts);
+    }
+
+    @Benchmark
+    public void generateNamePrefixes(Blackhole blackhole) {
+        for (String name : mAddressBook.names) {
+            blackhole.consume(SmartDialPrefix.generateNamePrefixes(name));
+        }
+    }
+
+    @Benchmark
+    public void generateBoundedNamePrefixes(Blackhole blackhole) {
+        for (String name : mAddressBook.names) {
+            blackhole.consume(SmartDialPrefix.generateBoundedNamePrefixes(name,
+                    SmartDialPrefix.DEFAULT_MAX_NAME_PREFIX_BYTES));
+        }
+    }
+
+    @Benchmark
+    public void parseToNumberTokens(Blackhole blackhole) {
+        for (String number : mAddressBook.numbers) {
+            blackhole.consume(SmartDialPrefix.parseToNumberTokens(number));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import java.util.Random;
+
+/**
+ * Deterministic address book used by the benchmarks. Names have one to four tokens, mix plain
+ * and accented Latin names, and use the separators found in real address books. Phone numbers
+ * mix NANP, international and local formats.
+ */
+final class SyntheticAddressBook {
+
+    private static final String[] FIRST_NAMES = {
+        "James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda", "William",
+        "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas",
+        "Sarah", "Charles", "Karen", "José", "María", "François", "Zoë", "Søren", "Björn",
+        "Élodie", "Jürgen", "Íñigo", "Łukasz", "Chloé", "André", "Noël", "Małgorzata", "Dániel",
+        "Çağla", "Renée", "Ana-Lucía", "Jean-Luc", "Mary-Kate"
+    };
+
+    private static final String[] LAST_NAMES = {
+        "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis",
+        "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Taylor",
+        "Müller", "Schröder", "Núñez", "Peña", "Françoise", "Øvergaard", "Åberg", "Dvořák",
+        "Wójcik", "Kovačević", "Gómez", "O'Brien", "McDonald", "van der Berg", "de la Cruz",
+        "Smith-Jones", "Yılmaz", "Lefèvre", "Brontë"
+    };
+
+    private static final String[] SUFFIXES = {"Jr.", "Sr.", "III", "PhD", "(Work)", "- Home"};
+
+    private static final String[] NUMBER_FORMATS = {
+        "+1 650-555-%04d", "(650) 555-%04d", "1-408-555-%04d", "+44 20 7946 %04d",
+        "+49 30 1234%04d", "0049 89 5550%04d", "555-%04d", "+86 10 6552 %04d", "020 7946 %04d"
+    };
+
+    final String[] names;
+    final String[] numbers;
+    final String[] normalizedNames;
+
+    private SyntheticAddressBook(int size, long seed) {
+        final Random random = new Random(seed);
+        names = new String[size];
+        numbers = new String[size];
+        normalizedNames = new String[size];
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            builder.setLength(0);
+            builder.append(pick(random, FIRST_NAMES));
+            final int shape = random.nextInt(10);
+            if (shape >= 3) {
+                if (shape >= 7) {
+                    /** Middle name or initial. */
+                    builder.append(' ');
+                    if (random.nextBoolean()) {
+                        builder.append(pick(random, FIRST_NAMES));
+                    } else {
+                        builder.append((char) ('A' + random.nextInt(26))).append('.');
+                    }
+                }
+                builder.append(' ').append(pick(random, LAST_NAMES));
+            }
+            if (shape == 9) {
+                builder.append(' ').append(pick(random, SUFFIXES));
+            }
+            names[i] = builder.toString();
+            numbers[i] = String.format(pick(random, NUMBER_FORMATS), random.nextInt(10000));
+            normalizedNames[i] = SmartDialNameMatcher.normalizeName(names[i],
+                    SmartDialPrefix.getMap());
+        }
+    }
+
+    /**
+     * Returns the address book of the given size. The same size always gives the same contacts.
+     */
+    static SyntheticAddressBook generate(int size) {
+        return new SyntheticAddressBook(size, 0x5eed + size);
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
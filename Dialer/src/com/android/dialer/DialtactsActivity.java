@@ -442,6 +442,13 @@ public class DialtactsActivity extends TransactionSafeActivity implements View.O
 
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Keeps the smart dial database fresh while the dialer is shown
+        DatabaseHelperManager.getDatabaseHelper(getApplicationContext()).startSmartDialUpdater();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -486,6 +493,12 @@ public class DialtactsActivity extends TransactionSafeActivity implements View.O
         super.onPause();
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        DatabaseHelperManager.getDatabaseHelper(getApplicationContext()).stopSmartDialUpdater();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -1143,7 +1156,7 @@ public class DialtactsActivity extends TransactionSafeActivity implements View.O
     @Override
     public void onDialpadQueryChanged(String query) {
         final String normalizedQuery = SmartDialNameMatcher.normalizeNumber(query,
-                SmartDialNameMatcher.LATIN_SMART_DIAL_MAP);
+                SmartDialNameMatcher.LATIN_TABLE_SMART_DIAL_MAP);
         /*SPRD:modify to resolve Bug301674*/
         String formatQuery = "";
         if(!TextUtils.isEmpty(query) && query.startsWith("+",0)){
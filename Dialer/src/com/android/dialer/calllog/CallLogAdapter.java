@@ -57,8 +57,12 @@ import com.android.dialer.R;
 import com.android.dialer.util.AsyncTaskExecutor;
 import com.android.dialer.util.AsyncTaskExecutors;
 import com.android.dialer.util.ExpirableCache;
+import com.android.dialer.util.StripedExpirableCache;
+import com.android.dialerbind.DatabaseHelperManager;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.sprd.dialer.SprdUtils;
 import com.android.internal.telephony.CallerInfo;
 import com.android.internal.telephony.TelephonyIntents;
@@ -66,7 +70,10 @@ import android.provider.Contacts.Intents.Insert;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 /**
  * SPRD:
  * @{
@@ -87,37 +94,6 @@ public class CallLogAdapter extends GroupingListAdapter
         public void fetchCalls();
     }
 
-    /**
-     * Stores a phone number of a call with the country code where it originally occurred.
-     * <p>
-     * Note the country does not necessarily specifies the country of the phone number itself, but
-     * it is the country in which the user was in when the call was placed or received.
-     */
-    private static final class NumberWithCountryIso {
-        public final String number;
-        public final String countryIso;
-
-        public NumberWithCountryIso(String number, String countryIso) {
-            this.number = number;
-            this.countryIso = countryIso;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (o == null) return false;
-            if (!(o instanceof NumberWithCountryIso)) return false;
-            NumberWithCountryIso other = (NumberWithCountryIso) o;
-            return TextUtils.equals(number, other.number)
-                    && TextUtils.equals(countryIso, other.countryIso);
-        }
-
-        @Override
-        public int hashCode() {
-            return (number == null ? 0 : number.hashCode())
-                    ^ (countryIso == null ? 0 : countryIso.hashCode());
-        }
-    }
-
     /** The time in millis to delay starting the thread processing requests. */
     private static final int START_PROCESSING_REQUESTS_DELAY_MILLIS = 1000;
 
@@ -141,7 +117,7 @@ public class CallLogAdapter extends GroupingListAdapter
      * <p>
      * The key is number with the country in which the call was placed or received.
      */
-    private ExpirableCache<NumberWithCountryIso, ContactInfo> mContactInfoCache;
+    private StripedExpirableCache<NumberWithCountryIso, ContactInfo> mContactInfoCache;
 
     /**
      * A request for contact details for the given number.
@@ -187,21 +163,58 @@ public class CallLogAdapter extends GroupingListAdapter
     }
 
     /**
-     * List of requests to update contact details.
+     * Queue of requests to update contact details.
      * <p>
      * Each request is made of a phone number to look up, and the contact info currently stored in
      * the call log for this number.
      * <p>
-     * The requests are added when displaying the contacts and are processed by a background
-     * thread.
+     * The requests are added when displaying the contacts and are processed by background
+     * threads, requests for the rows on screen first.
      */
-    private final LinkedList<ContactInfoRequest> mRequests;
+    private final ContactInfoRequestQueue<ContactInfoRequest> mRequests;
 
     private boolean mLoading = true;
     private static final int REDRAW = 1;
     private static final int START_THREAD = 2;
+    private static final int END_CACHE_WRITE = 3;
 
-    private QueryThread mCallerIdThread;
+    /**
+     * How long after writing to the call log its change notifications are still attributed to the
+     * write. They are delivered asynchronously, after the write has completed.
+     */
+    private static final int CACHE_WRITE_NOTIFICATION_DELAY_MILLIS = 500;
+
+    /**
+     * Number of threads looking up contacts. Lookups mostly wait for the contacts provider, so a
+     * few of them can run side by side.
+     */
+    private static final int QUERY_THREAD_COUNT = 2;
+
+    /**
+     * Maximum number of requests looked up together, enough to fill the screen when the call
+     * log is first displayed.
+     */
+    private static final int QUERY_BATCH_SIZE = 32;
+
+    /** Threads processing the requests, or null if they have not been started. */
+    private QueryThread[] mCallerIdThreads;
+
+    /**
+     * Contact info looked up by previous processes, used before querying the contacts provider.
+     */
+    private final CallerIdCache mCallerIdCache;
+
+    /** Buffers the updates of the contact info cached in the call log. */
+    private final CallLogCacheWriter mCallLogCacheWriter;
+
+    /**
+     * Number of writes to the call log cache whose change notifications may still be pending.
+     * While it is not zero, changes to the content do not requery it right away.
+     */
+    private final AtomicInteger mCacheWritesInProgress = new AtomicInteger();
+
+    /** Whether the content changed while writing to the call log cache. UI thread only. */
+    private boolean mContentChangedDuringCacheWrite;
 
     /** Instance of helper class for managing views. */
     private final CallLogListItemHelper mCallLogViewsHelper;
@@ -641,7 +654,7 @@ public class CallLogAdapter extends GroupingListAdapter
 
         // Only schedule a thread-creation message if the thread hasn't been
         // created yet. This is purely an optimization, to queue fewer messages.
-        if (mCallerIdThread == null) {
+        if (mCallerIdThreads == null) {
             mHandler.sendEmptyMessageDelayed(START_THREAD, START_PROCESSING_REQUESTS_DELAY_MILLIS);
         }
 
@@ -658,6 +671,14 @@ public class CallLogAdapter extends GroupingListAdapter
                 case START_THREAD:
                     startRequestProcessing();
                     break;
+                case END_CACHE_WRITE:
+                    if (mCacheWritesInProgress.decrementAndGet() == 0
+                            && mContentChangedDuringCacheWrite) {
+                        // Requery once for all the changes notified during the writes.
+                        mContentChangedDuringCacheWrite = false;
+                        mCallFetcher.fetchCalls();
+                    }
+                    break;
             }
         }
     };
@@ -673,8 +694,8 @@ public class CallLogAdapter extends GroupingListAdapter
         mUseCallAsPrimaryAction = useCallAsPrimaryAction;
         mIsCallLog = isCallLog;
 
-        mContactInfoCache = ExpirableCache.create(CONTACT_INFO_CACHE_SIZE);
-        mRequests = new LinkedList<ContactInfoRequest>();
+        mContactInfoCache = StripedExpirableCache.create(CONTACT_INFO_CACHE_SIZE);
+        mRequests = new ContactInfoRequestQueue<ContactInfoRequest>();
 
         Resources resources = mContext.getResources();
         CallTypeHelper callTypeHelper = new CallTypeHelper(resources);
@@ -691,13 +712,22 @@ public class CallLogAdapter extends GroupingListAdapter
         mAsyncTaskExecutor = AsyncTaskExecutors.createThreadPoolExecutor();
 
         mResolver = mContext.getApplicationContext().getContentResolver();
+        mCallLogCacheWriter = new CallLogCacheWriter(mResolver);
+        mCallerIdCache = new CallerIdCache(DatabaseHelperManager.getDatabaseHelper(mContext));
     }
 
     /**
      * Requery on background thread when {@link Cursor} changes.
+     * <p>
+     * Changes notified while writing to the call log cache are mostly caused by the write itself,
+     * so they are coalesced into a single requery once the write is over.
      */
     @Override
     protected void onContentChanged() {
+        if (mCacheWritesInProgress.get() > 0) {
+            mContentChangedDuringCacheWrite = true;
+            return;
+        }
         mCallFetcher.fetchCalls();
     }
 
@@ -716,33 +746,38 @@ public class CallLogAdapter extends GroupingListAdapter
     }
 
     /**
-     * Starts a background thread to process contact-lookup requests, unless one
-     * has already been started.
+     * Starts the background threads that process contact-lookup requests, unless they
+     * have already been started.
      */
     private synchronized void startRequestProcessing() {
         // For unit-testing.
         if (mRequestProcessingDisabled) return;
 
-        // Idempotence... if a thread is already started, don't start another.
-        if (mCallerIdThread != null) return;
+        // Idempotence... if the threads are already started, don't start others.
+        if (mCallerIdThreads != null) return;
 
-        mCallerIdThread = new QueryThread();
-        mCallerIdThread.setPriority(Thread.MIN_PRIORITY);
-        mCallerIdThread.start();
+        mCallerIdThreads = new QueryThread[QUERY_THREAD_COUNT];
+        for (int i = 0; i < QUERY_THREAD_COUNT; i++) {
+            mCallerIdThreads[i] = new QueryThread(i);
+            mCallerIdThreads[i].setPriority(Thread.MIN_PRIORITY);
+            mCallerIdThreads[i].start();
+        }
     }
 
     /**
-     * Stops the background thread that processes updates and cancels any
-     * pending requests to start it.
+     * Stops the background threads that process updates and cancels any
+     * pending requests to start them.
      */
     public synchronized void stopRequestProcessing() {
-        // Remove any pending requests to start the processing thread.
+        // Remove any pending requests to start the processing threads.
         mHandler.removeMessages(START_THREAD);
-        if (mCallerIdThread != null) {
-            // Stop the thread; we are finished with it.
-            mCallerIdThread.stopProcessing();
-            mCallerIdThread.interrupt();
-            mCallerIdThread = null;
+        if (mCallerIdThreads != null) {
+            // Stop the threads; we are finished with them.
+            for (QueryThread thread : mCallerIdThreads) {
+                thread.stopProcessing();
+                thread.interrupt();
+            }
+            mCallerIdThreads = null;
         }
     }
 
@@ -769,36 +804,69 @@ public class CallLogAdapter extends GroupingListAdapter
      * <p>
      * It also provides the current contact info stored in the call log for this number.
      * <p>
-     * If the {@code immediate} parameter is true, it will start immediately the thread that looks
-     * up the contact information (if it has not been already started). Otherwise, it will be
-     * started with a delay. See {@link #START_PROCESSING_REQUESTS_DELAY_MILLIS}.
+     * If the {@code immediate} parameter is true, the request is processed before the ones that
+     * are not, and it will start immediately the threads that look up the contact information
+     * (if they have not been already started). Otherwise, they will be started with a delay. See
+     * {@link #START_PROCESSING_REQUESTS_DELAY_MILLIS}.
      */
     protected void enqueueRequest(String number, String countryIso, ContactInfo callLogInfo,
             boolean immediate) {
         ContactInfoRequest request = new ContactInfoRequest(number, countryIso, callLogInfo);
-        synchronized (mRequests) {
-            if (!mRequests.contains(request)) {
-                mRequests.add(request);
-                mRequests.notifyAll();
-            }
-        }
+        mRequests.add(request, immediate);
         if (immediate) startRequestProcessing();
     }
 
     /**
-     * Queries the appropriate content provider for the contact associated with the number.
+     * Queries the appropriate content provider for the contacts associated with the numbers of
+     * the given requests, all at once. Numbers whose contact info was stored by
+     * {@link CallerIdCache} since contacts last changed are not queried again.
      * <p>
-     * Upon completion it also updates the cache in the call log, if it is different from
-     * {@code callLogInfo}.
+     * Upon completion it also updates the cache in the call log of each request, if it is
+     * different from its {@code callLogInfo}.
      * <p>
-     * The number might be either a SIP address or a phone number.
+     * The numbers might be either SIP addresses or phone numbers.
      * <p>
      * It returns true if it updated the content of the cache and we should therefore tell the
      * view to update its content.
      */
-    private boolean queryContactInfo(String number, String countryIso, ContactInfo callLogInfo) {
-        final ContactInfo info = mContactInfoHelper.lookupNumber(number, countryIso);
+    private boolean queryContactInfo(ArrayList<ContactInfoRequest> requests) {
+        final Set<NumberWithCountryIso> numbers = Sets.newLinkedHashSet();
+        for (ContactInfoRequest request : requests) {
+            numbers.add(new NumberWithCountryIso(request.number, request.countryIso));
+        }
+        // Read before the lookup, so that contacts changing meanwhile invalidate its results.
+        final long generation = mCallerIdCache.getGeneration();
+        final Map<NumberWithCountryIso, ContactInfo> infos =
+                mCallerIdCache.getAll(numbers, generation);
+        numbers.removeAll(infos.keySet());
+        if (!numbers.isEmpty()) {
+            final Map<NumberWithCountryIso, ContactInfo> lookedUpInfos =
+                    mContactInfoHelper.lookupNumbers(numbers);
+            mCallerIdCache.putAll(lookedUpInfos, generation);
+            infos.putAll(lookedUpInfos);
+        }
 
+        boolean updated = false;
+        for (ContactInfoRequest request : requests) {
+            final NumberWithCountryIso numberCountryIso =
+                    new NumberWithCountryIso(request.number, request.countryIso);
+            updated |= updateContactInfo(numberCountryIso, infos.get(numberCountryIso),
+                    request.callLogInfo);
+        }
+        return updated;
+    }
+
+    /**
+     * Stores the result of the lookup of a number in the cache, and updates the cache in the
+     * call log if it is different from {@code callLogInfo}.
+     * <p>
+     * It returns true if it updated the content of the cache and we should therefore tell the
+     * view to update its content.
+     *
+     * @param info the contact info found for the number, or null if the lookup failed
+     */
+    private boolean updateContactInfo(NumberWithCountryIso numberCountryIso, ContactInfo info,
+            ContactInfo callLogInfo) {
         if (info == null) {
             // The lookup failed, just return without requesting to update the view.
             return false;
@@ -806,7 +874,6 @@ public class CallLogAdapter extends GroupingListAdapter
 
         // Check the existing entry in the cache: only if it has changed we should update the
         // view.
-        NumberWithCountryIso numberCountryIso = new NumberWithCountryIso(number, countryIso);
         ContactInfo existingInfo = mContactInfoCache.getPossiblyExpired(numberCountryIso);
 
         final boolean isRemoteSource = info.sourceType != 0;
@@ -825,7 +892,8 @@ public class CallLogAdapter extends GroupingListAdapter
         mContactInfoCache.put(numberCountryIso, info);
         // Update the call log even if the cache it is up-to-date: it is possible that the cache
         // contains the value from a different call log entry.
-        updateCallLogContactInfoCache(number, countryIso, info, callLogInfo);
+        updateCallLogContactInfoCache(numberCountryIso.number, numberCountryIso.countryIso, info,
+                callLogInfo);
         return updated;
     }
 
@@ -835,8 +903,8 @@ public class CallLogAdapter extends GroupingListAdapter
     private class QueryThread extends Thread {
         private volatile boolean mDone = false;
 
-        public QueryThread() {
-            super("CallLogAdapter.QueryThread");
+        public QueryThread(int index) {
+            super("CallLogAdapter.QueryThread-" + index);
         }
 
         public void stopProcessing() {
@@ -845,46 +913,53 @@ public class CallLogAdapter extends GroupingListAdapter
 
         @Override
         public void run() {
+            final ArrayList<ContactInfoRequest> requests =
+                    Lists.newArrayListWithCapacity(QUERY_BATCH_SIZE);
             boolean needRedraw = false;
             while (true) {
-                // Check if thread is finished, and if so return immediately.
-                if (mDone) return;
+                // Check if thread is finished, and if so return immediately,
+                // after writing what is left to the call log.
+                if (mDone) {
+                    flushCallLogCache();
+                    return;
+                }
 
-                // Obtain next request, if any is available.
-                // Keep synchronized section small.
-                ContactInfoRequest req = null;
-                synchronized (mRequests) {
-                    if (!mRequests.isEmpty()) {
-                        req = mRequests.removeFirst();
+                // Write to the call log and throttle redraw rate by only doing it
+                // when there are no more requests.
+                if (mRequests.isEmpty()) {
+                    flushCallLogCache();
+                }
+                if (needRedraw && mRequests.isEmpty()) {
+                    needRedraw = false;
+                    // The other threads may have just asked for the same redraw.
+                    if (!mHandler.hasMessages(REDRAW)) {
+                        mHandler.sendEmptyMessage(REDRAW);
                     }
                 }
 
+                // Obtain next request, waiting until another request is available,
+                // or until this thread is no longer needed (as indicated by being
+                // interrupted).
+                ContactInfoRequest req = null;
+                try {
+                    req = mRequests.take(1000);
+                } catch (InterruptedException ie) {
+                    // Ignore, and attempt to continue processing requests.
+                }
+
                 if (req != null) {
-                    // Process the request. If the lookup succeeds, schedule a
+                    // Look up the other pending requests along with it.
+                    requests.add(req);
+                    mRequests.drainTo(requests, QUERY_BATCH_SIZE - 1);
+
+                    // Process the requests. If the lookup succeeds, schedule a
                     // redraw.
                     try {
-                        needRedraw |= queryContactInfo(req.number, req.countryIso, req.callLogInfo);
+                        needRedraw |= queryContactInfo(requests);
                     }catch (SQLiteFullException e) {
                         e.printStackTrace();
                     }
-                } else {
-                    // Throttle redraw rate by only sending them when there are
-                    // more requests.
-                    if (needRedraw) {
-                        needRedraw = false;
-                        mHandler.sendEmptyMessage(REDRAW);
-                    }
-
-                    // Wait until another request is available, or until this
-                    // thread is no longer needed (as indicated by being
-                    // interrupted).
-                    try {
-                        synchronized (mRequests) {
-                            mRequests.wait(1000);
-                        }
-                    } catch (InterruptedException ie) {
-                        // Ignore, and attempt to continue processing requests.
-                    }
+                    requests.clear();
                 }
             }
         }
@@ -1291,17 +1366,33 @@ public class CallLogAdapter extends GroupingListAdapter
 
         if (!needsUpdate) return;
 
-        if (countryIso == null) {
-            mResolver.update(Calls.CONTENT_URI_WITH_VOICEMAIL, values,
-                    Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
-                    new String[]{ number });
-        } else {
-            mResolver.update(Calls.CONTENT_URI_WITH_VOICEMAIL, values,
-                    Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
-                    new String[]{ number, countryIso });
+        // The update is written along with others, once the pending requests are processed.
+        if (mCallLogCacheWriter.update(new NumberWithCountryIso(number, countryIso), values)) {
+            flushCallLogCache();
+        }
+    }
+
+    /**
+     * Writes the buffered updates of the contact info cached in the call log. Must not be
+     * called on the UI thread.
+     */
+    private void flushCallLogCache() {
+        if (mCallLogCacheWriter.getPendingCount() == 0) return;
+
+        mCacheWritesInProgress.incrementAndGet();
+        try {
+            mCallLogCacheWriter.flush();
+        } finally {
+            mHandler.sendEmptyMessageDelayed(END_CACHE_WRITE,
+                    CACHE_WRITE_NOTIFICATION_DELAY_MILLIS);
         }
     }
 
+    /** Returns the writer of the call log cache, which keeps metrics about its writes. */
+    CallLogCacheWriter getCallLogCacheWriter() {
+        return mCallLogCacheWriter;
+    }
+
     /** Returns the contact information as stored in the call log. */
     private ContactInfo getContactInfoFromCallLog(Cursor c) {
         ContactInfo info = new ContactInfo();
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Buffers the updates of the contact info cached in the call log, and writes them in a single
+ * batch.
+ * <p>
+ * Updates of the same number are merged, so that each number is written at most once per
+ * batch. The writer keeps a few metrics about the batches it wrote, to tell how much the
+ * batching saves.
+ */
+class CallLogCacheWriter {
+    private static final String TAG = "CallLogCacheWriter";
+    private static final boolean DEBUG = false;
+
+    /** Number of buffered numbers above which the buffer should be flushed without waiting. */
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = 100;
+
+    private final ContentResolver mResolver;
+
+    /** The values to write for each number, in the order they were first updated. */
+    private LinkedHashMap<NumberWithCountryIso, ContentValues> mPendingUpdates =
+            new LinkedHashMap<NumberWithCountryIso, ContentValues>();
+
+    /** Time at which the oldest pending update was buffered. */
+    private long mFirstPendingUpdateMillis;
+
+    private int mFlushCount;
+    private int mWrittenCount;
+    private int mLastBatchSize;
+    private int mMaxBatchSize;
+    private long mLastFlushMillis;
+    private long mLastFlushLatencyMillis;
+    private long mTotalFlushMillis;
+
+    CallLogCacheWriter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Buffers the given values to be written to the call log entries of a number.
+     *
+     * @return Whether the buffer is full and should be flushed.
+     */
+    public synchronized boolean update(NumberWithCountryIso number, ContentValues values) {
+        final ContentValues pendingValues = mPendingUpdates.get(number);
+        if (pendingValues != null) {
+            // The latest values of each column win.
+            pendingValues.putAll(values);
+        } else {
+            if (mPendingUpdates.isEmpty()) {
+                mFirstPendingUpdateMillis = SystemClock.elapsedRealtime();
+            }
+            mPendingUpdates.put(number, new ContentValues(values));
+        }
+        return mPendingUpdates.size() >= MAX_BATCH_SIZE;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPendingUpdates.size();
+    }
+
+    /**
+     * Writes all the buffered updates to the call log, in a single batch.
+     *
+     * @return The number of numbers whose call log entries were updated.
+     */
+    public int flush() {
+        final LinkedHashMap<NumberWithCountryIso, ContentValues> updates;
+        final long firstUpdateMillis;
+        synchronized (this) {
+            if (mPendingUpdates.isEmpty()) return 0;
+            updates = mPendingUpdates;
+            firstUpdateMillis = mFirstPendingUpdateMillis;
+            mPendingUpdates = new LinkedHashMap<NumberWithCountryIso, ContentValues>();
+        }
+
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(updates.size());
+        for (Map.Entry<NumberWithCountryIso, ContentValues> update : updates.entrySet()) {
+            operations.add(createUpdate(update.getKey(), update.getValue()));
+        }
+
+        final long startMillis = SystemClock.elapsedRealtime();
+        try {
+            mResolver.applyBatch(CallLog.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            // The cached values are only a hint, they will be updated again the next time.
+            Log.e(TAG, "Failed to update the call log cache", e);
+            return 0;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Failed to update the call log cache", e);
+            return 0;
+        }
+        final long endMillis = SystemClock.elapsedRealtime();
+
+        synchronized (this) {
+            mFlushCount++;
+            mWrittenCount += operations.size();
+            mLastBatchSize = operations.size();
+            mMaxBatchSize = Math.max(mMaxBatchSize, operations.size());
+            mLastFlushMillis = endMillis - startMillis;
+            mLastFlushLatencyMillis = endMillis - firstUpdateMillis;
+            mTotalFlushMillis += mLastFlushMillis;
+        }
+        if (DEBUG) {
+            Log.v(TAG, "Wrote " + operations.size() + " numbers in " + (endMillis - startMillis)
+                    + " ms, " + (endMillis - firstUpdateMillis) + " ms after the first update");
+        }
+        return operations.size();
+    }
+
+    private static ContentProviderOperation createUpdate(NumberWithCountryIso number,
+            ContentValues values) {
+        final ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newUpdate(Calls.CONTENT_URI_WITH_VOICEMAIL)
+                        .withValues(values);
+        if (number.countryIso == null) {
+            builder.withSelection(Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
+                    new String[]{ number.number });
+        } else {
+            builder.withSelection(Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
+                    new String[]{ number.number, number.countryIso });
+        }
+        return builder.build();
+    }
+
+    /** Returns the number of batches written so far. */
+    public synchronized int getFlushCount() {
+        return mFlushCount;
+    }
+
+    /** Returns the number of numbers written so far, over all the batches. */
+    public synchronized int getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /** Returns the number of numbers written by the last batch. */
+    public synchronized int getLastBatchSize() {
+        return mLastBatchSize;
+    }
+
+    /** Returns the largest number of numbers written by a single batch. */
+    public synchronized int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /** Returns how long the provider took to apply the last batch. */
+    public synchronized long getLastFlushMillis() {
+        return mLastFlushMillis;
+    }
+
+    /** Returns how long the oldest update of the last batch waited to be written. */
+    public synchronized long getLastFlushLatencyMillis() {
+        return mLastFlushLatencyMillis;
+    }
+
+    /** Returns how long the provider took to apply all the batches. */
+    public synchronized long getTotalFlushMillis() {
+        return mTotalFlushMillis;
+    }
+}
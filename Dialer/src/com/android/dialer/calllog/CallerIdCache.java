@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.util.UriUtils;
+import com.android.dialer.database.DialerDatabaseHelper;
+import com.android.dialer.database.DialerDatabaseHelper.CallerIdCacheColumns;
+import com.android.dialer.database.DialerDatabaseHelper.Tables;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Contact info of the numbers in the call log, stored in the dialer database so that it survives
+ * the process. It backs the in-memory cache of {@link CallLogAdapter}, which starts empty
+ * whenever the process is restarted.
+ * <p>
+ * Rows are keyed by the number formatted to E164, when possible, and the country it was seen in.
+ * Each row is tagged with the {@link DialerDatabaseHelper#checkContactsGeneration contacts
+ * generation} it was looked up in, and is only returned while the generation has not changed.
+ * <p>
+ * Only contact info found in the contacts provider is stored: info from remote sources is always
+ * looked up again. Numbers that match no contact are stored too, as the contact info
+ * {@link ContactInfoHelper#lookupNumber} returns for them, so that they are not looked up again
+ * until the contacts change.
+ */
+public class CallerIdCache {
+    private static final String TAG = "CallerIdCache";
+
+    /** Maximum number of rows kept, the least recently used ones are removed first. */
+    @VisibleForTesting
+    static final int MAX_ROWS = 1000;
+
+    /**
+     * How old the last use of a row must be for a read to record it again. The order of the rows
+     * only matters when the table is full, so it does not need to be more precise than that.
+     */
+    @VisibleForTesting
+    static final long LAST_USED_UPDATE_MILLIS = 60L * 60 * 1000;
+
+    private static final String[] PROJECTION = new String[] {
+            CallerIdCacheColumns.NORMALIZED_NUMBER,
+            CallerIdCacheColumns.COUNTRY_ISO,
+            CallerIdCacheColumns.NUMBER,
+            CallerIdCacheColumns.LOOKUP_URI,
+            CallerIdCacheColumns.NAME,
+            CallerIdCacheColumns.TYPE,
+            CallerIdCacheColumns.LABEL,
+            CallerIdCacheColumns.MATCHED_NUMBER,
+            CallerIdCacheColumns.FORMATTED_NUMBER,
+            CallerIdCacheColumns.CONTACT_NORMALIZED_NUMBER,
+            CallerIdCacheColumns.PHOTO_ID,
+            CallerIdCacheColumns.PHOTO_URI,
+            CallerIdCacheColumns.LAST_USED_MILLIS};
+
+    private static final int NORMALIZED_NUMBER = 0;
+    private static final int COUNTRY_ISO = 1;
+    private static final int NUMBER = 2;
+    private static final int LOOKUP_URI = 3;
+    private static final int NAME = 4;
+    private static final int TYPE = 5;
+    private static final int LABEL = 6;
+    private static final int MATCHED_NUMBER = 7;
+    private static final int FORMATTED_NUMBER = 8;
+    private static final int CONTACT_NORMALIZED_NUMBER = 9;
+    private static final int PHOTO_ID = 10;
+    private static final int PHOTO_URI = 11;
+    private static final int LAST_USED_MILLIS = 12;
+
+    private static final String KEY_SELECTION = CallerIdCacheColumns.NORMALIZED_NUMBER
+            + "=? AND " + CallerIdCacheColumns.COUNTRY_ISO + "=?";
+
+    /** Maximum number of values matched by a single query, well below the SQLite limit. */
+    private static final int MAX_QUERY_VALUES = 100;
+
+    private final DialerDatabaseHelper mHelper;
+
+    public CallerIdCache(DialerDatabaseHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * Returns the current contacts generation. It should be read before looking up the numbers
+     * passed to {@link #putAll}, so that a change of the contacts during the lookup is noticed.
+     * <p>
+     * Contacts changed in the contacts provider since the rows were stored are noticed even if
+     * the smart dial database, which also moves the generation forward, has not been updated
+     * since. Must not be called on the UI thread.
+     *
+     * @return The generation, or -1 if the database or the contacts provider could not be read,
+     *         in which case the cache is not used.
+     */
+    public long getGeneration() {
+        try {
+            return mHelper.checkContactsGeneration();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to read the contacts generation", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the stored contact info of the given numbers, for those whose info was looked up
+     * in the given generation. Must not be called on the UI thread.
+     */
+    public Map<NumberWithCountryIso, ContactInfo> getAll(Set<NumberWithCountryIso> numbers,
+            long generation) {
+        final Map<NumberWithCountryIso, ContactInfo> infos = Maps.newHashMap();
+        // Numbers by the key of their row.
+        final Map<String, NumberWithCountryIso> keys = Maps.newHashMap();
+        for (NumberWithCountryIso number : numbers) {
+            if (!TextUtils.isEmpty(number.number)) {
+                keys.put(getKey(number), number);
+            }
+        }
+        if (generation < 0 || keys.isEmpty()) return infos;
+
+        final long now = System.currentTimeMillis();
+        // Numbers whose rows have not been marked as used recently.
+        final List<NumberWithCountryIso> staleNumbers = Lists.newArrayList();
+        try {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            final List<String> normalizedNumbers = Lists.newArrayList();
+            for (NumberWithCountryIso number : keys.values()) {
+                normalizedNumbers.add(normalizeNumber(number));
+            }
+            for (int start = 0; start < normalizedNumbers.size(); start += MAX_QUERY_VALUES) {
+                final int end = Math.min(normalizedNumbers.size(), start + MAX_QUERY_VALUES);
+                final String[] selectionArgs = new String[end - start + 1];
+                selectionArgs[0] = String.valueOf(generation);
+                final String selection = CallerIdCacheColumns.GENERATION + "=? AND "
+                        + CallerIdCacheColumns.NORMALIZED_NUMBER + " IN ("
+                        + makeArgs(normalizedNumbers, start, end, selectionArgs) + ")";
+                final Cursor cursor = db.query(Tables.CALLER_ID_CACHE, PROJECTION, selection,
+                        selectionArgs, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        final NumberWithCountryIso number = keys.get(getKey(
+                                cursor.getString(NORMALIZED_NUMBER),
+                                cursor.getString(COUNTRY_ISO)));
+                        // The formatted number depends on how the number was written.
+                        if (number != null
+                                && TextUtils.equals(number.number, cursor.getString(NUMBER))) {
+                            infos.put(number, readContactInfo(cursor));
+                            if (now - cursor.getLong(LAST_USED_MILLIS)
+                                    >= LAST_USED_UPDATE_MILLIS) {
+                                staleNumbers.add(number);
+                            }
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            // Keeps the rows in use from being removed when the table is full. Rows marked
+            // recently are left alone, so that most reads do not write to the database.
+            if (!staleNumbers.isEmpty()) {
+                db.beginTransaction();
+                try {
+                    final ContentValues values = new ContentValues();
+                    values.put(CallerIdCacheColumns.LAST_USED_MILLIS, now);
+                    for (NumberWithCountryIso number : staleNumbers) {
+                        db.update(Tables.CALLER_ID_CACHE, values, KEY_SELECTION,
+                                new String[] { normalizeNumber(number), getCountryIso(number) });
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } catch (SQLiteException e) {
+            // The numbers will be looked up in the contacts provider instead.
+            Log.e(TAG, "Failed to read the caller id cache", e);
+        }
+        return infos;
+    }
+
+    /**
+     * Stores the contact info of the given numbers. Must not be called on the UI thread.
+     *
+     * @param generation The contacts generation before the numbers were looked up.
+     */
+    public void putAll(Map<NumberWithCountryIso, ContactInfo> infos, long generation) {
+        if (generation < 0) return;
+        final long now = System.currentTimeMillis();
+        try {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                final ContentValues values = new ContentValues();
+                for (Map.Entry<NumberWithCountryIso, ContactInfo> entry : infos.entrySet()) {
+                    final NumberWithCountryIso number = entry.getKey();
+                    final ContactInfo info = entry.getValue();
+                    if (TextUtils.isEmpty(number.number) || info == null
+                            || info == ContactInfo.EMPTY || info.sourceType != 0) {
+                        continue;
+                    }
+                    values.clear();
+                    values.put(CallerIdCacheColumns.NORMALIZED_NUMBER, normalizeNumber(number));
+                    values.put(CallerIdCacheColumns.COUNTRY_ISO, getCountryIso(number));
+                    values.put(CallerIdCacheColumns.NUMBER, number.number);
+                    values.put(CallerIdCacheColumns.GENERATION, generation);
+                    values.put(CallerIdCacheColumns.LAST_USED_MILLIS, now);
+                    values.put(CallerIdCacheColumns.LOOKUP_URI,
+                            UriUtils.uriToString(info.lookupUri));
+                    values.put(CallerIdCacheColumns.NAME, info.name);
+                    values.put(CallerIdCacheColumns.TYPE, info.type);
+                    values.put(CallerIdCacheColumns.LABEL, info.label);
+                    values.put(CallerIdCacheColumns.MATCHED_NUMBER, info.number);
+                    values.put(CallerIdCacheColumns.FORMATTED_NUMBER, info.formattedNumber);
+                    values.put(CallerIdCacheColumns.CONTACT_NORMALIZED_NUMBER,
+                            info.normalizedNumber);
+                    values.put(CallerIdCacheColumns.PHOTO_ID, info.photoId);
+                    values.put(CallerIdCacheColumns.PHOTO_URI,
+                            UriUtils.uriToString(info.photoUri));
+                    db.replace(Tables.CALLER_ID_CACHE, null, values);
+                }
+                removeUnusedRows(db, mHelper.getContactsGeneration());
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            // Only means that the numbers will be looked up again next time.
+            Log.e(TAG, "Failed to write the caller id cache", e);
+        }
+    }
+
+    /**
+     * Removes the rows of previous generations, and the least recently used rows above
+     * {@link #MAX_ROWS}.
+     */
+    private static void removeUnusedRows(SQLiteDatabase db, long generation) {
+        db.delete(Tables.CALLER_ID_CACHE, CallerIdCacheColumns.GENERATION + "<?",
+                new String[] { String.valueOf(generation) });
+        if (DatabaseUtils.queryNumEntries(db, Tables.CALLER_ID_CACHE) > MAX_ROWS) {
+            db.execSQL("DELETE FROM " + Tables.CALLER_ID_CACHE + " WHERE rowid NOT IN ("
+                    + "SELECT rowid FROM " + Tables.CALLER_ID_CACHE + " ORDER BY "
+                    + CallerIdCacheColumns.LAST_USED_MILLIS + " DESC LIMIT " + MAX_ROWS + ")");
+        }
+    }
+
+    private static ContactInfo readContactInfo(Cursor cursor) {
+        final ContactInfo info = new ContactInfo();
+        info.lookupUri = UriUtils.parseUriOrNull(cursor.getString(LOOKUP_URI));
+        info.name = cursor.getString(NAME);
+        info.type = cursor.getInt(TYPE);
+        info.label = cursor.getString(LABEL);
+        info.number = cursor.getString(MATCHED_NUMBER);
+        info.formattedNumber = cursor.getString(FORMATTED_NUMBER);
+        info.normalizedNumber = cursor.getString(CONTACT_NORMALIZED_NUMBER);
+        info.photoId = cursor.getLong(PHOTO_ID);
+        info.photoUri = UriUtils.parseUriOrNull(cursor.getString(PHOTO_URI));
+        return info;
+    }
+
+    private static String makeArgs(List<String> values, int start, int end,
+            String[] selectionArgs) {
+        final StringBuilder args = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            args.append(i == start ? "?" : ",?");
+            selectionArgs[i - start + 1] = values.get(i);
+        }
+        return args.toString();
+    }
+
+    /** Returns the number formatted to E164 if possible, or as it is otherwise. */
+    private static String normalizeNumber(NumberWithCountryIso number) {
+        if (!TextUtils.isEmpty(number.countryIso) && !PhoneNumberUtils.isUriNumber(number.number)) {
+            final String numberE164 =
+                    PhoneNumberUtils.formatNumberToE164(number.number, number.countryIso);
+            if (!TextUtils.isEmpty(numberE164)) {
+                return numberE164;
+            }
+        }
+        return number.number;
+    }
+
+    /** Part of the primary key, which must not be null to be unique. */
+    private static String getCountryIso(NumberWithCountryIso number) {
+        return number.countryIso == null ? "" : number.countryIso;
+    }
+
+    private static String getKey(NumberWithCountryIso number) {
+        return getKey(normalizeNumber(number), getCountryIso(number));
+    }
+
+    private static String getKey(String normalizedNumber, String countryIso) {
+        return normalizedNumber + '\n' + countryIso;
+    }
+}
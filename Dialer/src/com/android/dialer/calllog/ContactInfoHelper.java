@@ -21,7 +21,9 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.SipAddress;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.DisplayNameSources;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
@@ -32,10 +34,17 @@ import com.android.contacts.common.util.UriUtils;
 import com.android.dialer.service.CachedNumberLookupService;
 import com.android.dialer.service.CachedNumberLookupService.CachedContactInfo;
 import com.android.dialerbind.ObjectFactory;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Utility class to look up the contact information for a given number.
  */
@@ -46,6 +55,9 @@ public class ContactInfoHelper {
     private static final CachedNumberLookupService mCachedNumberLookupService =
             ObjectFactory.newCachedNumberLookupService();
 
+    /** Maximum number of values matched by a single bulk query, well below the SQLite limit. */
+    private static final int MAX_BULK_QUERY_VALUES = 100;
+
     public ContactInfoHelper(Context context, String currentCountryIso) {
         mContext = context;
         mCurrentCountryIso = currentCountryIso;
@@ -63,12 +75,24 @@ public class ContactInfoHelper {
      * @param countryIso the country associated with this number
      */
     public ContactInfo lookupNumber(String number, String countryIso) {
+        return lookupNumber(number, countryIso, null);
+    }
+
+    /**
+     * Same as {@link #lookupNumber(String, String)}, without looking the number up as a SIP
+     * address again if that was already done.
+     *
+     * @param sipInfo the result of looking the number up as a SIP address, or null to query it
+     */
+    private ContactInfo lookupNumber(String number, String countryIso, ContactInfo sipInfo) {
         final ContactInfo info;
 
         // Determine the contact info.
         if (PhoneNumberUtils.isUriNumber(number)) {
             // This "number" is really a SIP address.
-            ContactInfo sipInfo = queryContactInfoForSipAddress(number);
+            if (sipInfo == null) {
+                sipInfo = queryContactInfoForSipAddress(number);
+            }
             if (sipInfo == null || sipInfo == ContactInfo.EMPTY) {
                 // Check whether the "username" part of the SIP address is
                 // actually the phone number of a contact.
@@ -84,7 +108,7 @@ public class ContactInfoHelper {
 
             if (phoneInfo == null || phoneInfo == ContactInfo.EMPTY) {
                 // Check whether the phone number has been saved as an "Internet call" number.
-                phoneInfo = queryContactInfoForSipAddress(number);
+                phoneInfo = sipInfo != null ? sipInfo : queryContactInfoForSipAddress(number);
             }
             info = phoneInfo;
         }
@@ -108,6 +132,138 @@ public class ContactInfoHelper {
         return updatedInfo;
     }
 
+    /**
+     * Returns the contact information for the given numbers, as {@link #lookupNumber} would for
+     * each of them, but with fewer queries.
+     * <p>
+     * Phone numbers that can be formatted to E164 are first matched exactly against the
+     * normalized numbers of the contacts, and every number against their SIP addresses, with a
+     * bulk query for each kind. Only the numbers that none of these matched are then looked up
+     * one at a time, which also takes care of loosely matching phone numbers. That lookup reuses
+     * the result of the bulk SIP address query, so a number matching no contact costs a single
+     * query of its own, or none for a SIP address whose user name is not a phone number.
+     * <p>
+     * Numbers whose lookup failed are not in the returned map.
+     *
+     * @param numbers the numbers to look up, with the country associated with each of them
+     */
+    public Map<NumberWithCountryIso, ContactInfo> lookupNumbers(Set<NumberWithCountryIso> numbers) {
+        final Map<NumberWithCountryIso, ContactInfo> infos = Maps.newHashMap();
+
+        // Group the numbers by the value matched by the bulk queries. Phone numbers are also
+        // matched against SIP addresses, in case they were saved as "Internet call" numbers.
+        final Map<String, List<NumberWithCountryIso>> phoneNumbers = Maps.newHashMap();
+        final Map<String, List<NumberWithCountryIso>> sipAddresses = Maps.newHashMap();
+        for (NumberWithCountryIso number : numbers) {
+            if (TextUtils.isEmpty(number.number)) {
+                continue;
+            }
+            addMatch(sipAddresses, number.number, number);
+            if (!PhoneNumberUtils.isUriNumber(number.number)
+                    && !TextUtils.isEmpty(number.countryIso)) {
+                String numberE164 =
+                        PhoneNumberUtils.formatNumberToE164(number.number, number.countryIso);
+                if (!TextUtils.isEmpty(numberE164)) {
+                    addMatch(phoneNumbers, numberE164, number);
+                }
+            }
+        }
+        bulkLookup(Phone.CONTENT_ITEM_TYPE, Phone.NORMALIZED_NUMBER, PhoneQuery.NORMALIZED_NUMBER,
+                phoneNumbers, infos);
+        final Map<NumberWithCountryIso, ContactInfo> sipInfos = Maps.newHashMap();
+        final Set<String> queriedSipAddresses = bulkLookup(SipAddress.CONTENT_ITEM_TYPE,
+                SipAddress.SIP_ADDRESS, PhoneQuery.MATCHED_NUMBER, sipAddresses, sipInfos);
+
+        for (NumberWithCountryIso number : numbers) {
+            if (infos.containsKey(number)) {
+                continue;
+            }
+            ContactInfo sipInfo = null;
+            if (queriedSipAddresses.contains(number.number)) {
+                sipInfo = sipInfos.get(number);
+                if (sipInfo == null) {
+                    sipInfo = ContactInfo.EMPTY;
+                }
+            }
+            ContactInfo info = lookupNumber(number.number, number.countryIso, sipInfo);
+            if (info != null) {
+                infos.put(number, info);
+            }
+        }
+        return infos;
+    }
+
+    private static void addMatch(Map<String, List<NumberWithCountryIso>> matches, String value,
+            NumberWithCountryIso number) {
+        List<NumberWithCountryIso> numbers = matches.get(value);
+        if (numbers == null) {
+            numbers = Lists.newArrayListWithCapacity(1);
+            matches.put(value, numbers);
+        }
+        numbers.add(number);
+    }
+
+    /**
+     * Looks up the contacts whose data of the given MIME type exactly matches one of the given
+     * values, and stores the contact info of each match for the numbers of that value.
+     * <p>
+     * Values that match no contact, or whose query failed, are left out of {@code infos}.
+     *
+     * @param column the column of the data to match the values against
+     * @param valueIndex the index of that column in {@link PhoneQuery#_DATA_PROJECTION}
+     * @return the values whose query succeeded, whether they matched a contact or not
+     */
+    private Set<String> bulkLookup(String mimeType, String column, int valueIndex,
+            Map<String, List<NumberWithCountryIso>> matches,
+            Map<NumberWithCountryIso, ContactInfo> infos) {
+        final Set<String> queriedValues = Sets.newHashSet();
+        final List<String> values = Lists.newArrayList(matches.keySet());
+        for (int start = 0; start < values.size(); start += MAX_BULK_QUERY_VALUES) {
+            final int end = Math.min(values.size(), start + MAX_BULK_QUERY_VALUES);
+            final StringBuilder selection = new StringBuilder();
+            selection.append(Data.MIMETYPE).append("=? AND ").append(column).append(" IN (");
+            final String[] selectionArgs = new String[end - start + 1];
+            selectionArgs[0] = mimeType;
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                selectionArgs[i - start + 1] = values.get(i);
+            }
+            selection.append(')');
+
+            final Cursor cursor = mContext.getContentResolver().query(Data.CONTENT_URI,
+                    PhoneQuery._DATA_PROJECTION, selection.toString(), selectionArgs, null);
+            if (cursor == null) {
+                // Failed to fetch the data, the numbers will be looked up one at a time.
+                continue;
+            }
+            queriedValues.addAll(values.subList(start, end));
+            try {
+                while (cursor.moveToNext()) {
+                    final List<NumberWithCountryIso> numbers =
+                            matches.get(cursor.getString(valueIndex));
+                    if (numbers == null) {
+                        continue;
+                    }
+                    for (NumberWithCountryIso number : numbers) {
+                        // Like the PhoneLookup table, keep the first contact that matches.
+                        if (infos.containsKey(number)) {
+                            continue;
+                        }
+                        final ContactInfo info = readContactInfo(cursor);
+                        if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                            info.formattedNumber =
+                                    formatPhoneNumber(number.number, null, number.countryIso);
+                        }
+                        infos.put(number, info);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return queriedValues;
+    }
+
     /**
      * Creates a JSON-encoded lookup uri for a unknown number without an associated contact
      *
@@ -157,19 +313,7 @@ public class ContactInfoHelper {
         if (phonesCursor != null) {
             try {
                 if (phonesCursor.moveToFirst()) {
-                    info = new ContactInfo();
-                    long contactId = phonesCursor.getLong(PhoneQuery.PERSON_ID);
-                    String lookupKey = phonesCursor.getString(PhoneQuery.LOOKUP_KEY);
-                    info.lookupUri = Contacts.getLookupUri(contactId, lookupKey);
-                    info.name = phonesCursor.getString(PhoneQuery.NAME);
-                    info.type = phonesCursor.getInt(PhoneQuery.PHONE_TYPE);
-                    info.label = phonesCursor.getString(PhoneQuery.LABEL);
-                    info.number = phonesCursor.getString(PhoneQuery.MATCHED_NUMBER);
-                    info.normalizedNumber = phonesCursor.getString(PhoneQuery.NORMALIZED_NUMBER);
-                    info.photoId = phonesCursor.getLong(PhoneQuery.PHOTO_ID);
-                    info.photoUri =
-                            UriUtils.parseUriOrNull(phonesCursor.getString(PhoneQuery.PHOTO_URI));
-                    info.formattedNumber = null;
+                    info = readContactInfo(phonesCursor);
                 } else {
                     info = ContactInfo.EMPTY;
                 }
@@ -183,6 +327,26 @@ public class ContactInfoHelper {
         return info;
     }
 
+    /**
+     * Reads the contact info at the current position of a cursor with the columns of
+     * {@link PhoneQuery}, leaving {@link ContactInfo#formattedNumber} null.
+     */
+    private static ContactInfo readContactInfo(Cursor phonesCursor) {
+        final ContactInfo info = new ContactInfo();
+        long contactId = phonesCursor.getLong(PhoneQuery.PERSON_ID);
+        String lookupKey = phonesCursor.getString(PhoneQuery.LOOKUP_KEY);
+        info.lookupUri = Contacts.getLookupUri(contactId, lookupKey);
+        info.name = phonesCursor.getString(PhoneQuery.NAME);
+        info.type = phonesCursor.getInt(PhoneQuery.PHONE_TYPE);
+        info.label = phonesCursor.getString(PhoneQuery.LABEL);
+        info.number = phonesCursor.getString(PhoneQuery.MATCHED_NUMBER);
+        info.normalizedNumber = phonesCursor.getString(PhoneQuery.NORMALIZED_NUMBER);
+        info.photoId = phonesCursor.getLong(PhoneQuery.PHOTO_ID);
+        info.photoUri = UriUtils.parseUriOrNull(phonesCursor.getString(PhoneQuery.PHOTO_URI));
+        info.formattedNumber = null;
+        return info;
+    }
+
     /**
      * Determines the contact information for the given SIP address.
      * <p>
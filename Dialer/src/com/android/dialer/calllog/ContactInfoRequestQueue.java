@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Queue of contact lookup requests shared by the lookup threads of {@link CallLogAdapter}.
+ * <p>
+ * A request that is already queued is not added again, it is only moved according to its new
+ * priority, so that each number is looked up once however often its row is bound.
+ * <p>
+ * Urgent requests, for rows that are displayed without any contact info yet, are taken before
+ * the others. Among requests of the same urgency, the most recently added is taken first: rows
+ * are bound as they scroll into view, so the latest requests are the ones for the rows that are
+ * currently visible, while earlier ones may already have scrolled off screen.
+ */
+class ContactInfoRequestQueue<T> {
+    /** Pending requests, by order of addition, with the urgent ones in a separate map. */
+    private final TreeMap<Long, T> mUrgentRequests = new TreeMap<Long, T>();
+    private final TreeMap<Long, T> mRequests = new TreeMap<Long, T>();
+
+    /** Position of each pending request in the maps above. Negative for urgent requests. */
+    private final HashMap<T, Long> mPositions = new HashMap<T, Long>();
+
+    private long mNextPosition = 1;
+
+    /**
+     * Adds a request, or moves it ahead if it is already queued.
+     *
+     * @param urgent Whether the request should be taken before non-urgent ones. A queued urgent
+     *         request stays urgent.
+     */
+    public synchronized void add(T request, boolean urgent) {
+        final Long previous = mPositions.remove(request);
+        if (previous != null) {
+            urgent |= previous < 0;
+            (previous < 0 ? mUrgentRequests : mRequests).remove(Math.abs(previous));
+        }
+        final long position = mNextPosition++;
+        (urgent ? mUrgentRequests : mRequests).put(position, request);
+        mPositions.put(request, urgent ? -position : position);
+        notify();
+    }
+
+    /**
+     * Removes and returns the request to process next, waiting for one to be added if the queue
+     * is empty.
+     *
+     * @param timeoutMillis Maximum time to wait, which must be positive.
+     * @return The request, or null if none was added in time.
+     */
+    public synchronized T take(long timeoutMillis) throws InterruptedException {
+        if (isEmpty()) {
+            wait(timeoutMillis);
+        }
+        return poll();
+    }
+
+    /**
+     * Removes up to {@code maxCount} requests, in the order in which {@link #take} would return
+     * them, and adds them to {@code requests}. Does not wait.
+     *
+     * @return The number of requests moved.
+     */
+    public synchronized int drainTo(Collection<? super T> requests, int maxCount) {
+        int count = 0;
+        T request;
+        while (count < maxCount && (request = poll()) != null) {
+            requests.add(request);
+            count++;
+        }
+        return count;
+    }
+
+    /** Removes and returns the request to process next, or null if the queue is empty. */
+    private T poll() {
+        final Map.Entry<Long, T> entry = mUrgentRequests.isEmpty()
+                ? mRequests.pollLastEntry() : mUrgentRequests.pollLastEntry();
+        if (entry == null) {
+            return null;
+        }
+        mPositions.remove(entry.getValue());
+        return entry.getValue();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPositions.isEmpty();
+    }
+
+    public synchronized int size() {
+        return mPositions.size();
+    }
+
+    public synchronized void clear() {
+        mUrgentRequests.clear();
+        mRequests.clear();
+        mPositions.clear();
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.android.dialer.calllog;
 
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.PhoneLookup;
 
 /**
@@ -33,6 +35,23 @@ final class PhoneQuery {
             PhoneLookup.LOOKUP_KEY,
             PhoneLookup.PHOTO_URI};
 
+    /**
+     * The same columns as {@link #_PROJECTION}, read from the contacts data instead of the
+     * PhoneLookup table, which can only look up one number at a time.
+     * <p>
+     * The type, label and number columns of a phone number are also those of a SIP address.
+     */
+    public static final String[] _DATA_PROJECTION = new String[] {
+            Data.CONTACT_ID,
+            Data.DISPLAY_NAME,
+            Phone.TYPE,
+            Phone.LABEL,
+            Phone.NUMBER,
+            Phone.NORMALIZED_NUMBER,
+            Data.PHOTO_ID,
+            Data.LOOKUP_KEY,
+            Data.PHOTO_URI};
+
     public static final int PERSON_ID = 0;
     public static final int NAME = 1;
     public static final int PHONE_TYPE = 2;
@@ -28,7 +28,9 @@ import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
 import android.os.Debug;
+import android.os.OperationCanceledException;
 import android.provider.BaseColumns;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
@@ -47,13 +49,22 @@ import com.android.dialer.dialpad.SmartDialPrefix;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.sprd.dialer.SprdUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Database helper for smart dial. Designed as a singleton to make sure there is
@@ -67,16 +78,52 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     private static DialerDatabaseHelper sSingleton = null;
 
     private static final Object mLock = new Object();
-    private static final AtomicBoolean sInUpdate = new AtomicBoolean(false);
     private final Context mContext;
 
+    /**
+     * In-memory snapshot of the smart dial tables, used to answer lookups without querying
+     * SQLite. Null until the first update has completed, in which case the database is queried.
+     */
+    private volatile SmartDialIndex mSmartDialIndex;
+
+    /**
+     * Precomputed results of the one and two digit queries. Null while the smart dial database
+     * is being updated, in which case the queries are looked up like any other.
+     */
+    private volatile SmartDialQueryCache mSmartDialQueryCache;
+
+    private volatile int mPrefixThreads = DEFAULT_PREFIX_THREADS;
+
+    private volatile boolean mSnapshotEnabled = true;
+    /**
+     * Snapshot of the last update, serving lookups until the index has been built. Guarded by
+     * this, and only opened once per process.
+     */
+    private SmartDialSnapshot mSmartDialSnapshot;
+    private boolean mSnapshotOpened;
+
+    /** Keeps the smart dial database up to date while started, null otherwise. Guarded by this. */
+    private SmartDialUpdater mSmartDialUpdater;
+    /** Number of callers that started the updater and have not stopped it yet. */
+    private int mSmartDialUpdaterUsers;
+
+    /** Notified of the progress of the updates of the smart dial database, or null. */
+    private volatile SmartDialUpdateListener mSmartDialUpdateListener;
+
+    /**
+     * Whether the smartdial table may hold rows of an update that did not complete. Always true
+     * for the first update of the process, since the previous process may have died while
+     * updating. Guarded by mLock.
+     */
+    private boolean mMayHaveCorruptedContacts = true;
+
     /**
      * SmartDial DB version ranges:
      * <pre>
      *   0-98   KeyLimePie
      * </pre>
      */
-    public static final int DATABASE_VERSION = 4;
+    public static final int DATABASE_VERSION = 7;
     public static final String DATABASE_NAME = "dialer.db";
 
     /**
@@ -84,10 +131,37 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      */
     private static final String DATABASE_LAST_CREATED_SHARED_PREF = "com.android.dialer";
     private static final String LAST_UPDATED_MILLIS = "last_updated_millis";
+    /** Time of the last update of smart dial databases that changed their content. */
+    private static final String LAST_CHANGED_MILLIS = "last_changed_millis";
     private static final String DATABASE_VERSION_PROPERTY = "database_version";
+    /** Incremented whenever an update of the smart dial database finds changed contacts. */
+    private static final String CONTACTS_GENERATION_PROPERTY = "contacts_generation";
+    /** Latest update and deletion of a contact seen by {@link #checkContactsGeneration}. */
+    private static final String CONTACTS_LAST_UPDATED_PROPERTY = "contacts_last_updated";
+    private static final String CONTACTS_LAST_DELETED_PROPERTY = "contacts_last_deleted";
+
+    /** Cached value of {@link #CONTACTS_GENERATION_PROPERTY}, or -1 until read. */
+    private volatile long mContactsGeneration = -1;
+
+    /** Suffix of the file next to the database holding the {@link SmartDialSnapshot}. */
+    private static final String SNAPSHOT_FILE_SUFFIX = "-smartdial-snapshot";
 
     private static final int MAX_ENTRIES = 20;
 
+    /**
+     * Number of contacts written per transaction when updating the smart dial tables. Readers can
+     * access the database between two chunks.
+     */
+    private static final int UPDATE_CHUNK_SIZE = 250;
+    /** Number of prefix rows inserted per statement. */
+    private static final int PREFIX_INSERT_BATCH_SIZE = 100;
+    /**
+     * Number of threads generating prefixes while the smart dial tables are built from scratch.
+     * One core is left to the thread writing to the database.
+     */
+    private static final int DEFAULT_PREFIX_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors() - 1);
+
     public interface Tables {
         /** Saves the necessary smart dial information of all contacts. */
         static final String SMARTDIAL_TABLE = "smartdial_table";
@@ -95,6 +169,25 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         static final String PREFIX_TABLE = "prefix_table";
         /** Database properties for internal use */
         static final String PROPERTIES = "properties";
+        /** New generation of {@link #SMARTDIAL_TABLE} while it is being built from scratch. */
+        static final String SMARTDIAL_TABLE_SHADOW = "smartdial_table_shadow";
+        /** New generation of {@link #PREFIX_TABLE} while it is being built from scratch. */
+        static final String PREFIX_TABLE_SHADOW = "prefix_table_shadow";
+        /** Contact info of the numbers in the call log, kept across restarts of the process. */
+        static final String CALLER_ID_CACHE = "caller_id_cache";
+    }
+
+    /**
+     * Receives the progress of the updates of the smart dial database.
+     */
+    public interface SmartDialUpdateListener {
+        /**
+         * Called on the updating thread each time a chunk of updated contacts has been committed.
+         *
+         * @param rowsDone Number of rows of updated contacts committed so far by this update.
+         * @param totalRows Number of rows of updated contacts this update writes in total.
+         */
+        void onSmartDialUpdateProgress(int rowsDone, int totalRows);
     }
 
     public interface SmartDialDbColumns {
@@ -112,6 +205,19 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         static final String IN_VISIBLE_GROUP = "in_visible_group";
         static final String IS_PRIMARY = "is_primary";
         static final String LAST_SMARTDIAL_UPDATE_TIME = "last_smartdial_update_time";
+        /**
+         * Display name converted to dialpad digits by {@link SmartDialNameMatcher#normalizeName},
+         * so that it does not have to be transliterated for every query.
+         */
+        static final String NORMALIZED_NAME = "normalized_name";
+        /**
+         * Phone number normalized by {@link SmartDialNameMatcher#normalizeNumber}, and the
+         * offsets of its national number and NANP local number in it, so that numbers do not
+         * have to be parsed for every query.
+         */
+        static final String NORMALIZED_NUMBER = "normalized_number";
+        static final String COUNTRY_CODE_OFFSET = "country_code_offset";
+        static final String NANP_CODE_OFFSET = "nanp_code_offset";
     }
 
     public static interface PrefixColumns extends BaseColumns {
@@ -119,6 +225,26 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         static final String CONTACT_ID = "contact_id";
     }
 
+    public interface CallerIdCacheColumns {
+        /** The number, formatted to E164 if possible, and the country it was seen in. */
+        static final String NORMALIZED_NUMBER = "normalized_number";
+        static final String COUNTRY_ISO = "country_iso";
+        /** The number as it was looked up, which the formatted number depends on. */
+        static final String NUMBER = "number";
+        /** The {@link #getContactsGeneration contacts generation} the row was looked up in. */
+        static final String GENERATION = "generation";
+        static final String LAST_USED_MILLIS = "last_used_millis";
+        static final String LOOKUP_URI = "lookup_uri";
+        static final String NAME = "name";
+        static final String TYPE = "type";
+        static final String LABEL = "label";
+        static final String MATCHED_NUMBER = "matched_number";
+        static final String FORMATTED_NUMBER = "formatted_number";
+        static final String CONTACT_NORMALIZED_NUMBER = "contact_normalized_number";
+        static final String PHOTO_ID = "photo_id";
+        static final String PHOTO_URI = "photo_uri";
+    }
+
     public interface PropertiesColumns {
         String PROPERTY_KEY = "property_key";
         String PROPERTY_VALUE = "property_value";
@@ -199,7 +325,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      * Gets the sorting order for the smartdial table. This computes a SQL "ORDER BY" argument by
      * composing contact status and recent contact details together.
      */
-    private static interface SmartDialSortingOrder {
+    static interface SmartDialSortingOrder {
         /** Current contacts - those contacted within the last 3 days (in milliseconds) */
         static final long LAST_TIME_USED_CURRENT_MS = 3L * 24 * 60 * 60 * 1000;
         /** Recent contacts - those contacted within the last 30 days (in milliseconds) */
@@ -234,6 +360,36 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.IS_PRIMARY + " DESC";
     }
 
+    /**
+     * Selects the rows of the contacts having a prefix in [?1, ?2). A prefix query is a range scan
+     * over nameprefix_index, whatever the LIKE settings of the database are, and the SQL is the
+     * same for every query so its compiled statement is reused from the statement cache.
+     */
+    @VisibleForTesting
+    static final String LOOSE_MATCH_QUERY = "SELECT " +
+            SmartDialDbColumns.DATA_ID + ", " +
+            SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+            SmartDialDbColumns.PHOTO_ID + ", " +
+            SmartDialDbColumns.NUMBER + ", " +
+            SmartDialDbColumns.CONTACT_ID + ", " +
+            SmartDialDbColumns.LOOKUP_KEY + ", " +
+            SmartDialDbColumns.STARRED + ", " +
+            SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
+            SmartDialDbColumns.LAST_TIME_USED + ", " +
+            SmartDialDbColumns.TIMES_USED + ", " +
+            SmartDialDbColumns.IN_VISIBLE_GROUP + ", " +
+            SmartDialDbColumns.IS_PRIMARY + ", " +
+            SmartDialDbColumns.NORMALIZED_NAME + ", " +
+            SmartDialDbColumns.NORMALIZED_NUMBER + ", " +
+            SmartDialDbColumns.COUNTRY_CODE_OFFSET + ", " +
+            SmartDialDbColumns.NANP_CODE_OFFSET +
+            " FROM " + Tables.SMARTDIAL_TABLE + " WHERE " +
+            SmartDialDbColumns.CONTACT_ID + " IN " +
+            " (SELECT " + PrefixColumns.CONTACT_ID +
+            " FROM " + Tables.PREFIX_TABLE +
+            " WHERE " + Tables.PREFIX_TABLE + "." + PrefixColumns.PREFIX + " >= ?1" +
+            " AND " + Tables.PREFIX_TABLE + "." + PrefixColumns.PREFIX + " < ?2)";
+
     /**
      * Simple data format for a contact, containing only information needed for showing up in
      * smart dial interface.
@@ -282,7 +438,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     /**
      * Data format for finding duplicated contacts.
      */
-    private class ContactMatch {
+    static class ContactMatch {
         private final String lookupKey;
         private final long id;
 
@@ -342,6 +498,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     protected DialerDatabaseHelper(Context context, String databaseName, int dbVersion) {
         super(context, databaseName, null, dbVersion);
         mContext = Preconditions.checkNotNull(context, "Context must not be null");
+        /** Lets smart dial lookups read the database while it is being updated. */
+        setWriteAheadLoggingEnabled(true);
     }
 
     /**
@@ -356,7 +514,22 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
     private void setupTables(SQLiteDatabase db) {
         dropTables(db);
-        db.execSQL("CREATE TABLE " + Tables.SMARTDIAL_TABLE + " (" +
+        createSmartDialTable(db, Tables.SMARTDIAL_TABLE);
+        createPrefixTable(db, Tables.PREFIX_TABLE);
+        createCallerIdCacheTable(db);
+
+        db.execSQL("CREATE TABLE " + Tables.PROPERTIES + " (" +
+                PropertiesColumns.PROPERTY_KEY + " TEXT PRIMARY KEY, " +
+                PropertiesColumns.PROPERTY_VALUE + " TEXT " +
+                ");");
+
+        setProperty(db, DATABASE_VERSION_PROPERTY, String.valueOf(DATABASE_VERSION));
+        mContactsGeneration = -1;
+        resetSmartDialLastUpdatedTime();
+    }
+
+    private void createSmartDialTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + " (" +
                 SmartDialDbColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                 SmartDialDbColumns.DATA_ID + " INTEGER, " +
                 SmartDialDbColumns.NUMBER + " TEXT," +
@@ -370,28 +543,117 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 SmartDialDbColumns.STARRED + " INTEGER, " +
                 SmartDialDbColumns.IS_SUPER_PRIMARY + " INTEGER, " +
                 SmartDialDbColumns.IN_VISIBLE_GROUP + " INTEGER, " +
-                SmartDialDbColumns.IS_PRIMARY + " INTEGER" +
+                SmartDialDbColumns.IS_PRIMARY + " INTEGER, " +
+                SmartDialDbColumns.NORMALIZED_NAME + " TEXT, " +
+                SmartDialDbColumns.NORMALIZED_NUMBER + " TEXT, " +
+                SmartDialDbColumns.COUNTRY_CODE_OFFSET + " INTEGER, " +
+                SmartDialDbColumns.NANP_CODE_OFFSET + " INTEGER" +
         ");");
+    }
 
-        db.execSQL("CREATE TABLE " + Tables.PREFIX_TABLE + " (" +
+    private void createCallerIdCacheTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.CALLER_ID_CACHE + " (" +
+                CallerIdCacheColumns.NORMALIZED_NUMBER + " TEXT NOT NULL, " +
+                CallerIdCacheColumns.COUNTRY_ISO + " TEXT NOT NULL, " +
+                CallerIdCacheColumns.NUMBER + " TEXT, " +
+                CallerIdCacheColumns.GENERATION + " INTEGER, " +
+                CallerIdCacheColumns.LAST_USED_MILLIS + " INTEGER, " +
+                CallerIdCacheColumns.LOOKUP_URI + " TEXT, " +
+                CallerIdCacheColumns.NAME + " TEXT, " +
+                CallerIdCacheColumns.TYPE + " INTEGER, " +
+                CallerIdCacheColumns.LABEL + " TEXT, " +
+                CallerIdCacheColumns.MATCHED_NUMBER + " TEXT, " +
+                CallerIdCacheColumns.FORMATTED_NUMBER + " TEXT, " +
+                CallerIdCacheColumns.CONTACT_NORMALIZED_NUMBER + " TEXT, " +
+                CallerIdCacheColumns.PHOTO_ID + " INTEGER, " +
+                CallerIdCacheColumns.PHOTO_URI + " TEXT, " +
+                "PRIMARY KEY (" + CallerIdCacheColumns.NORMALIZED_NUMBER + ", " +
+                CallerIdCacheColumns.COUNTRY_ISO + ")" +
+                ");");
+    }
+
+    private void createPrefixTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + " (" +
                 PrefixColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                 PrefixColumns.PREFIX + " TEXT COLLATE NOCASE, " +
                 PrefixColumns.CONTACT_ID + " INTEGER" +
                 ");");
-
-        db.execSQL("CREATE TABLE " + Tables.PROPERTIES + " (" +
-                PropertiesColumns.PROPERTY_KEY + " TEXT PRIMARY KEY, " +
-                PropertiesColumns.PROPERTY_VALUE + " TEXT " +
-                ");");
-
-        setProperty(db, DATABASE_VERSION_PROPERTY, String.valueOf(DATABASE_VERSION));
-        resetSmartDialLastUpdatedTime();
     }
 
     public void dropTables(SQLiteDatabase db) {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_TABLE);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_TABLE);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.PROPERTIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.CALLER_ID_CACHE);
+        dropShadowTables(db);
+    }
+
+    private void dropShadowTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_TABLE_SHADOW);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_TABLE_SHADOW);
+    }
+
+    /**
+     * Creates empty shadow tables to build a new generation of the smart dial tables in, while
+     * the current generation keeps serving lookups.
+     */
+    private void createShadowTables(SQLiteDatabase db) {
+        dropShadowTables(db);
+        createSmartDialTable(db, Tables.SMARTDIAL_TABLE_SHADOW);
+        createPrefixTable(db, Tables.PREFIX_TABLE_SHADOW);
+    }
+
+    /**
+     * Replaces the smart dial tables with the shadow tables in a single transaction, so that
+     * readers either see the previous or the new generation.
+     */
+    private void swapInShadowTables(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_TABLE);
+            db.execSQL("ALTER TABLE " + Tables.SMARTDIAL_TABLE_SHADOW + " RENAME TO " +
+                    Tables.SMARTDIAL_TABLE);
+            db.execSQL("ALTER TABLE " + Tables.PREFIX_TABLE_SHADOW + " RENAME TO " +
+                    Tables.PREFIX_TABLE);
+            /** Indices were dropped along with the previous generation. */
+            createSmartDialTableIndices(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Creates the indices on the smart dial tables, if they do not exist yet.
+     */
+    @VisibleForTesting
+    void createSmartDialTableIndices(SQLiteDatabase db) {
+        /** Creates index on contact_id for fast JOIN operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" + SmartDialDbColumns.CONTACT_ID  + ");");
+        /** Creates index on last_smartdial_update_time for fast SELECT operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" +
+                SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ");");
+        /** Creates index on sorting fields for fast sort operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_sort_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" +
+                SmartDialDbColumns.STARRED + ", " +
+                SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
+                SmartDialDbColumns.LAST_TIME_USED + ", " +
+                SmartDialDbColumns.TIMES_USED + ", " +
+                SmartDialDbColumns.IN_VISIBLE_GROUP +  ", " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+                SmartDialDbColumns.CONTACT_ID + ", " +
+                SmartDialDbColumns.IS_PRIMARY +
+                ");");
+        /** Creates index on prefix for fast SELECT operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_index ON " +
+                Tables.PREFIX_TABLE + " (" + PrefixColumns.PREFIX + ");");
+        /** Creates index on contact_id for fast JOIN operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON " +
+                Tables.PREFIX_TABLE + " (" + PrefixColumns.CONTACT_ID + ");");
     }
 
     @Override
@@ -407,11 +669,21 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             Log.e(TAG, "Malformed database version..recreating database");
         }
 
-        if (oldVersion < 4) {
+        /**
+         * Version 5 adds the normalized name column, version 6 the normalized number columns.
+         * Rebuilds the database from scratch.
+         */
+        if (oldVersion < 6) {
             setupTables(db);
             return;
         }
 
+        /** Version 7 adds the caller id cache. */
+        if (oldVersion < 7) {
+            createCallerIdCacheTable(db);
+            oldVersion = 7;
+        }
+
         if (oldVersion != DATABASE_VERSION) {
             throw new IllegalStateException(
                     "error upgrading the database to version " + DATABASE_VERSION);
@@ -470,21 +742,150 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    public long getPropertyAsLong(SQLiteDatabase db, String key, long defaultValue) {
+        final String stored = getProperty(db, key, "");
+        try {
+            return Long.parseLong(stored);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the contacts generation, which changes whenever an update of the smart dial
+     * database, or {@link #checkContactsGeneration}, finds that contacts were added, changed or
+     * removed. Data derived from contacts can be tagged with the generation it was read in, to
+     * tell whether it may be out of date.
+     */
+    public long getContactsGeneration() {
+        long generation = mContactsGeneration;
+        if (generation < 0) {
+            generation = getPropertyAsLong(getReadableDatabase(), CONTACTS_GENERATION_PROPERTY,
+                    0);
+            mContactsGeneration = generation;
+        }
+        return generation;
+    }
+
+    /**
+     * Returns the contacts generation, after moving to a new one if contacts were updated or
+     * deleted in the contacts provider since the last call. Unlike
+     * {@link #getContactsGeneration}, the result does not depend on the smart dial database being
+     * up to date, which it is only while the dialer is shown. Costs a query of a single row for
+     * each kind of change, and only writes to the database when contacts changed. Must not be
+     * called on the UI thread.
+     *
+     * @return The generation, or -1 if the contacts provider could not be queried.
+     */
+    public long checkContactsGeneration() {
+        final long lastUpdated = queryLatestTimestamp(Contacts.CONTENT_URI,
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP);
+        final long lastDeleted = queryLatestTimestamp(DeleteContactQuery.URI,
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP);
+        if (lastUpdated < 0 || lastDeleted < 0) {
+            return -1;
+        }
+        if (isLatestContactChange(getReadableDatabase(), lastUpdated, lastDeleted)) {
+            return getContactsGeneration();
+        }
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            /** Another thread may have seen the same change meanwhile. */
+            if (!isLatestContactChange(db, lastUpdated, lastDeleted)) {
+                setProperty(db, CONTACTS_LAST_UPDATED_PROPERTY, String.valueOf(lastUpdated));
+                setProperty(db, CONTACTS_LAST_DELETED_PROPERTY, String.valueOf(lastDeleted));
+                incrementContactsGeneration(db);
+            }
+            final long generation = getPropertyAsLong(db, CONTACTS_GENERATION_PROPERTY, 0);
+            db.setTransactionSuccessful();
+            return generation;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private boolean isLatestContactChange(SQLiteDatabase db, long lastUpdated,
+            long lastDeleted) {
+        return getPropertyAsLong(db, CONTACTS_LAST_UPDATED_PROPERTY, -1) == lastUpdated
+                && getPropertyAsLong(db, CONTACTS_LAST_DELETED_PROPERTY, -1) == lastDeleted;
+    }
+
+    /**
+     * Returns the latest value of a timestamp column of the contacts provider, 0 if there are no
+     * rows, or -1 if the query failed.
+     */
+    private long queryLatestTimestamp(Uri uri, String column) {
+        final Uri limitedUri = uri.buildUpon()
+                .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY, "1").build();
+        final Cursor cursor = mContext.getContentResolver().query(limitedUri,
+                new String[] {column}, null, null, column + " DESC");
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void incrementContactsGeneration(SQLiteDatabase db) {
+        final long generation = getPropertyAsLong(db, CONTACTS_GENERATION_PROPERTY, 0) + 1;
+        setProperty(db, CONTACTS_GENERATION_PROPERTY, String.valueOf(generation));
+        mContactsGeneration = generation;
+    }
+
     private void resetSmartDialLastUpdatedTime() {
         final SharedPreferences databaseLastUpdateSharedPref = mContext.getSharedPreferences(
                 DATABASE_LAST_CREATED_SHARED_PREF, Context.MODE_PRIVATE);
         final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
         editor.putLong(LAST_UPDATED_MILLIS, 0);
+        editor.putLong(LAST_CHANGED_MILLIS, 0);
         editor.commit();
     }
 
     /**
-     * Starts the database upgrade process in the background.
+     * Starts the database upgrade process in the background. Does nothing once
+     * {@link #startSmartDialUpdater()} has been called, since the database is then kept up to
+     * date as contacts change.
      */
     public void startSmartDialUpdateThread() {
+        synchronized (this) {
+            if (mSmartDialUpdater != null) {
+                return;
+            }
+        }
         new SmartDialUpdateAsyncTask().execute();
     }
 
+    /**
+     * Starts updating the smart dial database whenever contacts change, on a background thread.
+     * The first update runs right away, to catch up with the changes made while stopped. Each
+     * call must be balanced by a call to {@link #stopSmartDialUpdater()}, and the updater runs
+     * as long as any caller needs it.
+     */
+    public synchronized void startSmartDialUpdater() {
+        if (mSmartDialUpdaterUsers++ == 0) {
+            mSmartDialUpdater = new SmartDialUpdater(mContext, this);
+            mSmartDialUpdater.start();
+        }
+    }
+
+    /**
+     * Stops updating the smart dial database once the last caller of
+     * {@link #startSmartDialUpdater()} is done with it.
+     */
+    public synchronized void stopSmartDialUpdater() {
+        if (mSmartDialUpdaterUsers == 0) {
+            return;
+        }
+        if (--mSmartDialUpdaterUsers == 0) {
+            mSmartDialUpdater.stop();
+            mSmartDialUpdater = null;
+        }
+    }
+
     private class SmartDialUpdateAsyncTask extends AsyncTask {
         @Override
         protected Object doInBackground(Object[] objects) {
@@ -521,21 +922,29 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      *
      * @param db Database pointer to the dialer database.
      * @param last_update_time Time stamp of last update on the smartdial database
+     * @param deletedContactIds Set to add the ids of the deleted contacts to, or null.
+     * @return Number of rows removed from the smartdial table.
      */
-    private void removeDeletedContacts(SQLiteDatabase db, String last_update_time) {
+    private int removeDeletedContacts(SQLiteDatabase db, String last_update_time,
+            Set<Long> deletedContactIds) {
         final Cursor deletedContactCursor = mContext.getContentResolver().query(
                 DeleteContactQuery.URI,
                 DeleteContactQuery.PROJECTION,
                 DeleteContactQuery.SELECT_UPDATED_CLAUSE,
                 new String[] {last_update_time}, null);
 
+        int deletedRows = 0;
         db.beginTransaction();
         try {
             while (deletedContactCursor.moveToNext()) {
                 final Long deleteContactId =
                         deletedContactCursor.getLong(DeleteContactQuery.DELETED_CONTACT_ID);
-                db.delete(Tables.SMARTDIAL_TABLE,
+                final int rows = db.delete(Tables.SMARTDIAL_TABLE,
                         SmartDialDbColumns.CONTACT_ID + "=" + deleteContactId, null);
+                if (rows > 0 && deletedContactIds != null) {
+                    deletedContactIds.add(deleteContactId);
+                }
+                deletedRows += rows;
                 db.delete(Tables.PREFIX_TABLE,
                         PrefixColumns.CONTACT_ID + "=" + deleteContactId, null);
             }
@@ -545,6 +954,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             deletedContactCursor.close();
             db.endTransaction();
         }
+        return deletedRows;
     }
 
     /**
@@ -554,15 +964,16 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
      * @param db Database pointer to the dialer database.
      * @param last_update_time Time stamp of last successful update of the dialer database.
+     * @return Number of rows removed from the smartdial table.
      */
-    private void removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
+    private int removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
         db.delete(Tables.PREFIX_TABLE,
                 PrefixColumns.CONTACT_ID + " IN " +
                 "(SELECT " + SmartDialDbColumns.CONTACT_ID + " FROM " + Tables.SMARTDIAL_TABLE +
                 " WHERE " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " +
                 last_update_time + ")",
                 null);
-        db.delete(Tables.SMARTDIAL_TABLE,
+        return db.delete(Tables.SMARTDIAL_TABLE,
                 SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time, null);
     }
 
@@ -573,6 +984,35 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     void removeAllContacts(SQLiteDatabase db) {
         db.delete(Tables.SMARTDIAL_TABLE, null, null);
         db.delete(Tables.PREFIX_TABLE, null, null);
+        incrementContactsGeneration(db);
+        mSmartDialIndex = null;
+        mSmartDialQueryCache = null;
+        synchronized (this) {
+            mSmartDialSnapshot = null;
+            mSnapshotOpened = true;
+        }
+        final File snapshotFile = getSmartDialSnapshotFile();
+        if (snapshotFile != null) {
+            snapshotFile.delete();
+        }
+    }
+
+    /**
+     * Sets the listener notified of the progress of the updates of the smart dial database, or
+     * null to stop notifying.
+     */
+    public void setSmartDialUpdateListener(SmartDialUpdateListener listener) {
+        mSmartDialUpdateListener = listener;
+    }
+
+    /**
+     * Sets the number of threads generating prefixes while the smart dial tables are built from
+     * scratch, or 0 to generate them on the updating thread.
+     */
+    @VisibleForTesting
+    void setPrefixThreads(int prefixThreads) {
+        Preconditions.checkArgument(prefixThreads >= 0);
+        mPrefixThreads = prefixThreads;
     }
 
     /**
@@ -585,42 +1025,72 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Removes rows in the smartdial database that matches updated contacts.
+     * Inserts updated contacts as rows to the smartdial table.
      *
-     * @param db Database pointer to the smartdial database
+     * @param db Database pointer to the smartdial database.
      * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+     * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
      */
-    private void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
-        db.beginTransaction();
+    @VisibleForTesting
+    protected void insertUpdatedContactsAndNumberPrefix(SQLiteDatabase db,
+            Cursor updatedContactCursor, Long currentMillis) {
+        updatedContactCursor.moveToPosition(-1);
+        final SmartDialPrefixWriter prefixWriter = new SmartDialPrefixWriter(db,
+                Tables.PREFIX_TABLE, PREFIX_INSERT_BATCH_SIZE);
         try {
-            while (updatedContactCursor.moveToNext()) {
-                final Long contactId = updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
-
-                db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" +
-                        contactId, null);
-                db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" +
-                        contactId, null);
-            }
-
-            db.setTransactionSuccessful();
+            insertContactChunk(db, updatedContactCursor, currentMillis, Tables.SMARTDIAL_TABLE,
+                    prefixWriter, false, false, Integer.MAX_VALUE);
         } finally {
-            db.endTransaction();
+            prefixWriter.close();
         }
     }
 
     /**
-     * Inserts updated contacts as rows to the smartdial table.
+     * Inserts the rows of the next contacts of the cursor to the smartdial table, and the
+     * prefixes of their phone numbers to the prefix table, in a single transaction. The chunk
+     * ends before the first row of the (maxContacts + 1)-th contact, so rows belonging to the
+     * same contact must be adjacent in the cursor. This also lets name prefixes be generated
+     * once per contact, from its first row.
      *
      * @param db Database pointer to the smartdial database.
-     * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+     * @param updatedContactCursor Cursor pointing to the list of recently updated contacts,
+     * positioned before the first row of the chunk.
      * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+     * @param smartDialTable Name of the smartdial table to insert to.
+     * @param prefixWriter Writer for the prefix table, flushed before the transaction ends.
+     * @param replaceExisting Whether existing rows of the contacts should be removed first.
+     * @param withNamePrefixes Whether the prefixes of the contact names should be inserted too.
+     * @param maxContacts Maximum number of contacts to insert.
+     * @return Number of rows read from the cursor.
      */
-    @VisibleForTesting
-    protected void insertUpdatedContactsAndNumberPrefix(SQLiteDatabase db,
-            Cursor updatedContactCursor, Long currentMillis) {
+    private int insertContactChunk(SQLiteDatabase db, Cursor updatedContactCursor,
+            Long currentMillis, String smartDialTable, SmartDialPrefixWriter prefixWriter,
+            boolean replaceExisting, boolean withNamePrefixes, int maxContacts) {
+        final SmartDialContactChunk chunk = SmartDialContactChunk.read(updatedContactCursor,
+                mContext.getResources().getString(R.string.missing_name), maxContacts,
+                withNamePrefixes);
+        writeContactChunk(db, chunk.call(), currentMillis, smartDialTable, prefixWriter,
+                replaceExisting);
+        return chunk.getRowCount();
+    }
+
+    /**
+     * Writes a prepared chunk of contacts to the smartdial table, and their prefixes to the
+     * prefix table, in a single transaction.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param chunk Chunk whose prefixes have been generated.
+     * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+     * @param smartDialTable Name of the smartdial table to insert to.
+     * @param prefixWriter Writer for the prefix table, flushed before the transaction ends.
+     * @param replaceExisting Whether existing rows of the contacts should be removed first.
+     */
+    private void writeContactChunk(SQLiteDatabase db, SmartDialContactChunk chunk,
+            Long currentMillis, String smartDialTable, SmartDialPrefixWriter prefixWriter,
+            boolean replaceExisting) {
         db.beginTransaction();
         try {
-            final String sqlInsert = "INSERT INTO " + Tables.SMARTDIAL_TABLE + " (" +
+            final String sqlInsert = "INSERT INTO " + smartDialTable + " (" +
                     SmartDialDbColumns.DATA_ID + ", " +
                     SmartDialDbColumns.NUMBER + ", " +
                     SmartDialDbColumns.CONTACT_ID + ", " +
@@ -633,60 +1103,166 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                     SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
                     SmartDialDbColumns.IN_VISIBLE_GROUP+ ", " +
                     SmartDialDbColumns.IS_PRIMARY + ", " +
-                    SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ") " +
-                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                    SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ", " +
+                    SmartDialDbColumns.NORMALIZED_NAME + ", " +
+                    SmartDialDbColumns.NORMALIZED_NUMBER + ", " +
+                    SmartDialDbColumns.COUNTRY_CODE_OFFSET + ", " +
+                    SmartDialDbColumns.NANP_CODE_OFFSET + ") " +
+                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
             final SQLiteStatement insert = db.compileStatement(sqlInsert);
+            try {
+                for (SmartDialContactChunk.Row row : chunk.getRows()) {
+                    if (row.firstOfContact) {
+                        if (replaceExisting) {
+                            /** Updated contact information replaces the previous one. */
+                            db.delete(smartDialTable, SmartDialDbColumns.CONTACT_ID + "=" +
+                                    row.contactId, null);
+                            db.delete(prefixWriter.getTable(), PrefixColumns.CONTACT_ID + "=" +
+                                    row.contactId, null);
+                        }
+                        if (row.namePrefixes != null) {
+                            for (String namePrefix : row.namePrefixes) {
+                                prefixWriter.add(row.contactId, namePrefix);
+                            }
+                        }
+                    }
 
-            final String numberSqlInsert = "INSERT INTO " + Tables.PREFIX_TABLE + " (" +
-                    PrefixColumns.CONTACT_ID + ", " +
-                    PrefixColumns.PREFIX  + ") " +
-                    " VALUES (?, ?)";
-            final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
-
-            updatedContactCursor.moveToPosition(-1);
-            while (updatedContactCursor.moveToNext()) {
-                insert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
-                insert.bindString(2, updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER));
-                insert.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-                insert.bindString(4, updatedContactCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY));
-                final String displayName = updatedContactCursor.getString(
-                        PhoneQuery.PHONE_DISPLAY_NAME);
-                if (displayName == null) {
-                    insert.bindString(5, mContext.getResources().getString(R.string.missing_name));
-                } else {
-                    insert.bindString(5, displayName);
-                }
-                insert.bindLong(6, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
-                insert.bindLong(7, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
-                insert.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
-                insert.bindLong(9, updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED));
-                insert.bindLong(10, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
-                insert.bindLong(11, updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
-                insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
-                insert.bindLong(13, currentMillis);
-                insert.executeInsert();
-                insert.clearBindings();
-
-                final String contactPhoneNumber =
-                        updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-                final ArrayList<String> numberPrefixes =
-                        SmartDialPrefix.parseToNumberTokens(contactPhoneNumber);
-
-                for (String numberPrefix : numberPrefixes) {
-                    numberInsert.bindLong(1, updatedContactCursor.getLong(
-                            PhoneQuery.PHONE_CONTACT_ID));
-                    numberInsert.bindString(2, numberPrefix);
-                    numberInsert.executeInsert();
-                    numberInsert.clearBindings();
+                    insert.bindLong(1, row.dataId);
+                    insert.bindString(2, row.number);
+                    insert.bindLong(3, row.contactId);
+                    insert.bindString(4, row.lookupKey);
+                    insert.bindString(5, row.displayName);
+                    insert.bindLong(6, row.photoId);
+                    insert.bindLong(7, row.lastTimeUsed);
+                    insert.bindLong(8, row.timesUsed);
+                    insert.bindLong(9, row.starred);
+                    insert.bindLong(10, row.superPrimary);
+                    insert.bindLong(11, row.inVisibleGroup);
+                    insert.bindLong(12, row.primary);
+                    insert.bindLong(13, currentMillis);
+                    insert.bindString(14, row.normalizedName);
+                    if (row.normalizedNumber != null) {
+                        insert.bindString(15, row.normalizedNumber);
+                    }
+                    insert.bindLong(16, row.countryCodeOffset);
+                    insert.bindLong(17, row.nanpCodeOffset);
+                    insert.executeInsert();
+                    insert.clearBindings();
+
+                    for (String numberPrefix : row.numberPrefixes) {
+                        prefixWriter.add(row.contactId, numberPrefix);
+                    }
                 }
+            } finally {
+                insert.close();
             }
 
+            prefixWriter.flush();
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
     }
 
+    /**
+     * Inserts all contacts of the cursor in chunks of {@link #UPDATE_CHUNK_SIZE} contacts, each
+     * in its own transaction, so that readers are never locked out for the whole update. The
+     * prefixes of both the names and the phone numbers are inserted in the same pass.
+     *
+     * With prefix threads, the calling thread reads chunks from the cursor and hands them to a
+     * pool of threads generating their prefixes, while it writes the chunks that are ready to the
+     * database, in order. At most twice as many chunks as threads are in flight, which bounds
+     * the memory used when the threads get ahead of the database.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param updatedContactCursor Cursor pointing to the list of recently updated contacts,
+     * sorted by contact id.
+     * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+     * @param smartDialTable Name of the smartdial table to insert to.
+     * @param prefixTable Name of the prefix table to insert to.
+     * @param replaceExisting Whether existing rows of the contacts should be removed first.
+     * @param prefixThreads Number of threads generating prefixes, or 0 to generate them on the
+     * calling thread.
+     * @return Number of rows inserted to the smartdial table.
+     */
+    @VisibleForTesting
+    int insertContactsInChunks(SQLiteDatabase db, Cursor updatedContactCursor,
+            Long currentMillis, String smartDialTable, String prefixTable,
+            boolean replaceExisting, int prefixThreads) {
+        final long start = System.currentTimeMillis();
+        final int totalRows = updatedContactCursor.getCount();
+        final String missingName = mContext.getResources().getString(R.string.missing_name);
+        final int maxChunksInFlight = Math.max(1, prefixThreads * 2);
+        final ExecutorService executor = prefixThreads > 0
+                ? Executors.newFixedThreadPool(prefixThreads) : null;
+        final ArrayDeque<Future<SmartDialContactChunk>> inFlight =
+                new ArrayDeque<Future<SmartDialContactChunk>>(maxChunksInFlight);
+        int insertedRows = 0;
+        int chunk = 0;
+        updatedContactCursor.moveToPosition(-1);
+        final SmartDialPrefixWriter prefixWriter = new SmartDialPrefixWriter(db, prefixTable,
+                PREFIX_INSERT_BATCH_SIZE);
+        try {
+            boolean moreRows = true;
+            while (true) {
+                /** Keeps the threads busy before waiting on the oldest chunk. */
+                while (moreRows && inFlight.size() < maxChunksInFlight) {
+                    final SmartDialContactChunk next = SmartDialContactChunk.read(
+                            updatedContactCursor, missingName, UPDATE_CHUNK_SIZE, true);
+                    if (next.getRowCount() == 0) {
+                        moreRows = false;
+                    } else if (executor != null) {
+                        inFlight.add(executor.submit(next));
+                    } else {
+                        inFlight.add(Futures.immediateFuture(next.call()));
+                    }
+                }
+                if (inFlight.isEmpty()) {
+                    break;
+                }
+
+                final long chunkStart = System.currentTimeMillis();
+                final SmartDialContactChunk ready = getChunk(inFlight.poll());
+                writeContactChunk(db, ready, currentMillis, smartDialTable, prefixWriter,
+                        replaceExisting);
+                insertedRows += ready.getRowCount();
+                chunk++;
+                final SmartDialUpdateListener listener = mSmartDialUpdateListener;
+                if (listener != null) {
+                    listener.onSmartDialUpdateProgress(insertedRows, totalRows);
+                }
+                if (DEBUG) {
+                    Log.v(TAG, "Smart dial chunk " + chunk + ": " + ready.getRowCount() +
+                            " rows in " + (System.currentTimeMillis() - chunkStart) + " ms, " +
+                            insertedRows + "/" + totalRows + " rows done");
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            prefixWriter.close();
+        }
+        if (DEBUG) {
+            Log.v(TAG, "Inserted " + insertedRows + " rows with " + prefixThreads +
+                    " prefix threads in " + (System.currentTimeMillis() - start) + " ms");
+            Log.v(TAG, "Inserted " + prefixWriter.getRowCount() + " prefixes at " +
+                    prefixWriter.getRowsPerSecond() + " rows/s");
+        }
+        return insertedRows;
+    }
+
+    /**
+     * Waits for the prefixes of a chunk to be generated.
+     */
+    private static SmartDialContactChunk getChunk(Future<SmartDialContactChunk> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
     /**
      * Inserts prefixes of contact names to the prefix table.
      *
@@ -699,30 +1275,26 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
         final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
 
+        final SmartDialPrefixWriter prefixWriter = new SmartDialPrefixWriter(db,
+                Tables.PREFIX_TABLE, PREFIX_INSERT_BATCH_SIZE);
         db.beginTransaction();
         try {
-            final String sqlInsert = "INSERT INTO " + Tables.PREFIX_TABLE + " (" +
-                    PrefixColumns.CONTACT_ID + ", " +
-                    PrefixColumns.PREFIX  + ") " +
-                    " VALUES (?, ?)";
-            final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
             while (nameCursor.moveToNext()) {
                 /** Computes a list of prefixes of a given contact name. */
-                final ArrayList<String> namePrefixes =
-                        SmartDialPrefix.generateNamePrefixes(nameCursor.getString(columnIndexName));
+                final ArrayList<String> namePrefixes = SmartDialContactChunk.generateNamePrefixes(
+                        nameCursor.getString(columnIndexName));
 
+                final long contactId = nameCursor.getLong(columnIndexContactId);
                 for (String namePrefix : namePrefixes) {
-                    insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
-                    insert.bindString(2, namePrefix);
-                    insert.executeInsert();
-                    insert.clearBindings();
+                    prefixWriter.add(contactId, namePrefix);
                 }
             }
 
+            prefixWriter.flush();
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            prefixWriter.close();
         }
     }
 
@@ -732,6 +1304,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      * records in smartdial database and prefix database accordingly.
      * It also queries the deleted contact database to remove newly deleted contacts since last
      * update.
+     *
+     * Contacts are written in chunks of {@link #UPDATE_CHUNK_SIZE} per transaction. When the
+     * database is built from scratch, the new generation is written to shadow tables that are
+     * swapped in at the end, so lookups keep being answered from the previous generation.
+     * Otherwise, only the changed contacts are applied to the in-memory index and query cache,
+     * and nothing is rebuilt when no contact has changed.
      */
     public void updateSmartDialDatabase() {
         final SQLiteDatabase db = getWritableDatabase();
@@ -752,11 +1330,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 Log.v(TAG, "Last updated at " + lastUpdateMillis);
             }
             /** Queries the contact database to get contacts that have been updated since the last
-             * update time.
+             * update time. Rows of a contact are kept together so that each chunk contains
+             * complete contacts.
              */
             final Cursor updatedContactCursor = mContext.getContentResolver().query(PhoneQuery.URI,
                     PhoneQuery.PROJECTION, PhoneQuery.SELECT_UPDATED_CLAUSE,
-                    new String[]{lastUpdateMillis}, null);
+                    new String[]{lastUpdateMillis}, Phone.CONTACT_ID);
 
             /** Sets the time after querying the database as the current update time. */
             final Long currentMillis = System.currentTimeMillis();
@@ -772,113 +1351,411 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 return;
             }
 
-            /** Prevents the app from reading the dialer database when updating. */
-            sInUpdate.getAndSet(true);
-
-            /** Removes contacts that have been deleted. */
-            removeDeletedContacts(db, lastUpdateMillis);
-            removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+            /** If the database did not exist before, builds a new generation from scratch. */
+            final boolean fullRebuild = lastUpdateMillis.equals("0");
+            final String smartDialTable;
+            final String prefixTable;
+            int changedRows = 0;
+            /** Contacts whose rows are replaced or removed, or null if unknown. */
+            Set<Long> changedContactIds = null;
+            if (fullRebuild) {
+                smartDialTable = Tables.SMARTDIAL_TABLE_SHADOW;
+                prefixTable = Tables.PREFIX_TABLE_SHADOW;
+                createShadowTables(db);
+            } else {
+                smartDialTable = Tables.SMARTDIAL_TABLE;
+                prefixTable = Tables.PREFIX_TABLE;
+
+                /** Removes contacts that have been deleted. */
+                changedContactIds = new HashSet<Long>();
+                changedRows += removeDeletedContacts(db, lastUpdateMillis, changedContactIds);
+                if (mMayHaveCorruptedContacts) {
+                    final int corruptedRows =
+                            removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+                    if (corruptedRows > 0) {
+                        changedContactIds = null;
+                    }
+                    changedRows += corruptedRows;
+                }
+                if (changedContactIds != null) {
+                    addContactIds(updatedContactCursor, changedContactIds);
+                }
 
-            if (DEBUG) {
-                stopWatch.lap("Finished deleting deleted entries");
+                if (DEBUG) {
+                    stopWatch.lap("Finished deleting deleted entries");
+                }
             }
 
+            /** Cleared once the update has completed. */
+            mMayHaveCorruptedContacts = true;
             try {
-                /** If the database did not exist before, jump through deletion as there is nothing
-                 * to delete.
+                /** Inserts recently updated contacts to the smartdial database, replacing the
+                 * previous information of these contacts, along with the prefixes of their names
+                 * and numbers.
                  */
-                if (!lastUpdateMillis.equals("0")) {
-                    /** Removes contacts that have been updated. Updated contact information will be
-                     * inserted later.
-                     */
-                    removeUpdatedContacts(db, updatedContactCursor);
-                    if (DEBUG) {
-                        stopWatch.lap("Finished deleting updated entries");
-                    }
-                }
-
-                /** Inserts recently updated contacts to the smartdial database.*/
-                insertUpdatedContactsAndNumberPrefix(db, updatedContactCursor, currentMillis);
+                changedRows += insertContactsInChunks(db, updatedContactCursor, currentMillis,
+                        smartDialTable, prefixTable, !fullRebuild,
+                        fullRebuild ? mPrefixThreads : 0);
                 if (DEBUG) {
                     stopWatch.lap("Finished building the smart dial table");
                 }
             } finally {
-                /** Inserts prefixes of phone numbers into the prefix table.*/
                 updatedContactCursor.close();
             }
 
-            /** Gets a list of distinct contacts which have been updated, and adds the name prefixes
-             * of these contacts to the prefix table.
-             */
-            final Cursor nameCursor = db.rawQuery(
-                    "SELECT DISTINCT " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " + SmartDialDbColumns.CONTACT_ID +
-                    " FROM " + Tables.SMARTDIAL_TABLE +
-                    " WHERE " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME +
-                    " = " + Long.toString(currentMillis),
-                    new String[] {});
-            if (DEBUG) {
-                stopWatch.lap("Queried the smart dial table for contact names");
+            /** Only refreshes indices and statistics when the update warrants it. */
+            final SmartDialMaintenancePolicy maintenance =
+                    SmartDialMaintenancePolicy.load(this, db);
+            maintenance.recordChangedRows(changedRows);
+            if (fullRebuild) {
+                /** Atomically replaces the previous generation, and indexes the new one. */
+                swapInShadowTables(db);
+                maintenance.onIndicesCreated();
+            } else if (maintenance.needsIndices()) {
+                createSmartDialTableIndices(db);
+                maintenance.onIndicesCreated();
+                if (DEBUG) {
+                    stopWatch.lap(TAG + "Finished recreating index");
+                }
             }
 
-            if (nameCursor != null) {
-                try {
-                    /** Inserts prefixes of names into the prefix table.*/
-                    insertNamePrefixes(db, nameCursor);
-                    if (DEBUG) {
-                        stopWatch.lap("Finished building the name prefix table");
-                    }
-                } finally {
-                    nameCursor.close();
+            if (fullRebuild || maintenance.needsAnalyze()) {
+                /** Updates the database index statistics. Analyzing a table also analyzes all
+                 * of its indices.
+                 */
+                db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
+                db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
+                maintenance.onAnalyzed(
+                        (int) DatabaseUtils.queryNumEntries(db, Tables.SMARTDIAL_TABLE));
+                if (DEBUG) {
+                    stopWatch.lap(TAG + "Finished updating index stats");
                 }
             }
-
-            /** Creates index on contact_id for fast JOIN operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" + SmartDialDbColumns.CONTACT_ID  + ");");
-            /** Creates index on last_smartdial_update_time for fast SELECT operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" +
-                    SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ");");
-            /** Creates index on sorting fields for fast sort operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_sort_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" +
-                    SmartDialDbColumns.STARRED + ", " +
-                    SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
-                    SmartDialDbColumns.LAST_TIME_USED + ", " +
-                    SmartDialDbColumns.TIMES_USED + ", " +
-                    SmartDialDbColumns.IN_VISIBLE_GROUP +  ", " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
-                    SmartDialDbColumns.CONTACT_ID + ", " +
-                    SmartDialDbColumns.IS_PRIMARY +
-                    ");");
-            /** Creates index on prefix for fast SELECT operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_index ON " +
-                    Tables.PREFIX_TABLE + " (" + PrefixColumns.PREFIX + ");");
-            /** Creates index on contact_id for fast JOIN operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON " +
-                    Tables.PREFIX_TABLE + " (" + PrefixColumns.CONTACT_ID + ");");
-
+            maintenance.save(this, db);
             if (DEBUG) {
-                stopWatch.lap(TAG + "Finished recreating index");
+                stopWatch.stopAndLog(TAG + "Finished updating databases, " + changedRows +
+                        " rows changed", 0);
             }
 
-            /** Updates the database index statistics.*/
-            db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
-            db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
-            db.execSQL("ANALYZE smartdial_contact_id_index");
-            db.execSQL("ANALYZE smartdial_last_update_index");
-            db.execSQL("ANALYZE nameprefix_index");
-            db.execSQL("ANALYZE nameprefix_contact_id_index");
-            if (DEBUG) {
-                stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
+            /** Data derived from the previous contacts is now out of date. */
+            final boolean contentChanged = fullRebuild || changedRows > 0;
+            if (contentChanged) {
+                incrementContactsGeneration(db);
             }
 
-            sInUpdate.getAndSet(false);
-
             final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
             editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
+            if (contentChanged) {
+                editor.putLong(LAST_CHANGED_MILLIS, currentMillis);
+            }
             editor.commit();
+            mMayHaveCorruptedContacts = false;
+
+            /** Brings the in-memory index and cache in line with the updated tables. */
+            if (fullRebuild) {
+                rebuildSmartDialIndex(db);
+                rebuildSmartDialQueryCache(db);
+            } else if (contentChanged || mSmartDialIndex == null) {
+                applySmartDialChanges(db, changedContactIds);
+            } else if (!isSmartDialQueryCacheValid(System.currentTimeMillis())) {
+                rebuildSmartDialQueryCache(db);
+            }
+            releaseSmartDialSnapshot();
+            /** The snapshot written after the last change still matches the tables. */
+            if (contentChanged) {
+                exportSmartDialSnapshot(db, currentMillis);
+            }
+        }
+    }
+
+    /**
+     * Adds the contact ids of the rows of the cursor to the set.
+     */
+    private static void addContactIds(Cursor updatedContactCursor, Set<Long> contactIds) {
+        updatedContactCursor.moveToPosition(-1);
+        while (updatedContactCursor.moveToNext()) {
+            contactIds.add(updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+        }
+    }
+
+    /**
+     * Applies an incremental update to the in-memory index and query cache, instead of
+     * rebuilding them from the tables. Only the queries of the cache whose candidates changed
+     * are looked up again. Both are rebuilt if the changes are unknown or too large.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param changedContactIds Ids of the contacts whose rows have been replaced or removed, or
+     * null if unknown.
+     */
+    @VisibleForTesting
+    void applySmartDialChanges(SQLiteDatabase db, Set<Long> changedContactIds) {
+        final SmartDialIndex previousIndex = mSmartDialIndex;
+        final SmartDialQueryCache previousCache = mSmartDialQueryCache;
+        if (previousIndex == null || changedContactIds == null
+                || !previousIndex.canApplyChanges(changedContactIds.size())) {
+            rebuildSmartDialIndex(db);
+            rebuildSmartDialQueryCache(db);
+            return;
+        }
+        final StopWatch stopWatch = DEBUG ? StopWatch.start("Updating smart dial index") : null;
+        /** The lookups below must not be answered by the previous cache. */
+        mSmartDialQueryCache = null;
+        SmartDialIndex index = null;
+        try {
+            index = previousIndex.withChangedContacts(db, changedContactIds);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to update smart dial index", e);
+        }
+        mSmartDialIndex = index;
+        if (DEBUG) {
+            stopWatch.lap("Applied " + changedContactIds.size() + " changed contacts");
+        }
+
+        final long currentTimeMillis = System.currentTimeMillis();
+        if (index == null || previousCache == null
+                || previousCache.getValidUntilMillis() <= currentTimeMillis) {
+            rebuildSmartDialQueryCache(db);
+            return;
+        }
+        SmartDialQueryCache cache = null;
+        try {
+            cache = previousCache.update(previousIndex, index, newSmartDialQueryCacheLookup(),
+                    getNextRankingChangeMillis(db, currentTimeMillis, changedContactIds));
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to update smart dial cache", e);
+        }
+        mSmartDialQueryCache = cache;
+        if (DEBUG) {
+            stopWatch.stopAndLog(TAG + "Finished updating smart dial index and cache", 0);
+        }
+    }
+
+    /**
+     * Sets whether a {@link SmartDialSnapshot} is written after each update, and used to answer
+     * lookups after the process starts. Enabled by default.
+     */
+    public void setSmartDialSnapshotEnabled(boolean enabled) {
+        mSnapshotEnabled = enabled;
+    }
+
+    /**
+     * Returns the file holding the snapshot of the smart dial database, or null for an
+     * in-memory database.
+     */
+    private File getSmartDialSnapshotFile() {
+        final String databaseName = getDatabaseName();
+        if (databaseName == null) {
+            return null;
+        }
+        return new File(mContext.getDatabasePath(databaseName).getPath() + SNAPSHOT_FILE_SUFFIX);
+    }
+
+    /**
+     * Releases a snapshot opened earlier, since the index serves lookups from now on.
+     */
+    private synchronized void releaseSmartDialSnapshot() {
+        mSmartDialSnapshot = null;
+        mSnapshotOpened = true;
+    }
+
+    /**
+     * Writes the snapshot of the index that has just been updated.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param generation Time of the update of the smart dial database.
+     */
+    private void exportSmartDialSnapshot(SQLiteDatabase db, long generation) {
+        final File file = getSmartDialSnapshotFile();
+        final SmartDialIndex index = mSmartDialIndex;
+        if (file == null) {
+            return;
+        }
+        if (!mSnapshotEnabled || index == null) {
+            file.delete();
+            return;
+        }
+        final StopWatch stopWatch = DEBUG ? StopWatch.start("Writing smart dial snapshot") : null;
+        try {
+            SmartDialSnapshot.write(index, db, generation, file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write smart dial snapshot", e);
+            file.delete();
+        }
+        if (DEBUG) {
+            stopWatch.stopAndLog(TAG + "Finished writing smart dial snapshot", 0);
+        }
+    }
+
+    /**
+     * Returns the snapshot of the last update, if it matches the smart dial database. The file
+     * is only opened by the first call, since the index replaces it after the next update. It is
+     * opened without holding the lock of the helper, which the UI thread takes to start and stop
+     * the updater.
+     */
+    private SmartDialSnapshot getSmartDialSnapshot() {
+        synchronized (this) {
+            if (mSnapshotOpened) {
+                return mSmartDialSnapshot;
+            }
+        }
+        final SmartDialSnapshot snapshot = openSmartDialSnapshot();
+        synchronized (this) {
+            /** Unless an update or another lookup got there first. */
+            if (!mSnapshotOpened) {
+                mSmartDialSnapshot = snapshot;
+                mSnapshotOpened = true;
+            }
+            return mSmartDialSnapshot;
+        }
+    }
+
+    /**
+     * Opens the snapshot of the last update, if it matches the smart dial database. A damaged
+     * snapshot is deleted, so that lookups fall back to SQLite until the next update writes a
+     * valid one.
+     */
+    private SmartDialSnapshot openSmartDialSnapshot() {
+        final File file = getSmartDialSnapshotFile();
+        if (!mSnapshotEnabled || file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            final SmartDialSnapshot snapshot = SmartDialSnapshot.open(file);
+            if (snapshot == null) {
+                Log.w(TAG, "Discarding invalid smart dial snapshot");
+                file.delete();
+                return null;
+            }
+            final SharedPreferences prefs = mContext.getSharedPreferences(
+                    DATABASE_LAST_CREATED_SHARED_PREF, Context.MODE_PRIVATE);
+            final long lastChangedMillis = prefs.getLong(LAST_CHANGED_MILLIS,
+                    prefs.getLong(LAST_UPDATED_MILLIS, 0));
+            /** A snapshot written before the last change would not match the database. */
+            return snapshot.getGeneration() == lastChangedMillis ? snapshot : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open smart dial snapshot", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stops serving lookups from a snapshot found to be damaged, and deletes its file.
+     */
+    private void discardSmartDialSnapshot(SmartDialSnapshot snapshot) {
+        synchronized (this) {
+            if (mSmartDialSnapshot != snapshot) {
+                return;
+            }
+            mSmartDialSnapshot = null;
+        }
+        Log.w(TAG, "Discarding damaged smart dial snapshot");
+        final File file = getSmartDialSnapshotFile();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Rebuilds the in-memory smart dial index from the smartdial and prefix tables. Lookups fall
+     * back to querying the database if the index cannot be built.
+     *
+     * @param db Database pointer to the smartdial database.
+     */
+    @VisibleForTesting
+    void rebuildSmartDialIndex(SQLiteDatabase db) {
+        final StopWatch stopWatch = DEBUG ? StopWatch.start("Building smart dial index") : null;
+        SmartDialIndex index = null;
+        try {
+            index = SmartDialIndex.build(db);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to build smart dial index", e);
+        }
+        mSmartDialIndex = index;
+        if (DEBUG && index != null) {
+            Log.v(TAG, "Smart dial index: " + index.getEntryCount() + " entries, " +
+                    index.getContactCount() + " contacts, " + index.getNodeCount() + " nodes");
+            stopWatch.stopAndLog(TAG + "Finished building smart dial index", 0);
+        }
+    }
+
+    /**
+     * Runs the lookups of every one and two digit query, so that the first keystrokes typed on
+     * the dialpad are answered from memory.
+     *
+     * @param db Database pointer to the smartdial database.
+     */
+    @VisibleForTesting
+    void rebuildSmartDialQueryCache(SQLiteDatabase db) {
+        if (SprdUtils.UNIVERSE_UI_SUPPORT) {
+            return;
+        }
+        final StopWatch stopWatch = DEBUG ? StopWatch.start("Building smart dial cache") : null;
+        /** The lookups below must not be answered by the previous cache. */
+        mSmartDialQueryCache = null;
+        final long currentTimeMillis = System.currentTimeMillis();
+        SmartDialQueryCache cache = null;
+        try {
+            cache = SmartDialQueryCache.build(newSmartDialQueryCacheLookup(),
+                    getNextRankingChangeMillis(db, currentTimeMillis, null));
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to build smart dial cache", e);
+        }
+        mSmartDialQueryCache = cache;
+        if (DEBUG) {
+            stopWatch.stopAndLog(TAG + "Finished building smart dial cache", 0);
+        }
+    }
+
+    private boolean isSmartDialQueryCacheValid(long currentTimeMillis) {
+        final SmartDialQueryCache cache = mSmartDialQueryCache;
+        return cache != null && cache.getValidUntilMillis() > currentTimeMillis;
+    }
+
+    /**
+     * Returns the lookup computing the results of the query cache, against the current index.
+     */
+    private SmartDialQueryCache.Lookup newSmartDialQueryCacheLookup() {
+        return new SmartDialQueryCache.Lookup() {
+            @Override
+            public ArrayList<ContactNumber> getLooseMatches(String query,
+                    SmartDialSearchSession session) {
+                return DialerDatabaseHelper.this.getLooseMatches(query,
+                        new SmartDialNameMatcher(query, SmartDialPrefix.getMap()), session);
+            }
+        };
+    }
+
+    /**
+     * Returns the first time after currentTimeMillis at which a contact moves to another bucket
+     * of {@link SmartDialSortingOrder#SORT_BY_DATA_USAGE}, or Long.MAX_VALUE if none does.
+     *
+     * @param contactIds Contacts to consider, or null for all of them.
+     */
+    private long getNextRankingChangeMillis(SQLiteDatabase db, long currentTimeMillis,
+            Set<Long> contactIds) {
+        if (contactIds != null && contactIds.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        final String lastTimeUsed = SmartDialDbColumns.LAST_TIME_USED;
+        final String currentUntil = "(" + lastTimeUsed + " + " +
+                SmartDialSortingOrder.LAST_TIME_USED_CURRENT_MS + ")";
+        final String recentUntil = "(" + lastTimeUsed + " + " +
+                SmartDialSortingOrder.LAST_TIME_USED_RECENT_MS + ")";
+        final Cursor cursor = db.rawQuery("SELECT MIN(CASE" +
+                " WHEN " + currentUntil + " > ?1 THEN " + currentUntil +
+                " WHEN " + recentUntil + " > ?1 THEN " + recentUntil +
+                " END) FROM " + Tables.SMARTDIAL_TABLE +
+                (contactIds == null ? "" : " WHERE " + SmartDialDbColumns.CONTACT_ID +
+                        " IN (" + TextUtils.join(",", contactIds) + ")"),
+                new String[] {Long.toString(currentTimeMillis)});
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return Long.MAX_VALUE;
+        } finally {
+            cursor.close();
         }
     }
 
@@ -891,25 +1768,83 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      */
     public ArrayList<ContactNumber>  getLooseMatches(String query,
             SmartDialNameMatcher nameMatcher) {
-        final boolean inUpdate = sInUpdate.get();
-        /* SPRD: modify for Universe UI
-         * @Orig:if (inUpdate) {
-         * @ { */
-        if (inUpdate && !SprdUtils.UNIVERSE_UI_SUPPORT) {
-            /* @}*/
-            return Lists.newArrayList();
+        return getLooseMatches(query, nameMatcher, null);
+    }
+
+    /**
+     * Returns a list of candidate contacts where the query is a prefix of the dialpad index of
+     * the contact's name or phone number. When the query extends the previous query of the
+     * session, the previous candidates are narrowed down instead of running a new lookup.
+     *
+     * @param query The prefix of a contact's dialpad index.
+     * @param session Session remembering the previous lookup, or null.
+     * @return A list of top candidate contacts that will be suggested to user to match their input.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, SmartDialSearchSession session) {
+        return getLooseMatches(query, nameMatcher, session, null);
+    }
+
+    /**
+     * Same as {@link #getLooseMatches(String, SmartDialNameMatcher, SmartDialSearchSession)},
+     * but stops early once the lookup has been canceled, e.g. because the user typed another
+     * digit.
+     *
+     * @param cancellationSignal Signal to cancel the lookup, or null.
+     * @throws OperationCanceledException If the lookup has been canceled.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, SmartDialSearchSession session,
+            CancellationSignal cancellationSignal) {
+        /** Updates are written in short transactions or to shadow tables, so the database can
+         * be read at any time.
+         */
+
+        /** Serves the first keystrokes from the precomputed results. */
+        final SmartDialQueryCache cache = mSmartDialQueryCache;
+        if (cache != null && !SprdUtils.UNIVERSE_UI_SUPPORT) {
+            /** The session continues from the cached lookup, so that the next keystroke narrows
+             * down its candidates.
+             */
+            final ArrayList<ContactNumber> cached =
+                    cache.get(query, System.currentTimeMillis(), session);
+            if (cached != null) {
+                return cached;
+            }
         }
 
-        final SQLiteDatabase db = getReadableDatabase();
+        /** Serves the lookup from memory if the index is available.*/
+        final SmartDialIndex index = mSmartDialIndex;
+        if (index != null && !SprdUtils.UNIVERSE_UI_SUPPORT) {
+            return index.getLooseMatches(query, nameMatcher, System.currentTimeMillis(),
+                    MAX_ENTRIES, session, cancellationSignal);
+        }
+        /** Right after the process starts, serves the lookup from the last snapshot. */
+        final SmartDialSnapshot snapshot =
+                SprdUtils.UNIVERSE_UI_SUPPORT ? null : getSmartDialSnapshot();
+        if (snapshot != null) {
+            if (session != null) {
+                session.reset();
+            }
+            final ArrayList<ContactNumber> matches = snapshot.getLooseMatches(query, nameMatcher,
+                    System.currentTimeMillis(), MAX_ENTRIES, cancellationSignal);
+            if (matches != null) {
+                return matches;
+            }
+            discardSmartDialSnapshot(snapshot);
+        }
+        /** The database path has no candidates to narrow down. */
+        if (session != null) {
+            session.reset();
+        }
 
-        /** Uses SQL query wildcard '%' to represent prefix matching.*/
-        final String looseQuery = query + "%";
+        final SQLiteDatabase db = getReadableDatabase();
 
         final ArrayList<ContactNumber> result = Lists.newArrayList();
 
         final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
 
-        final String currentTimeStamp = Long.toString(System.currentTimeMillis());
+        final long currentTimeMillis = System.currentTimeMillis();
 
         /** Queries the database to find contacts that have an index matching the query prefix. */
         final Cursor cursor;
@@ -936,21 +1871,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 cursor = null;
             }
         } else {
-            cursor = db.rawQuery("SELECT " +
-                    SmartDialDbColumns.DATA_ID + ", " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
-                    SmartDialDbColumns.PHOTO_ID + ", " +
-                    SmartDialDbColumns.NUMBER + ", " +
-                    SmartDialDbColumns.CONTACT_ID + ", " +
-                    SmartDialDbColumns.LOOKUP_KEY +
-                    " FROM " + Tables.SMARTDIAL_TABLE + " WHERE " +
-                    SmartDialDbColumns.CONTACT_ID + " IN " +
-                    " (SELECT " + PrefixColumns.CONTACT_ID +
-                    " FROM " + Tables.PREFIX_TABLE +
-                    " WHERE " + Tables.PREFIX_TABLE + "." + PrefixColumns.PREFIX +
-                    " LIKE '" + looseQuery + "')" +
-                    " ORDER BY " + SmartDialSortingOrder.SORT_ORDER,
-                    new String[] {currentTimeStamp});
+            cursor = db.rawQuery(LOOSE_MATCH_QUERY,
+                    new String[] {query, getPrefixUpperBound(query)}, cancellationSignal);
         }
         /* SPRD: return directly when cursor is null @{ */
         if(cursor == null){
@@ -963,6 +1885,18 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             stopWatch.lap("Prefix query completed");
         }
 
+        if (!SprdUtils.UNIVERSE_UI_SUPPORT) {
+            try {
+                return rankLooseMatches(cursor, query, nameMatcher, currentTimeMillis,
+                        cancellationSignal);
+            } finally {
+                cursor.close();
+                if (DEBUG) {
+                    stopWatch.stopAndLog(TAG + "Finished ranking cursor", 0);
+                }
+            }
+        }
+
         final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
         int counter = 0;
         try {
@@ -990,7 +1924,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                  * If the contact has either the name or number that matches the query, add to the
                  * result.
                  */
-                final boolean nameMatches = nameMatcher.matches(displayName);
+                final boolean nameMatches = nameMatcher.matchesInPlace(displayName);
                 final boolean numberMatches =
                         (nameMatcher.matchesNumber(phoneNumber, query) != null);
                 if (nameMatches || numberMatches || SprdUtils.UNIVERSE_UI_SUPPORT) {//SPRD:add for match search index
@@ -1013,4 +1947,60 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
         return result;
     }
+
+    /**
+     * Returns the smallest string greater than every string starting with the prefix, so that
+     * the strings starting with it are exactly those in [prefix, upper bound).
+     */
+    @VisibleForTesting
+    static String getPrefixUpperBound(String prefix) {
+        final int last = prefix.length() - 1;
+        if (last < 0 || prefix.charAt(last) == Character.MAX_VALUE) {
+            /** Sorts after every prefix made of dialpad characters. */
+            return prefix + Character.MAX_VALUE;
+        }
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    /**
+     * Reads the unordered rows of the smartdial table matching the query prefix, and returns the
+     * top contacts in {@link SmartDialSortingOrder#SORT_ORDER}. Ranking in a bounded heap instead
+     * of sorting every row in SQLite keeps short queries such as a single digit cheap.
+     */
+    private ArrayList<ContactNumber> rankLooseMatches(Cursor cursor, String query,
+            SmartDialNameMatcher nameMatcher, long currentTimeMillis,
+            CancellationSignal cancellationSignal) {
+        final SmartDialRanker ranker = new SmartDialRanker(MAX_ENTRIES, currentTimeMillis);
+        while (cursor.moveToNext()) {
+            if (cancellationSignal != null
+                    && (cursor.getPosition() & SmartDialIndex.CANCELLATION_CHECK_MASK) == 0) {
+                cancellationSignal.throwIfCanceled();
+            }
+            final boolean starred = cursor.getInt(6) != 0;
+            final boolean superPrimary = cursor.getInt(7) != 0;
+            final long lastTimeUsed = cursor.getLong(8);
+            final int timesUsed = cursor.getInt(9);
+            final boolean inVisibleGroup = cursor.getInt(10) != 0;
+            /** Most rows are rejected on these columns, before their strings are read. */
+            if (!ranker.mayBeCompetitive(starred, superPrimary, lastTimeUsed, timesUsed,
+                    inVisibleGroup)) {
+                continue;
+            }
+            final SmartDialIndex.Entry entry = new SmartDialIndex.Entry(0,
+                    new ContactNumber(cursor.getLong(4), cursor.getLong(0), cursor.getString(1),
+                            cursor.getString(3), cursor.getString(5), cursor.getLong(2)),
+                    starred, superPrimary, lastTimeUsed, timesUsed, inVisibleGroup,
+                    cursor.getInt(11) != 0, cursor.getString(12), cursor.getString(13),
+                    cursor.getInt(14), cursor.getInt(15));
+            if (!ranker.isCompetitive(entry)) {
+                continue;
+            }
+            final boolean nameMatches = entry.matchesName(nameMatcher);
+            final boolean numberMatches = entry.matchesNumber(nameMatcher, query);
+            if (nameMatches || numberMatches) {
+                ranker.offer(entry);
+            }
+        }
+        return ranker.getResults();
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.android.dialer.database.DialerDatabaseHelper.PhoneQuery;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+import com.android.dialer.dialpad.SmartDialPrefix;
+import com.android.dialer.dialpad.SmartDialPrefix.PhoneNumberTokens;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Rows of consecutive contacts read from the contacts provider, together with the smart dial
+ * prefixes generated for them.
+ *
+ * Reading the rows and writing them to the smart dial tables has to happen on the thread that
+ * owns the cursor and the database, but generating the prefixes is pure computation. A chunk is
+ * therefore read, then prepared on any thread with {@link #call()}, then written.
+ */
+final class SmartDialContactChunk implements Callable<SmartDialContactChunk> {
+
+    /** One row of {@link PhoneQuery}. */
+    static final class Row {
+        final long dataId;
+        final String number;
+        final long contactId;
+        final String lookupKey;
+        final String displayName;
+        final long photoId;
+        final long lastTimeUsed;
+        final int timesUsed;
+        final int starred;
+        final int superPrimary;
+        final int inVisibleGroup;
+        final int primary;
+        /** Whether this is the first row of its contact. */
+        final boolean firstOfContact;
+
+        String normalizedName;
+        /** Number normalized to dialpad digits, and the offsets of its tokens in it. */
+        String normalizedNumber;
+        int countryCodeOffset;
+        int nanpCodeOffset;
+        /** Prefixes of the contact name, only set on the first row of the contact. */
+        ArrayList<String> namePrefixes;
+        ArrayList<String> numberPrefixes;
+
+        Row(Cursor cursor, String displayName, boolean firstOfContact) {
+            this.dataId = cursor.getLong(PhoneQuery.PHONE_ID);
+            this.number = cursor.getString(PhoneQuery.PHONE_NUMBER);
+            this.contactId = cursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
+            this.lookupKey = cursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
+            this.displayName = displayName;
+            this.photoId = cursor.getLong(PhoneQuery.PHONE_PHOTO_ID);
+            this.lastTimeUsed = cursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED);
+            this.timesUsed = cursor.getInt(PhoneQuery.PHONE_TIMES_USED);
+            this.starred = cursor.getInt(PhoneQuery.PHONE_STARRED);
+            this.superPrimary = cursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY);
+            this.inVisibleGroup = cursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP);
+            this.primary = cursor.getInt(PhoneQuery.PHONE_IS_PRIMARY);
+            this.firstOfContact = firstOfContact;
+        }
+    }
+
+    private final ArrayList<Row> mRows;
+    private final boolean mWithNamePrefixes;
+
+    private SmartDialContactChunk(ArrayList<Row> rows, boolean withNamePrefixes) {
+        mRows = rows;
+        mWithNamePrefixes = withNamePrefixes;
+    }
+
+    /**
+     * Reads the rows of the next contacts of the cursor. The chunk ends before the first row of
+     * the (maxContacts + 1)-th contact, so rows belonging to the same contact must be adjacent in
+     * the cursor.
+     *
+     * @param cursor Cursor over {@link PhoneQuery#PROJECTION}, positioned before the first row of
+     * the chunk. It is left on the last row of the chunk.
+     * @param missingName Display name used for contacts without a name.
+     * @param maxContacts Maximum number of contacts to read.
+     * @param withNamePrefixes Whether the prefixes of the contact names should be generated.
+     */
+    static SmartDialContactChunk read(Cursor cursor, String missingName, int maxContacts,
+            boolean withNamePrefixes) {
+        final ArrayList<Row> rows = Lists.newArrayList();
+        int contactCount = 0;
+        long lastContactId = 0;
+        while (cursor.moveToNext()) {
+            final long contactId = cursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
+            final boolean firstOfContact = rows.isEmpty() || contactId != lastContactId;
+            if (firstOfContact) {
+                if (contactCount == maxContacts) {
+                    /** Leaves the first row of the next chunk to the next call. */
+                    cursor.moveToPrevious();
+                    break;
+                }
+                contactCount++;
+                lastContactId = contactId;
+            }
+            String displayName = cursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
+            if (displayName == null) {
+                displayName = missingName;
+            }
+            rows.add(new Row(cursor, displayName, firstOfContact));
+        }
+        return new SmartDialContactChunk(rows, withNamePrefixes);
+    }
+
+    /**
+     * Generates the normalized names, the parsed numbers and the prefixes of every row. Safe to
+     * run on any thread.
+     */
+    @Override
+    public SmartDialContactChunk call() {
+        String normalizedName = null;
+        for (Row row : mRows) {
+            if (row.firstOfContact) {
+                /** The display name is the same on every row of a contact. */
+                normalizedName = SmartDialNameMatcher.normalizeName(row.displayName,
+                        SmartDialPrefix.getMap());
+                if (mWithNamePrefixes) {
+                    row.namePrefixes = generateNamePrefixes(row.displayName);
+                }
+            }
+            row.normalizedName = normalizedName;
+            if (!TextUtils.isEmpty(row.number)) {
+                final PhoneNumberTokens tokens = SmartDialPrefix.parsePhoneNumber(row.number);
+                row.normalizedNumber = SmartDialNameMatcher.normalizeNumber(row.number,
+                        SmartDialPrefix.getMap());
+                row.countryCodeOffset = SmartDialPrefix.getNormalizedOffset(row.number,
+                        tokens.countryCodeOffset);
+                row.nanpCodeOffset = SmartDialPrefix.getNormalizedOffset(row.number,
+                        tokens.nanpCodeOffset);
+            }
+            row.numberPrefixes = SmartDialPrefix.parseToNumberTokens(row.normalizedNumber,
+                    row.countryCodeOffset, row.nanpCodeOffset);
+        }
+        return this;
+    }
+
+    /**
+     * Generates the prefixes stored for the name of a contact. Long names are capped to keep the
+     * prefix table small.
+     */
+    static ArrayList<String> generateNamePrefixes(String displayName) {
+        return SmartDialPrefix.generateBoundedNamePrefixes(displayName,
+                SmartDialPrefix.DEFAULT_MAX_NAME_PREFIX_BYTES);
+    }
+
+    ArrayList<Row> getRows() {
+        return mRows;
+    }
+
+    int getRowCount() {
+        return mRows.size();
+    }
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.PrefixColumns;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialDbColumns;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialSortingOrder;
+import com.android.dialer.database.DialerDatabaseHelper.Tables;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Memory resident snapshot of the smart dial database. Contains every row of
+ * {@link Tables#SMARTDIAL_TABLE} together with a {@link SmartDialTrie} built from
+ * {@link Tables#PREFIX_TABLE}, so that smart dial lookups can be answered without touching SQLite.
+ *
+ * An index is immutable once built. {@link DialerDatabaseHelper} replaces it with a new one
+ * after every update of the smart dial database. Updates that change a few contacts derive the
+ * new index from the previous one with {@link #withChangedContacts}: the changed contacts get
+ * new slots, and their previous slots are left empty. Such indices share the rows of the
+ * unchanged contacts, and their trie keeps the numbers of the nodes of the previous trie.
+ */
+public class SmartDialIndex {
+
+    /**
+     * One row of the smartdial table, with the fields used to rank the results.
+     */
+    static final class Entry {
+        final int slot;
+        final ContactNumber contact;
+        final boolean starred;
+        final boolean superPrimary;
+        final long lastTimeUsed;
+        final int timesUsed;
+        final boolean inVisibleGroup;
+        final boolean primary;
+        /** Display name as produced by {@link SmartDialNameMatcher#normalizeName}, or null. */
+        final String normalizedName;
+        /** Number as produced by {@link SmartDialNameMatcher#normalizeNumber}, or null. */
+        final String normalizedNumber;
+        /** Offsets of the national and NANP local numbers in the normalized number, or 0. */
+        final int countryCodeOffset;
+        final int nanpCodeOffset;
+
+        Entry(int slot, ContactNumber contact, boolean starred, boolean superPrimary,
+                long lastTimeUsed, int timesUsed, boolean inVisibleGroup, boolean primary,
+                String normalizedName, String normalizedNumber, int countryCodeOffset,
+                int nanpCodeOffset) {
+            this.slot = slot;
+            this.contact = contact;
+            this.starred = starred;
+            this.superPrimary = superPrimary;
+            this.lastTimeUsed = lastTimeUsed;
+            this.timesUsed = timesUsed;
+            this.inVisibleGroup = inVisibleGroup;
+            this.primary = primary;
+            this.normalizedName = normalizedName;
+            this.normalizedNumber = normalizedNumber;
+            this.countryCodeOffset = countryCodeOffset;
+            this.nanpCodeOffset = nanpCodeOffset;
+        }
+
+        /**
+         * Returns whether the name of the contact matches the query of the matcher, using the
+         * normalized name when there is one.
+         */
+        boolean matchesName(SmartDialNameMatcher nameMatcher) {
+            return normalizedName != null
+                    ? nameMatcher.matchesNormalized(normalizedName)
+                    : nameMatcher.matchesInPlace(contact.displayName);
+        }
+
+        /**
+         * Returns whether the phone number matches the query, using the normalized number when
+         * there is one.
+         */
+        boolean matchesNumber(SmartDialNameMatcher nameMatcher, String query) {
+            return normalizedNumber != null
+                    ? nameMatcher.matchesNormalizedNumber(normalizedNumber, query,
+                            countryCodeOffset, nanpCodeOffset)
+                    : nameMatcher.matchesNumber(contact.phoneNumber, query) != null;
+        }
+    }
+
+    private static final String ENTRY_QUERY = "SELECT " +
+            SmartDialDbColumns.DATA_ID + ", " +
+            SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+            SmartDialDbColumns.PHOTO_ID + ", " +
+            SmartDialDbColumns.NUMBER + ", " +
+            SmartDialDbColumns.CONTACT_ID + ", " +
+            SmartDialDbColumns.LOOKUP_KEY + ", " +
+            SmartDialDbColumns.STARRED + ", " +
+            SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
+            SmartDialDbColumns.LAST_TIME_USED + ", " +
+            SmartDialDbColumns.TIMES_USED + ", " +
+            SmartDialDbColumns.IN_VISIBLE_GROUP + ", " +
+            SmartDialDbColumns.IS_PRIMARY + ", " +
+            SmartDialDbColumns.NORMALIZED_NAME + ", " +
+            SmartDialDbColumns.NORMALIZED_NUMBER + ", " +
+            SmartDialDbColumns.COUNTRY_CODE_OFFSET + ", " +
+            SmartDialDbColumns.NANP_CODE_OFFSET +
+            " FROM " + Tables.SMARTDIAL_TABLE;
+
+    private static final String ENTRY_ORDER = " ORDER BY " + SmartDialDbColumns.CONTACT_ID;
+
+    /**
+     * Maximum number of changed contacts applied with {@link #withChangedContacts}. Larger
+     * updates rebuild the index.
+     */
+    static final int MAX_CHANGED_CONTACTS = 500;
+
+    /**
+     * Lookups check for cancellation once every (CANCELLATION_CHECK_MASK + 1) candidates.
+     */
+    static final int CANCELLATION_CHECK_MASK = 0x3f;
+
+    private static final String PREFIX_QUERY = "SELECT " +
+            PrefixColumns.CONTACT_ID + ", " +
+            PrefixColumns.PREFIX +
+            " FROM " + Tables.PREFIX_TABLE;
+
+    /** All rows of the smartdial table, grouped by contact id. */
+    private final Entry[] mEntries;
+    /**
+     * Rows of contact slot i are mEntries[mSlotStart[i]] to mEntries[mSlotStart[i + 1] - 1].
+     * Slots of contacts that have changed since are empty.
+     */
+    private final int[] mSlotStart;
+    private final SmartDialTrie mTrie;
+    /** Number of non-empty slots. */
+    private final int mContactCount;
+    /**
+     * Slots that differ from the index this index was derived from, i.e. the previous and the
+     * new slots of the changed contacts. Empty for an index built from scratch.
+     */
+    private final BitSet mChangedSlots;
+
+    private SmartDialIndex(Entry[] entries, int[] slotStart, SmartDialTrie trie,
+            int contactCount, BitSet changedSlots) {
+        mEntries = entries;
+        mSlotStart = slotStart;
+        mTrie = trie;
+        mContactCount = contactCount;
+        mChangedSlots = changedSlots;
+    }
+
+    /**
+     * Reads the smartdial and prefix tables and builds an index from them.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @return The index, or null if the tables could not be read.
+     */
+    static SmartDialIndex build(SQLiteDatabase db) {
+        final ArrayList<Entry> entries = Lists.newArrayList();
+        final ArrayList<Integer> slotStarts = Lists.newArrayList();
+        final HashMap<Long, Integer> slotForContactId = new HashMap<Long, Integer>();
+        if (!readEntries(db.rawQuery(ENTRY_QUERY + ENTRY_ORDER, null), entries, slotStarts,
+                slotForContactId)) {
+            return null;
+        }
+
+        final SmartDialTrie trie = new SmartDialTrie();
+        if (!readPrefixes(db.rawQuery(PREFIX_QUERY, null), trie, slotForContactId)) {
+            return null;
+        }
+
+        final int slotCount = slotStarts.size();
+        return new SmartDialIndex(entries.toArray(new Entry[entries.size()]),
+                toSlotStart(slotStarts, entries.size()), trie, slotCount, new BitSet());
+    }
+
+    /**
+     * Returns whether {@link #withChangedContacts} can apply changes to the given number of
+     * contacts, instead of rebuilding the index. Also bounds the number of empty slots, which
+     * are only dropped by rebuilding the index.
+     */
+    boolean canApplyChanges(int changedContacts) {
+        final int emptySlots = getSlotCount() - mContactCount + changedContacts;
+        return changedContacts <= MAX_CHANGED_CONTACTS
+                && emptySlots <= Math.max(MAX_CHANGED_CONTACTS, mContactCount);
+    }
+
+    /**
+     * Derives a new index from this one, in which the rows and prefixes of the given contacts
+     * are read again from the smartdial and prefix tables. Contacts that are no longer in the
+     * tables are removed. This index is left untouched.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param contactIds Ids of the contacts that have changed since this index was built.
+     * @return The new index, or null if the tables could not be read.
+     */
+    SmartDialIndex withChangedContacts(SQLiteDatabase db, Set<Long> contactIds) {
+        if (contactIds.isEmpty()) {
+            return this;
+        }
+        final int previousSlotCount = getSlotCount();
+        final BitSet changedSlots = new BitSet();
+        final ArrayList<Entry> entries = Lists.newArrayListWithCapacity(mEntries.length);
+        final ArrayList<Integer> slotStarts = Lists.newArrayListWithCapacity(previousSlotCount);
+        int contactCount = mContactCount;
+        for (int slot = 0; slot < previousSlotCount; slot++) {
+            final int start = mSlotStart[slot];
+            final int end = mSlotStart[slot + 1];
+            slotStarts.add(entries.size());
+            if (start == end) {
+                continue;
+            }
+            if (contactIds.contains(mEntries[start].contact.id)) {
+                changedSlots.set(slot);
+                contactCount--;
+                continue;
+            }
+            for (int i = start; i < end; i++) {
+                entries.add(mEntries[i]);
+            }
+        }
+
+        final String contactIdFilter = " WHERE " + SmartDialDbColumns.CONTACT_ID + " IN (" +
+                TextUtils.join(",", contactIds) + ")";
+        final HashMap<Long, Integer> slotForContactId = new HashMap<Long, Integer>();
+        if (!readEntries(db.rawQuery(ENTRY_QUERY + contactIdFilter + ENTRY_ORDER, null),
+                entries, slotStarts, slotForContactId)) {
+            return null;
+        }
+        final int slotCount = slotStarts.size();
+        changedSlots.set(previousSlotCount, slotCount);
+        contactCount += slotCount - previousSlotCount;
+
+        final SmartDialTrie trie = mTrie.copy();
+        if (!readPrefixes(db.rawQuery(PREFIX_QUERY + " WHERE " + PrefixColumns.CONTACT_ID +
+                " IN (" + TextUtils.join(",", contactIds) + ")", null), trie,
+                slotForContactId)) {
+            return null;
+        }
+
+        return new SmartDialIndex(entries.toArray(new Entry[entries.size()]),
+                toSlotStart(slotStarts, entries.size()), trie, contactCount, changedSlots);
+    }
+
+    /**
+     * Appends the rows read by the cursor, which are sorted by contact id, to the entries. Each
+     * contact gets a new slot, numbered after the slots already started.
+     *
+     * @return Whether the rows could be read.
+     */
+    private static boolean readEntries(Cursor entryCursor, ArrayList<Entry> entries,
+            ArrayList<Integer> slotStarts, HashMap<Long, Integer> slotForContactId) {
+        if (entryCursor == null) {
+            return false;
+        }
+        try {
+            long lastContactId = 0;
+            boolean first = true;
+            while (entryCursor.moveToNext()) {
+                final long contactId = entryCursor.getLong(4);
+                if (first || contactId != lastContactId) {
+                    slotForContactId.put(contactId, slotStarts.size());
+                    slotStarts.add(entries.size());
+                    lastContactId = contactId;
+                    first = false;
+                }
+                final ContactNumber contact = new ContactNumber(contactId,
+                        entryCursor.getLong(0), entryCursor.getString(1),
+                        entryCursor.getString(3), entryCursor.getString(5),
+                        entryCursor.getLong(2));
+                entries.add(new Entry(slotStarts.size() - 1, contact,
+                        entryCursor.getInt(6) != 0,
+                        entryCursor.getInt(7) != 0,
+                        entryCursor.getLong(8),
+                        entryCursor.getInt(9),
+                        entryCursor.getInt(10) != 0,
+                        entryCursor.getInt(11) != 0,
+                        entryCursor.getString(12),
+                        entryCursor.getString(13),
+                        entryCursor.getInt(14),
+                        entryCursor.getInt(15)));
+            }
+        } finally {
+            entryCursor.close();
+        }
+        return true;
+    }
+
+    /**
+     * Adds the prefixes read by the cursor to the trie, for the contacts that have a slot.
+     *
+     * @return Whether the prefixes could be read.
+     */
+    private static boolean readPrefixes(Cursor prefixCursor, SmartDialTrie trie,
+            HashMap<Long, Integer> slotForContactId) {
+        if (prefixCursor == null) {
+            return false;
+        }
+        try {
+            while (prefixCursor.moveToNext()) {
+                final Integer slot = slotForContactId.get(prefixCursor.getLong(0));
+                final String prefix = prefixCursor.getString(1);
+                if (slot != null && prefix != null) {
+                    trie.put(prefix, slot);
+                }
+            }
+        } finally {
+            prefixCursor.close();
+        }
+        return true;
+    }
+
+    private static int[] toSlotStart(ArrayList<Integer> slotStarts, int entryCount) {
+        final int slotCount = slotStarts.size();
+        final int[] slotStart = new int[slotCount + 1];
+        for (int i = 0; i < slotCount; i++) {
+            slotStart[i] = slotStarts.get(i);
+        }
+        slotStart[slotCount] = entryCount;
+        return slotStart;
+    }
+
+    /**
+     * Returns a list of candidate contacts where the query is a prefix of the dialpad index of
+     * the contact's name or phone number, in the same order as the database query in
+     * {@link DialerDatabaseHelper#getLooseMatches(String, SmartDialNameMatcher)}.
+     *
+     * @param query The prefix of a contact's dialpad index.
+     * @param nameMatcher Matcher used to verify the candidates.
+     * @param currentTimeMillis Time used to rank recently contacted entries.
+     * @param maxEntries Maximum number of contacts to return.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, long currentTimeMillis, int maxEntries) {
+        return getLooseMatches(query, nameMatcher, currentTimeMillis, maxEntries, null);
+    }
+
+    /**
+     * Same as {@link #getLooseMatches(String, SmartDialNameMatcher, long, int)}, but narrows down
+     * the candidates of the previous lookup of the session when the query extends its query.
+     *
+     * @param session Session of the previous lookups, or null to always run a full lookup.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, long currentTimeMillis, int maxEntries,
+            SmartDialSearchSession session) {
+        return getLooseMatches(query, nameMatcher, currentTimeMillis, maxEntries, session, null);
+    }
+
+    /**
+     * Same as {@link #getLooseMatches(String, SmartDialNameMatcher, long, int,
+     * SmartDialSearchSession)}, but stops early once the lookup has been canceled. The session
+     * is left untouched by a canceled lookup.
+     *
+     * @param cancellationSignal Signal to cancel the lookup, or null.
+     * @throws OperationCanceledException If the lookup has been canceled.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, long currentTimeMillis, int maxEntries,
+            SmartDialSearchSession session, CancellationSignal cancellationSignal) {
+        if (TextUtils.isEmpty(query)) {
+            /** An empty query matches neither names nor numbers. */
+            if (session != null) {
+                session.reset();
+            }
+            return Lists.newArrayList();
+        }
+        if (session == null) {
+            final int node = mTrie.findNode(query);
+            return selectMatches(query, nameMatcher,
+                    collectCandidates(node, cancellationSignal), currentTimeMillis, maxEntries,
+                    cancellationSignal);
+        }
+
+        synchronized (session) {
+            final ArrayList<ContactNumber> previousResults = session.getResultsFor(this, query);
+            if (previousResults != null) {
+                return previousResults;
+            }
+
+            final int node;
+            final long rankingTimeMillis;
+            final ArrayList<Entry> candidates;
+            if (session.canNarrow(this, query, currentTimeMillis)) {
+                /** Follows the new digits from the previous node, and keeps the ranking time.*/
+                node = mTrie.findNode(session.getNode(), query, session.getQuery().length());
+                rankingTimeMillis = session.getRankingTimeMillis();
+                candidates = narrowCandidates(session.getCandidates(), node, cancellationSignal);
+            } else {
+                node = mTrie.findNode(query);
+                rankingTimeMillis = currentTimeMillis;
+                candidates = collectCandidates(node, cancellationSignal);
+            }
+
+            final ArrayList<ContactNumber> result = selectMatches(query, nameMatcher, candidates,
+                    rankingTimeMillis, maxEntries, cancellationSignal);
+            session.update(this, query, node, candidates, rankingTimeMillis, result);
+            return result;
+        }
+    }
+
+    /**
+     * Returns all rows of the contacts found at or below the trie node, in index order.
+     */
+    private ArrayList<Entry> collectCandidates(int node, CancellationSignal cancellationSignal) {
+        final ArrayList<Entry> candidates = Lists.newArrayList();
+        if (node < 0) {
+            return candidates;
+        }
+        final BitSet slots = new BitSet(mSlotStart.length);
+        mTrie.collect(node, slots);
+        int count = 0;
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            if (cancellationSignal != null && (count++ & CANCELLATION_CHECK_MASK) == 0) {
+                cancellationSignal.throwIfCanceled();
+            }
+            for (int i = mSlotStart[slot]; i < mSlotStart[slot + 1]; i++) {
+                candidates.add(mEntries[i]);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the candidates that belong to the contacts found at or below the trie node,
+     * preserving their order.
+     */
+    private ArrayList<Entry> narrowCandidates(ArrayList<Entry> previous, int node,
+            CancellationSignal cancellationSignal) {
+        final ArrayList<Entry> candidates = Lists.newArrayList();
+        if (node < 0) {
+            return candidates;
+        }
+        final BitSet slots = new BitSet(mSlotStart.length);
+        mTrie.collect(node, slots);
+        final int previousCount = previous.size();
+        for (int i = 0; i < previousCount; i++) {
+            if (cancellationSignal != null && (i & CANCELLATION_CHECK_MASK) == 0) {
+                cancellationSignal.throwIfCanceled();
+            }
+            final Entry entry = previous.get(i);
+            if (slots.get(entry.slot)) {
+                candidates.add(entry);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the best ranked contacts among the candidates whose name or number matches the
+     * query, with a single row per contact. Candidates that cannot make it into the results are
+     * not matched at all.
+     */
+    static ArrayList<ContactNumber> selectMatches(String query, SmartDialNameMatcher nameMatcher,
+            ArrayList<Entry> candidates, long rankingTimeMillis, int maxEntries,
+            CancellationSignal cancellationSignal) {
+        final SmartDialRanker ranker = new SmartDialRanker(maxEntries, rankingTimeMillis);
+        final int candidateCount = candidates.size();
+        for (int i = 0; i < candidateCount; i++) {
+            if (cancellationSignal != null && (i & CANCELLATION_CHECK_MASK) == 0) {
+                cancellationSignal.throwIfCanceled();
+            }
+            final Entry entry = candidates.get(i);
+            if (!ranker.isCompetitive(entry)) {
+                continue;
+            }
+            final boolean nameMatches = entry.matchesName(nameMatcher);
+            final boolean numberMatches = entry.matchesNumber(nameMatcher, query);
+            if (nameMatches || numberMatches) {
+                ranker.offer(entry);
+            }
+        }
+        return ranker.getResults();
+    }
+
+    /** Returns the number of rows held by the index. */
+    public int getEntryCount() {
+        return mEntries.length;
+    }
+
+    /** Returns a row of the index. Rows are grouped by contact, in slot order. */
+    Entry getEntry(int position) {
+        return mEntries[position];
+    }
+
+    /** Returns the number of distinct contacts held by the index. */
+    public int getContactCount() {
+        return mContactCount;
+    }
+
+    /** Returns the number of slots, including the empty slots of changed contacts. */
+    int getSlotCount() {
+        return mSlotStart.length - 1;
+    }
+
+    /** Returns the position of the first row of a slot, or the number of rows for the end. */
+    int getSlotStart(int slot) {
+        return mSlotStart[slot];
+    }
+
+    /**
+     * Finds the trie node reached by following the digits of the query.
+     *
+     * @return The node, or -1 if no prefix starts with the query.
+     */
+    int findNode(String query) {
+        return mTrie.findNode(query);
+    }
+
+    /**
+     * Returns whether the contacts found at or below the trie node differ from the ones found
+     * at the same node of the index this index was derived from.
+     */
+    boolean hasChangesUnder(int node) {
+        if (mChangedSlots.isEmpty() || node < 0) {
+            return false;
+        }
+        final BitSet slots = new BitSet(mSlotStart.length);
+        mTrie.collect(node, slots);
+        return slots.intersects(mChangedSlots);
+    }
+
+    /** Returns the number of nodes of the underlying trie. */
+    public int getNodeCount() {
+        return mTrie.getNodeCount();
+    }
+
+    /**
+     * Orders entries the same way as {@link SmartDialSortingOrder#SORT_ORDER}.
+     */
+    static final class RankComparator implements Comparator<Entry> {
+        private final long mCurrentTimeMillis;
+
+        RankComparator(long currentTimeMillis) {
+            mCurrentTimeMillis = currentTimeMillis;
+        }
+
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            final int byUsage = compareUsage(lhs.starred, lhs.superPrimary, lhs.lastTimeUsed,
+                    lhs.timesUsed, lhs.inVisibleGroup, rhs);
+            if (byUsage != 0) {
+                return byUsage;
+            }
+            final int byName = compareNames(lhs.contact.displayName, rhs.contact.displayName);
+            if (byName != 0) {
+                return byName;
+            }
+            if (lhs.contact.id != rhs.contact.id) {
+                return lhs.contact.id < rhs.contact.id ? -1 : 1;
+            }
+            if (lhs.primary != rhs.primary) {
+                return lhs.primary ? -1 : 1;
+            }
+            return 0;
+        }
+
+        /**
+         * Compares the fields of a row that rank before its name with an entry, without needing
+         * an entry for the row. Returns 0 if the rest of the fields decide.
+         */
+        int compareUsage(boolean starred, boolean superPrimary, long lastTimeUsed,
+                int timesUsed, boolean inVisibleGroup, Entry rhs) {
+            if (starred != rhs.starred) {
+                return starred ? -1 : 1;
+            }
+            if (superPrimary != rhs.superPrimary) {
+                return superPrimary ? -1 : 1;
+            }
+            final int lhsUsage = usageBucket(lastTimeUsed);
+            final int rhsUsage = usageBucket(rhs.lastTimeUsed);
+            if (lhsUsage != rhsUsage) {
+                return lhsUsage < rhsUsage ? -1 : 1;
+            }
+            if (timesUsed != rhs.timesUsed) {
+                return timesUsed > rhs.timesUsed ? -1 : 1;
+            }
+            if (inVisibleGroup != rhs.inVisibleGroup) {
+                return inVisibleGroup ? -1 : 1;
+            }
+            return 0;
+        }
+
+        /** Mirrors {@link SmartDialSortingOrder#SORT_BY_DATA_USAGE}. */
+        private int usageBucket(long lastTimeUsed) {
+            final long sinceLastUsed = mCurrentTimeMillis - lastTimeUsed;
+            if (sinceLastUsed < SmartDialSortingOrder.LAST_TIME_USED_CURRENT_MS) {
+                return 0;
+            } else if (sinceLastUsed < SmartDialSortingOrder.LAST_TIME_USED_RECENT_MS) {
+                return 1;
+            }
+            return 2;
+        }
+
+        /** SQLite sorts NULL before any text. */
+        private static int compareNames(String lhs, String rhs) {
+            if (lhs == null) {
+                return rhs == null ? 0 : -1;
+            }
+            if (rhs == null) {
+                return 1;
+            }
+            return lhs.compareTo(rhs);
+        }
+    }
+}
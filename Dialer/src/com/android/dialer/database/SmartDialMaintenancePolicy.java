@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Decides when the indices and the statistics of the smart dial tables need to be refreshed.
+ * Index creation and ANALYZE scan whole tables, which is wasted work when an update only touched
+ * a few contacts. The policy tracks how many rows changed since the last ANALYZE and persists
+ * that count in the {@link DialerDatabaseHelper.Tables#PROPERTIES} table.
+ */
+class SmartDialMaintenancePolicy {
+
+    /** Bump this when the set of indices created on the smart dial tables changes. */
+    @VisibleForTesting
+    static final int INDEX_VERSION = 1;
+
+    /** Statistics are refreshed once this fraction of the rows has changed... */
+    @VisibleForTesting
+    static final float ANALYZE_CHANGED_ROWS_FRACTION = 0.1f;
+    /** ...but not before at least this many rows have changed. */
+    @VisibleForTesting
+    static final int ANALYZE_MIN_CHANGED_ROWS = 200;
+
+    private static final String PROPERTY_INDEX_VERSION = "smartdial_index_version";
+    private static final String PROPERTY_ROWS_CHANGED_SINCE_ANALYZE =
+            "smartdial_rows_changed_since_analyze";
+    private static final String PROPERTY_ROWS_AT_LAST_ANALYZE = "smartdial_rows_at_last_analyze";
+
+    private int mIndexVersion;
+    private int mRowsChangedSinceAnalyze;
+    private int mRowsAtLastAnalyze;
+
+    @VisibleForTesting
+    SmartDialMaintenancePolicy(int indexVersion, int rowsChangedSinceAnalyze,
+            int rowsAtLastAnalyze) {
+        mIndexVersion = indexVersion;
+        mRowsChangedSinceAnalyze = rowsChangedSinceAnalyze;
+        mRowsAtLastAnalyze = rowsAtLastAnalyze;
+    }
+
+    /**
+     * Reads the state of the policy from the properties table.
+     */
+    static SmartDialMaintenancePolicy load(DialerDatabaseHelper helper, SQLiteDatabase db) {
+        return new SmartDialMaintenancePolicy(
+                helper.getPropertyAsInt(db, PROPERTY_INDEX_VERSION, 0),
+                helper.getPropertyAsInt(db, PROPERTY_ROWS_CHANGED_SINCE_ANALYZE, 0),
+                helper.getPropertyAsInt(db, PROPERTY_ROWS_AT_LAST_ANALYZE, 0));
+    }
+
+    /**
+     * Writes the state of the policy to the properties table.
+     */
+    void save(DialerDatabaseHelper helper, SQLiteDatabase db) {
+        helper.setProperty(db, PROPERTY_INDEX_VERSION, String.valueOf(mIndexVersion));
+        helper.setProperty(db, PROPERTY_ROWS_CHANGED_SINCE_ANALYZE,
+                String.valueOf(mRowsChangedSinceAnalyze));
+        helper.setProperty(db, PROPERTY_ROWS_AT_LAST_ANALYZE, String.valueOf(mRowsAtLastAnalyze));
+    }
+
+    /** Records rows of the smartdial table that have been inserted or deleted. */
+    void recordChangedRows(int rows) {
+        mRowsChangedSinceAnalyze += rows;
+    }
+
+    /** Returns whether the indices have to be (re)created. */
+    boolean needsIndices() {
+        return mIndexVersion != INDEX_VERSION;
+    }
+
+    /** Records that the current set of indices has been created. */
+    void onIndicesCreated() {
+        mIndexVersion = INDEX_VERSION;
+    }
+
+    /**
+     * Returns whether enough rows have changed since the last ANALYZE for the statistics of the
+     * query planner to be out of date.
+     */
+    boolean needsAnalyze() {
+        if (needsIndices() || mRowsAtLastAnalyze == 0) {
+            return mRowsChangedSinceAnalyze > 0;
+        }
+        final int threshold = Math.max(ANALYZE_MIN_CHANGED_ROWS,
+                (int) (mRowsAtLastAnalyze * ANALYZE_CHANGED_ROWS_FRACTION));
+        return mRowsChangedSinceAnalyze >= threshold;
+    }
+
+    /**
+     * Records that the statistics have been refreshed.
+     *
+     * @param rowCount Number of rows of the smartdial table at the time of the ANALYZE.
+     */
+    void onAnalyzed(int rowCount) {
+        mRowsChangedSinceAnalyze = 0;
+        mRowsAtLastAnalyze = rowCount;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.android.dialer.database.DialerDatabaseHelper.PrefixColumns;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Writes rows to a prefix table with multi-row INSERT statements. A contact generates many
+ * prefixes, so inserting them one statement at a time costs one JNI round trip per row. This
+ * writer accumulates rows and inserts up to batchSize of them with a single statement of the
+ * form INSERT INTO prefix_table (contact_id, prefix) VALUES (?, ?), (?, ?), ...
+ *
+ * Pending rows must be flushed before the enclosing transaction is committed. The writer is not
+ * thread-safe.
+ */
+class SmartDialPrefixWriter {
+
+    /** Each row binds two arguments, and SQLite allows at most 999 per statement. */
+    static final int MAX_BATCH_SIZE = 499;
+
+    private final SQLiteDatabase mDb;
+    private final String mTable;
+    private final int mBatchSize;
+
+    private final long[] mContactIds;
+    private final String[] mPrefixes;
+    private int mPendingCount;
+
+    /** Statement inserting a full batch, compiled on first use. */
+    private SQLiteStatement mBatchInsert;
+
+    private int mRowCount;
+    private long mWriteNanos;
+
+    /**
+     * @param db Database pointer to the smartdial database.
+     * @param table Name of the prefix table to insert to.
+     * @param batchSize Number of rows inserted per statement, at most {@link #MAX_BATCH_SIZE}.
+     */
+    SmartDialPrefixWriter(SQLiteDatabase db, String table, int batchSize) {
+        Preconditions.checkArgument(batchSize > 0 && batchSize <= MAX_BATCH_SIZE,
+                "Invalid batch size " + batchSize);
+        mDb = db;
+        mTable = table;
+        mBatchSize = batchSize;
+        mContactIds = new long[batchSize];
+        mPrefixes = new String[batchSize];
+    }
+
+    /** Returns the name of the table the rows are inserted to. */
+    String getTable() {
+        return mTable;
+    }
+
+    /**
+     * Queues a row, and inserts the pending rows if a batch is complete.
+     */
+    void add(long contactId, String prefix) {
+        mContactIds[mPendingCount] = contactId;
+        mPrefixes[mPendingCount] = prefix;
+        mPendingCount++;
+        if (mPendingCount == mBatchSize) {
+            if (mBatchInsert == null) {
+                mBatchInsert = compileInsert(mBatchSize);
+            }
+            execute(mBatchInsert, mBatchSize);
+        }
+    }
+
+    /**
+     * Inserts all pending rows.
+     */
+    void flush() {
+        if (mPendingCount == 0) {
+            return;
+        }
+        final SQLiteStatement insert = compileInsert(mPendingCount);
+        try {
+            execute(insert, mPendingCount);
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Releases the compiled statement. Rows that have not been flushed are discarded, since the
+     * transaction they belong to has not been committed.
+     */
+    void close() {
+        for (int i = 0; i < mPendingCount; i++) {
+            mPrefixes[i] = null;
+        }
+        mPendingCount = 0;
+        if (mBatchInsert != null) {
+            mBatchInsert.close();
+            mBatchInsert = null;
+        }
+    }
+
+    /** Returns the number of rows inserted so far. */
+    int getRowCount() {
+        return mRowCount;
+    }
+
+    /** Returns the insertion rate, measured over the time spent executing statements. */
+    long getRowsPerSecond() {
+        return mWriteNanos == 0 ? 0 : mRowCount * 1000000000L / mWriteNanos;
+    }
+
+    private void execute(SQLiteStatement insert, int count) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            insert.bindLong(2 * i + 1, mContactIds[i]);
+            insert.bindString(2 * i + 2, mPrefixes[i]);
+            mPrefixes[i] = null;
+        }
+        insert.executeInsert();
+        insert.clearBindings();
+        mWriteNanos += System.nanoTime() - start;
+        mRowCount += count;
+        mPendingCount = 0;
+    }
+
+    private SQLiteStatement compileInsert(int rows) {
+        final StringBuilder sql = new StringBuilder("INSERT INTO ").append(mTable).append(" (")
+                .append(PrefixColumns.CONTACT_ID).append(", ")
+                .append(PrefixColumns.PREFIX).append(") VALUES (?, ?)");
+        for (int i = 1; i < rows; i++) {
+            sql.append(", (?, ?)");
+        }
+        return mDb.compileStatement(sql.toString());
+    }
+}
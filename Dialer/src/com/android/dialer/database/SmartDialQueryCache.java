@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+
+import java.util.ArrayList;
+
+/**
+ * Results of the smart dial lookups for every one and two digit query. These are the lookups
+ * matching the most contacts, and they are the first ones made when the user starts typing, so
+ * they are computed ahead of time after each update of the smart dial database.
+ *
+ * The ranking of the results depends on the current time, since recently used contacts rank
+ * higher. A cache is therefore only valid until the first time at which a contact moves to
+ * another recency bucket. A cache is immutable once built.
+ *
+ * Each cached lookup is recorded in a {@link SmartDialSearchSession} of its own, so that the
+ * session of the dialpad can continue from it: the keystroke after a cached query narrows down
+ * the cached candidates instead of running a full lookup.
+ */
+final class SmartDialQueryCache {
+
+    /** Longest query whose results are cached. */
+    static final int MAX_QUERY_LENGTH = 2;
+    /** Number of cached queries: "0" to "9", then "00" to "99". */
+    static final int QUERY_COUNT = 10 + 100;
+
+    private final ArrayList<ContactNumber>[] mResults;
+    /** The lookup of each cached query, never updated once the cache is built. */
+    private final SmartDialSearchSession[] mSessions;
+    private final long mValidUntilMillis;
+
+    private SmartDialQueryCache(ArrayList<ContactNumber>[] results,
+            SmartDialSearchSession[] sessions, long validUntilMillis) {
+        mResults = results;
+        mSessions = sessions;
+        mValidUntilMillis = validUntilMillis;
+    }
+
+    /** Computes the results of a cached query. */
+    interface Lookup {
+        /**
+         * @param session Fresh session to record the lookup in. Left empty when the lookup has
+         * no candidates to narrow down later.
+         */
+        ArrayList<ContactNumber> getLooseMatches(String query, SmartDialSearchSession session);
+    }
+
+    /**
+     * Builds a cache by running every cacheable query.
+     *
+     * @param lookup Lookup used to compute the results.
+     * @param validUntilMillis First time at which the ranking of the results may change.
+     */
+    @SuppressWarnings("unchecked")
+    static SmartDialQueryCache build(Lookup lookup, long validUntilMillis) {
+        final ArrayList<ContactNumber>[] results = new ArrayList[QUERY_COUNT];
+        final SmartDialSearchSession[] sessions = new SmartDialSearchSession[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            sessions[i] = new SmartDialSearchSession();
+            results[i] = lookup.getLooseMatches(getQuery(i), sessions[i]);
+        }
+        return new SmartDialQueryCache(results, sessions, validUntilMillis);
+    }
+
+    /**
+     * Builds the cache of an index derived from the index of this cache by
+     * {@link SmartDialIndex#withChangedContacts}. Queries whose candidates are unchanged keep
+     * their results, only the other ones are looked up again.
+     *
+     * @param previousIndex Index this cache was built from.
+     * @param index Index derived from the previous index.
+     * @param lookup Lookup of the queries whose candidates have changed, against the index.
+     * @param validUntilMillis First time at which the ranking of the looked up results may
+     * change. The new cache expires no later than this cache.
+     */
+    @SuppressWarnings("unchecked")
+    SmartDialQueryCache update(SmartDialIndex previousIndex, SmartDialIndex index, Lookup lookup,
+            long validUntilMillis) {
+        final ArrayList<ContactNumber>[] results = new ArrayList[QUERY_COUNT];
+        final SmartDialSearchSession[] sessions = new SmartDialSearchSession[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            final String query = getQuery(i);
+            final SmartDialSearchSession previous = mSessions[i];
+            sessions[i] = new SmartDialSearchSession();
+            if (previous.getResultsFor(previousIndex, query) != null
+                    && isUnchanged(index, query, previous.getNode())) {
+                /** Nodes keep their number in a derived index, and so do the candidates. */
+                sessions[i].update(index, query, previous.getNode(), previous.getCandidates(),
+                        previous.getRankingTimeMillis(), mResults[i]);
+                results[i] = mResults[i];
+            } else {
+                results[i] = lookup.getLooseMatches(query, sessions[i]);
+            }
+        }
+        return new SmartDialQueryCache(results, sessions,
+                Math.min(mValidUntilMillis, validUntilMillis));
+    }
+
+    /**
+     * Returns whether the index finds the same contacts for the query as the index it was
+     * derived from, which found them at the given node.
+     */
+    private static boolean isUnchanged(SmartDialIndex index, String query, int previousNode) {
+        if (previousNode < 0) {
+            return index.findNode(query) < 0;
+        }
+        return !index.hasChangesUnder(previousNode);
+    }
+
+    /**
+     * Returns a copy of the results of the query, or null if the query is not cached or the
+     * cache is no longer valid.
+     */
+    ArrayList<ContactNumber> get(String query, long currentTimeMillis) {
+        if (currentTimeMillis >= mValidUntilMillis) {
+            return null;
+        }
+        final int slot = getSlot(query);
+        if (slot < 0) {
+            return null;
+        }
+        return new ArrayList<ContactNumber>(mResults[slot]);
+    }
+
+    /**
+     * Same as {@link #get(String, long)}, but on a hit the session also continues from the
+     * cached lookup, so that the next keystroke narrows down its candidates.
+     *
+     * @param session Session of the lookups of the dialpad, or null.
+     */
+    ArrayList<ContactNumber> get(String query, long currentTimeMillis,
+            SmartDialSearchSession session) {
+        final ArrayList<ContactNumber> results = get(query, currentTimeMillis);
+        if (results != null && session != null) {
+            /** Rankings do not change until the cache expires, so the cached lookup ranks its
+             * candidates the same way as a lookup made now.
+             */
+            session.continueFrom(mSessions[getSlot(query)], currentTimeMillis);
+        }
+        return results;
+    }
+
+    long getValidUntilMillis() {
+        return mValidUntilMillis;
+    }
+
+    /**
+     * Returns the slot of the query in the cache, or -1 if the query is not cached.
+     */
+    static int getSlot(String query) {
+        if (query == null || query.length() == 0 || query.length() > MAX_QUERY_LENGTH) {
+            return -1;
+        }
+        int slot = 0;
+        for (int i = 0; i < query.length(); i++) {
+            final char ch = query.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            slot = slot * 10 + (ch - '0');
+        }
+        return query.length() == 1 ? slot : 10 + slot;
+    }
+
+    /**
+     * Returns the query cached in the slot.
+     */
+    static String getQuery(int slot) {
+        if (slot < 10) {
+            return String.valueOf((char) ('0' + slot));
+        }
+        final int twoDigits = slot - 10;
+        return new String(new char[] {
+                (char) ('0' + twoDigits / 10), (char) ('0' + twoDigits % 10)});
+    }
+}
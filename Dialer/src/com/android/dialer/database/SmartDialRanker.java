@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactMatch;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.SmartDialIndex.Entry;
+import com.android.dialer.database.SmartDialIndex.RankComparator;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Selects the top smart dial results out of rows offered in any order.
+ *
+ * Keeps the best ranked row of at most maxEntries contacts in a bounded heap. The results are the
+ * same contacts in the same order as sorting all rows with {@link RankComparator}, then walking
+ * them and keeping the first row of each contact until maxEntries contacts have been found. Rows
+ * that rank the same are ordered as they were offered, like a stable sort would. Offering n rows
+ * costs O(n log maxEntries) instead of O(n log n) for the full sort.
+ */
+final class SmartDialRanker {
+
+    /** A row held by the heap. */
+    private static final class Ranked {
+        final Entry entry;
+        final ContactMatch contactMatch;
+        final int sequence;
+
+        Ranked(Entry entry, ContactMatch contactMatch, int sequence) {
+            this.entry = entry;
+            this.contactMatch = contactMatch;
+            this.sequence = sequence;
+        }
+    }
+
+    private final int mMaxEntries;
+    private final RankComparator mRankComparator;
+    /** Orders the best ranked rows first, and rows that rank the same by offering order. */
+    private final Comparator<Ranked> mComparator = new Comparator<Ranked>() {
+        @Override
+        public int compare(Ranked lhs, Ranked rhs) {
+            final int byRank = mRankComparator.compare(lhs.entry, rhs.entry);
+            if (byRank != 0) {
+                return byRank;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+    /** The worst ranked of the kept rows is at the head. */
+    private final PriorityQueue<Ranked> mHeap;
+    /** The kept row of each contact in the heap. */
+    private final HashMap<ContactMatch, Ranked> mKept;
+    private int mSequence;
+
+    /**
+     * @param maxEntries Maximum number of contacts to return.
+     * @param currentTimeMillis Time used to rank recently contacted entries.
+     */
+    SmartDialRanker(int maxEntries, long currentTimeMillis) {
+        mMaxEntries = maxEntries;
+        mRankComparator = new RankComparator(currentTimeMillis);
+        mHeap = new PriorityQueue<Ranked>(Math.max(1, maxEntries),
+                Collections.reverseOrder(mComparator));
+        mKept = new HashMap<ContactMatch, Ranked>(Math.max(1, maxEntries) * 2);
+    }
+
+    /**
+     * Returns whether the row would be kept if it was offered now. Used to skip matching rows that
+     * cannot make it into the results anyway.
+     */
+    boolean isCompetitive(Entry entry) {
+        if (!beatsWorstKept(entry)) {
+            return false;
+        }
+        return isCompetitive(new Ranked(entry, contactMatchOf(entry), mSequence));
+    }
+
+    /**
+     * Returns whether a row with the given usage fields may be kept, before anything else of the
+     * row is read. Rows that rank after the worst kept row on these fields alone are rejected.
+     * When this returns true, {@link #isCompetitive(Entry)} still decides on the whole row.
+     */
+    boolean mayBeCompetitive(boolean starred, boolean superPrimary, long lastTimeUsed,
+            int timesUsed, boolean inVisibleGroup) {
+        if (mMaxEntries <= 0) {
+            return false;
+        }
+        return mHeap.size() < mMaxEntries || mRankComparator.compareUsage(starred, superPrimary,
+                lastTimeUsed, timesUsed, inVisibleGroup, mHeap.peek().entry) <= 0;
+    }
+
+    /**
+     * Offers a row whose name or number matches the query.
+     */
+    void offer(Entry entry) {
+        if (!beatsWorstKept(entry)) {
+            return;
+        }
+        final Ranked ranked = new Ranked(entry, contactMatchOf(entry), mSequence++);
+        if (!isCompetitive(ranked)) {
+            return;
+        }
+        final Ranked previous = mKept.get(ranked.contactMatch);
+        if (previous != null) {
+            /** Only the best ranked row of each contact is shown. */
+            mHeap.remove(previous);
+        } else if (mHeap.size() >= mMaxEntries) {
+            mKept.remove(mHeap.poll().contactMatch);
+        }
+        mHeap.add(ranked);
+        mKept.put(ranked.contactMatch, ranked);
+    }
+
+    /**
+     * Returns the kept contacts, best ranked first.
+     */
+    ArrayList<ContactNumber> getResults() {
+        final ArrayList<Ranked> kept = new ArrayList<Ranked>(mHeap);
+        Collections.sort(kept, mComparator);
+        final ArrayList<ContactNumber> result = Lists.newArrayListWithCapacity(kept.size());
+        for (Ranked ranked : kept) {
+            result.add(ranked.entry.contact);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the row ranks before the worst kept row, or there is room for it. Compares
+     * the row itself, so that once the heap is full most rows are rejected without allocating
+     * anything. A row that ranks the same as the worst kept row was offered after it, and loses.
+     * A row rejected here cannot replace the kept row of its contact either, since that row ranks
+     * at least as well as the worst kept row.
+     */
+    private boolean beatsWorstKept(Entry entry) {
+        if (mMaxEntries <= 0) {
+            return false;
+        }
+        return mHeap.size() < mMaxEntries
+                || mRankComparator.compare(entry, mHeap.peek().entry) < 0;
+    }
+
+    private boolean isCompetitive(Ranked ranked) {
+        if (mMaxEntries <= 0) {
+            return false;
+        }
+        final Ranked previous = mKept.get(ranked.contactMatch);
+        if (previous != null) {
+            return mComparator.compare(ranked, previous) < 0;
+        }
+        return mHeap.size() < mMaxEntries || mComparator.compare(ranked, mHeap.peek()) < 0;
+    }
+
+    private static ContactMatch contactMatchOf(Entry entry) {
+        return new ContactMatch(entry.contact.lookupKey, entry.contact.id);
+    }
+}
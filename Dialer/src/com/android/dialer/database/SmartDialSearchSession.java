@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.SmartDialIndex.Entry;
+
+import java.util.ArrayList;
+
+/**
+ * Remembers the candidates of the previous smart dial lookup so that the next keystroke can be
+ * answered by narrowing them down instead of running a new lookup.
+ *
+ * Any contact matching a query also matches every prefix of that query, so when the user types
+ * another digit the new candidates are a subset of the previous ones. They are ranked with the
+ * time of the first lookup, so results do not move around while typing. A full lookup only runs
+ * when the query does not extend the previous one (e.g. on backspace), when the index has been
+ * rebuilt in the meantime, or when the previous ranking is too old.
+ *
+ * A session is meant to live as long as the dialpad search UI, and outlives the individual
+ * loaders that are created for each keystroke. It is thread-safe.
+ */
+public class SmartDialSearchSession {
+
+    /** Candidates are ranked again after this long, since ranking depends on the current time. */
+    private static final long MAX_RANKING_AGE_MS = 60 * 1000;
+
+    /** Index the candidates were taken from. */
+    private SmartDialIndex mIndex;
+    /** Query of the previous lookup. */
+    private String mQuery;
+    /** Trie node reached by the previous query. */
+    private int mNode = -1;
+    /** All rows of the contacts matching the previous query, unsorted. */
+    private ArrayList<Entry> mCandidates;
+    /** Time used to rank mCandidates. */
+    private long mRankingTimeMillis;
+    /** Results returned for the previous query. */
+    private ArrayList<ContactNumber> mResults;
+
+    /**
+     * Forgets the previous lookup, so the next one is a full lookup.
+     */
+    public synchronized void reset() {
+        mIndex = null;
+        mQuery = null;
+        mNode = -1;
+        mCandidates = null;
+        mResults = null;
+    }
+
+    /**
+     * Continues from the lookup recorded by another session, as if that lookup had ranked its
+     * candidates at the given time. If the other session recorded no lookup, the next lookup is
+     * a full lookup.
+     */
+    void continueFrom(SmartDialSearchSession other, long rankingTimeMillis) {
+        final SmartDialIndex index;
+        final String query;
+        final int node;
+        final ArrayList<Entry> candidates;
+        final ArrayList<ContactNumber> results;
+        synchronized (other) {
+            index = other.mIndex;
+            query = other.mQuery;
+            node = other.mNode;
+            candidates = other.mCandidates;
+            results = other.mResults;
+        }
+        synchronized (this) {
+            mIndex = index;
+            mQuery = query;
+            mNode = node;
+            /** Neither list is ever modified once recorded, so they can be shared. */
+            mCandidates = candidates;
+            mRankingTimeMillis = rankingTimeMillis;
+            mResults = results;
+        }
+    }
+
+    /**
+     * Returns whether a lookup for the query against the index can be answered by narrowing down
+     * the previous candidates.
+     */
+    synchronized boolean canNarrow(SmartDialIndex index, String query, long currentTimeMillis) {
+        return mIndex == index && mQuery != null && mCandidates != null
+                && query.startsWith(mQuery)
+                && currentTimeMillis - mRankingTimeMillis < MAX_RANKING_AGE_MS;
+    }
+
+    /**
+     * Returns the results of the previous lookup if it was for the same query against the same
+     * index, or null.
+     */
+    synchronized ArrayList<ContactNumber> getResultsFor(SmartDialIndex index, String query) {
+        if (mIndex == index && mResults != null && query.equals(mQuery)) {
+            return new ArrayList<ContactNumber>(mResults);
+        }
+        return null;
+    }
+
+    synchronized String getQuery() {
+        return mQuery;
+    }
+
+    synchronized int getNode() {
+        return mNode;
+    }
+
+    synchronized ArrayList<Entry> getCandidates() {
+        return mCandidates;
+    }
+
+    synchronized long getRankingTimeMillis() {
+        return mRankingTimeMillis;
+    }
+
+    /**
+     * Records the outcome of a lookup.
+     */
+    synchronized void update(SmartDialIndex index, String query, int node,
+            ArrayList<Entry> candidates, long rankingTimeMillis,
+            ArrayList<ContactNumber> results) {
+        mIndex = index;
+        mQuery = query;
+        mNode = node;
+        mCandidates = candidates;
+        mRankingTimeMillis = rankingTimeMillis;
+        mResults = new ArrayList<ContactNumber>(results);
+    }
+}
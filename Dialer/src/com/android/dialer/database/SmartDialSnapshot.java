@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.PrefixColumns;
+import com.android.dialer.database.DialerDatabaseHelper.Tables;
+import com.android.dialer.database.SmartDialIndex.Entry;
+import com.android.dialer.dialpad.SmartDialNameMatcher;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Immutable binary copy of a {@link SmartDialIndex}, written to a file after each update of the
+ * smart dial database. Right after the process starts, lookups are answered by memory-mapping
+ * the file, instead of waiting for the index to be rebuilt or querying SQLite.
+ *
+ * The prefixes are stored sorted, so the candidates of a query are found by binary search
+ * directly in the mapped file. Only the rows of the candidates are decoded.
+ *
+ * Layout, big endian:
+ * <pre>
+ *   int magic, int format version, int database version, long generation,
+ *   int slot count, int entry count, int prefix count,
+ *   int[slot count + 1] index of the first entry of each slot,
+ *   int[entry count] file offset of each entry,
+ *   int[prefix count] file offset of each prefix, in prefix order,
+ *   int[prefix count] slot of each prefix,
+ *   entries, prefixes.
+ * </pre>
+ * An entry is its ranking fields followed by its strings, a prefix is a string. A string is its
+ * length, or -1 for null, followed by its UTF-16 characters.
+ *
+ * The file is replaced atomically, so it is only damaged if something else writes to it. Opening
+ * a snapshot only checks its header and tables, which keeps it cheap. The entries and prefixes
+ * are checked as lookups read them.
+ */
+final class SmartDialSnapshot {
+    private static final int MAGIC = 0x53445331;
+    @VisibleForTesting
+    static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 4 + 4;
+    private static final int ENTRY_FIXED_SIZE = 8 + 8 + 8 + 8 + 4 + 1 + 4 + 4;
+
+    private static final int FLAG_STARRED = 1;
+    private static final int FLAG_SUPER_PRIMARY = 2;
+    private static final int FLAG_IN_VISIBLE_GROUP = 4;
+    private static final int FLAG_PRIMARY = 8;
+
+    /** Thrown by lookups reading an entry or prefix that cannot have been written. */
+    private static final class DamagedSnapshotException extends RuntimeException {
+    }
+
+    private final ByteBuffer mBuffer;
+    private final long mGeneration;
+    private final int mSlotCount;
+    private final int mEntryCount;
+    private final int mPrefixCount;
+    private final int mSlotStartTable;
+    private final int mEntryOffsetTable;
+    private final int mPrefixOffsetTable;
+    private final int mPrefixSlotTable;
+
+    private SmartDialSnapshot(ByteBuffer buffer, long generation, int slotCount, int entryCount,
+            int prefixCount) {
+        mBuffer = buffer;
+        mGeneration = generation;
+        mSlotCount = slotCount;
+        mEntryCount = entryCount;
+        mPrefixCount = prefixCount;
+        mSlotStartTable = HEADER_SIZE;
+        mEntryOffsetTable = mSlotStartTable + 4 * (slotCount + 1);
+        mPrefixOffsetTable = mEntryOffsetTable + 4 * entryCount;
+        mPrefixSlotTable = mPrefixOffsetTable + 4 * prefixCount;
+    }
+
+    /**
+     * Writes a snapshot of the index and of the prefix table. The file is replaced atomically,
+     * so a snapshot that is currently mapped stays valid.
+     *
+     * @param index Index built from the current smart dial tables.
+     * @param db Database pointer to the smartdial database.
+     * @param generation Identifies the update of the smart dial tables the snapshot reflects.
+     * @param file File to write the snapshot to.
+     */
+    static void write(SmartDialIndex index, SQLiteDatabase db, long generation, File file)
+            throws IOException {
+        final int entryCount = index.getEntryCount();
+        final int slotCount = index.getSlotCount();
+        final HashMap<Long, Integer> slotForContactId = new HashMap<Long, Integer>();
+        final int[] slotStart = new int[slotCount + 1];
+        for (int slot = 0; slot <= slotCount; slot++) {
+            slotStart[slot] = index.getSlotStart(slot);
+        }
+        for (int i = 0; i < entryCount; i++) {
+            final Entry entry = index.getEntry(i);
+            slotForContactId.put(entry.contact.id, entry.slot);
+        }
+
+        final ArrayList<String> prefixes = Lists.newArrayList();
+        final ArrayList<Integer> prefixSlots = Lists.newArrayList();
+        final Cursor cursor = db.rawQuery("SELECT " + PrefixColumns.CONTACT_ID + ", " +
+                PrefixColumns.PREFIX + " FROM " + Tables.PREFIX_TABLE, null);
+        if (cursor == null) {
+            throw new IOException("Could not read the prefix table");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final Integer slot = slotForContactId.get(cursor.getLong(0));
+                final String prefix = cursor.getString(1);
+                if (slot != null && !TextUtils.isEmpty(prefix)) {
+                    prefixes.add(prefix);
+                    prefixSlots.add(slot);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        final int prefixCount = prefixes.size();
+        final Integer[] prefixOrder = new Integer[prefixCount];
+        for (int i = 0; i < prefixCount; i++) {
+            prefixOrder[i] = i;
+        }
+        /** The same order as the character comparisons of the binary search. */
+        Arrays.sort(prefixOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return prefixes.get(lhs).compareTo(prefixes.get(rhs));
+            }
+        });
+
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final FileOutputStream fileStream = new FileOutputStream(tempFile);
+        boolean success = false;
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(DialerDatabaseHelper.DATABASE_VERSION);
+            out.writeLong(generation);
+            out.writeInt(slotCount);
+            out.writeInt(entryCount);
+            out.writeInt(prefixCount);
+            for (int start : slotStart) {
+                out.writeInt(start);
+            }
+            int offset = HEADER_SIZE + 4 * (slotCount + 1) + 4 * entryCount + 8 * prefixCount;
+            for (int i = 0; i < entryCount; i++) {
+                out.writeInt(offset);
+                offset += getEntrySize(index.getEntry(i));
+            }
+            for (int i = 0; i < prefixCount; i++) {
+                out.writeInt(offset);
+                offset += getStringSize(prefixes.get(prefixOrder[i]));
+            }
+            for (int i = 0; i < prefixCount; i++) {
+                out.writeInt(prefixSlots.get(prefixOrder[i]));
+            }
+            for (int i = 0; i < entryCount; i++) {
+                writeEntry(out, index.getEntry(i));
+            }
+            for (int i = 0; i < prefixCount; i++) {
+                writeString(out, prefixes.get(prefixOrder[i]));
+            }
+            out.flush();
+            fileStream.getFD().sync();
+            success = true;
+        } finally {
+            fileStream.close();
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static int getEntrySize(Entry entry) {
+        final ContactNumber contact = entry.contact;
+        return ENTRY_FIXED_SIZE
+                + getStringSize(contact.displayName)
+                + getStringSize(contact.phoneNumber)
+                + getStringSize(contact.lookupKey)
+                + getStringSize(entry.normalizedName)
+                + getStringSize(entry.normalizedNumber);
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        final ContactNumber contact = entry.contact;
+        out.writeLong(contact.id);
+        out.writeLong(contact.dataId);
+        out.writeLong(contact.photoId);
+        out.writeLong(entry.lastTimeUsed);
+        out.writeInt(entry.timesUsed);
+        out.writeByte((entry.starred ? FLAG_STARRED : 0)
+                | (entry.superPrimary ? FLAG_SUPER_PRIMARY : 0)
+                | (entry.inVisibleGroup ? FLAG_IN_VISIBLE_GROUP : 0)
+                | (entry.primary ? FLAG_PRIMARY : 0));
+        out.writeInt(entry.countryCodeOffset);
+        out.writeInt(entry.nanpCodeOffset);
+        writeString(out, contact.displayName);
+        writeString(out, contact.phoneNumber);
+        writeString(out, contact.lookupKey);
+        writeString(out, entry.normalizedName);
+        writeString(out, entry.normalizedNumber);
+    }
+
+    private static int getStringSize(String s) {
+        return 4 + (s == null ? 0 : 2 * s.length());
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(s.length());
+            out.writeChars(s);
+        }
+    }
+
+    /**
+     * Memory-maps a snapshot.
+     *
+     * @return The snapshot, or null if the file is not a snapshot of the current format, or if
+     *     its header or tables are damaged.
+     */
+    static SmartDialSnapshot open(File file) throws IOException {
+        final FileInputStream stream = new FileInputStream(file);
+        try {
+            final FileChannel channel = stream.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            /** The mapping stays valid once the channel is closed. */
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION
+                    || buffer.getInt(8) != DialerDatabaseHelper.DATABASE_VERSION) {
+                return null;
+            }
+            final long generation = buffer.getLong(12);
+            final int slotCount = buffer.getInt(20);
+            final int entryCount = buffer.getInt(24);
+            final int prefixCount = buffer.getInt(28);
+            if (slotCount < 0 || entryCount < 0 || prefixCount < 0
+                    || HEADER_SIZE + 4L * (slotCount + 1) + 4L * entryCount + 8L * prefixCount
+                            > size) {
+                return null;
+            }
+            final SmartDialSnapshot snapshot = new SmartDialSnapshot(buffer, generation, slotCount,
+                    entryCount, prefixCount);
+            return snapshot.hasValidTables((int) size) ? snapshot : null;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Checks that every offset and slot of the tables points inside the file, in the order they
+     * were written. Only reads the tables, not the entries and prefixes they point to.
+     *
+     * @param dataEnd Size of the file, the end of the entries and prefixes.
+     */
+    private boolean hasValidTables(int dataEnd) {
+        final int dataStart = mPrefixSlotTable + 4 * mPrefixCount;
+        int previousStart = 0;
+        for (int slot = 0; slot <= mSlotCount; slot++) {
+            final int start = mBuffer.getInt(mSlotStartTable + 4 * slot);
+            if (start < previousStart || start > mEntryCount) {
+                return false;
+            }
+            previousStart = start;
+        }
+        if (previousStart != mEntryCount) {
+            return false;
+        }
+        int previousOffset = dataStart;
+        for (int i = 0; i < mEntryCount; i++) {
+            final int offset = mBuffer.getInt(mEntryOffsetTable + 4 * i);
+            if (offset < previousOffset || offset > dataEnd - ENTRY_FIXED_SIZE) {
+                return false;
+            }
+            previousOffset = offset;
+        }
+        for (int i = 0; i < mPrefixCount; i++) {
+            final int offset = mBuffer.getInt(mPrefixOffsetTable + 4 * i);
+            if (offset < previousOffset || offset > dataEnd - 4) {
+                return false;
+            }
+            previousOffset = offset;
+            final int slot = mBuffer.getInt(mPrefixSlotTable + 4 * i);
+            if (slot < 0 || slot >= mSlotCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the generation the snapshot was written with. */
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns the number of rows held by the snapshot. */
+    int getEntryCount() {
+        return mEntryCount;
+    }
+
+    /** Returns the number of slots, like {@link SmartDialIndex#getSlotCount}. */
+    int getSlotCount() {
+        return mSlotCount;
+    }
+
+    /**
+     * Same as {@link SmartDialIndex#getLooseMatches(String, SmartDialNameMatcher, long, int,
+     * SmartDialSearchSession, CancellationSignal)} without a session.
+     *
+     * @return The matches, or null if an entry or prefix read by the lookup is damaged.
+     * @throws OperationCanceledException If the lookup has been canceled.
+     */
+    ArrayList<ContactNumber> getLooseMatches(String query, SmartDialNameMatcher nameMatcher,
+            long currentTimeMillis, int maxEntries, CancellationSignal cancellationSignal) {
+        if (TextUtils.isEmpty(query)) {
+            return Lists.newArrayList();
+        }
+        try {
+            return getLooseMatchesOrThrow(query, nameMatcher, currentTimeMillis, maxEntries,
+                    cancellationSignal);
+        } catch (DamagedSnapshotException e) {
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private ArrayList<ContactNumber> getLooseMatchesOrThrow(String query,
+            SmartDialNameMatcher nameMatcher, long currentTimeMillis, int maxEntries,
+            CancellationSignal cancellationSignal) {
+        /** A view per lookup, since buffers are not thread-safe. */
+        final ByteBuffer buffer = mBuffer.duplicate();
+        final BitSet slots = new BitSet(mSlotCount);
+        for (int i = findFirstPrefix(buffer, query); i < mPrefixCount
+                && startsWith(buffer, i, query); i++) {
+            slots.set(buffer.getInt(mPrefixSlotTable + 4 * i));
+        }
+        final ArrayList<Entry> candidates = Lists.newArrayList();
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            final int end = buffer.getInt(mSlotStartTable + 4 * (slot + 1));
+            for (int i = buffer.getInt(mSlotStartTable + 4 * slot); i < end; i++) {
+                candidates.add(readEntry(buffer, slot, i));
+            }
+        }
+        return SmartDialIndex.selectMatches(query, nameMatcher, candidates, currentTimeMillis,
+                maxEntries, cancellationSignal);
+    }
+
+    /** Returns the position of the first prefix not smaller than the query. */
+    private int findFirstPrefix(ByteBuffer buffer, String query) {
+        int low = 0;
+        int high = mPrefixCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (comparePrefix(buffer, mid, query) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int comparePrefix(ByteBuffer buffer, int prefix, String query) {
+        final int offset = buffer.getInt(mPrefixOffsetTable + 4 * prefix);
+        final int length = buffer.getInt(offset);
+        final int common = Math.min(length, query.length());
+        for (int i = 0; i < common; i++) {
+            final char ch = buffer.getChar(offset + 4 + 2 * i);
+            if (ch != query.charAt(i)) {
+                return ch - query.charAt(i);
+            }
+        }
+        return length - query.length();
+    }
+
+    private boolean startsWith(ByteBuffer buffer, int prefix, String query) {
+        final int offset = buffer.getInt(mPrefixOffsetTable + 4 * prefix);
+        if (buffer.getInt(offset) < query.length()) {
+            return false;
+        }
+        for (int i = 0; i < query.length(); i++) {
+            if (buffer.getChar(offset + 4 + 2 * i) != query.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Entry readEntry(ByteBuffer buffer, int slot, int entry) {
+        buffer.position(buffer.getInt(mEntryOffsetTable + 4 * entry));
+        final long id = buffer.getLong();
+        final long dataId = buffer.getLong();
+        final long photoId = buffer.getLong();
+        final long lastTimeUsed = buffer.getLong();
+        final int timesUsed = buffer.getInt();
+        final int flags = buffer.get();
+        final int countryCodeOffset = buffer.getInt();
+        final int nanpCodeOffset = buffer.getInt();
+        final String displayName = readString(buffer);
+        final String phoneNumber = readString(buffer);
+        final String lookupKey = readString(buffer);
+        final String normalizedName = readString(buffer);
+        final String normalizedNumber = readString(buffer);
+        /** Always written, since the smartdial table does not allow them to be null. */
+        if (displayName == null || phoneNumber == null || lookupKey == null) {
+            throw new DamagedSnapshotException();
+        }
+        return new Entry(slot,
+                new ContactNumber(id, dataId, displayName, phoneNumber, lookupKey, photoId),
+                (flags & FLAG_STARRED) != 0, (flags & FLAG_SUPER_PRIMARY) != 0, lastTimeUsed,
+                timesUsed, (flags & FLAG_IN_VISIBLE_GROUP) != 0, (flags & FLAG_PRIMARY) != 0,
+                normalizedName, normalizedNumber, countryCodeOffset, nanpCodeOffset);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || 2L * length > buffer.remaining()) {
+            throw new DamagedSnapshotException();
+        }
+        final char[] chars = new char[length];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + 2 * length);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compact trie over the dialpad digit alphabet 0-9. Each key is a string of digits as produced by
+ * {@link com.android.dialer.dialpad.SmartDialPrefix#generateNamePrefixes(String)} and
+ * {@link com.android.dialer.dialpad.SmartDialPrefix#parseToNumberTokens(String)}, and each key
+ * carries one or more integer values (contact slots in {@link SmartDialIndex}).
+ *
+ * Nodes and values are stored in flat int arrays rather than node objects, so that a trie for a
+ * large address book costs a handful of arrays instead of hundreds of thousands of small objects.
+ * Node 0 is the root. Since the root can never be a child, a child pointer of 0 means "no child".
+ *
+ * The trie is built on a single thread and is read-only afterwards. It is safe to share between
+ * threads once it has been safely published. To add keys to a published trie, add them to a
+ * {@link #copy()} of it instead.
+ */
+public class SmartDialTrie {
+    private static final int RADIX = 10;
+    private static final int ROOT = 0;
+    private static final int NO_CHILD = 0;
+    private static final int NO_VALUE = -1;
+
+    private static final int INITIAL_NODE_CAPACITY = 256;
+    private static final int INITIAL_VALUE_CAPACITY = 256;
+
+    /** Child pointers, indexed by node * RADIX + digit. */
+    private int[] mChildren;
+    /** Index of the first value stored at a node, or NO_VALUE. */
+    private int[] mFirstValue;
+    private int mNodeCount;
+
+    /** Values, chained per node through mNextValue. */
+    private int[] mValues;
+    private int[] mNextValue;
+    private int mValueCount;
+
+    public SmartDialTrie() {
+        mChildren = new int[INITIAL_NODE_CAPACITY * RADIX];
+        mFirstValue = new int[INITIAL_NODE_CAPACITY];
+        mValues = new int[INITIAL_VALUE_CAPACITY];
+        mNextValue = new int[INITIAL_VALUE_CAPACITY];
+        mFirstValue[ROOT] = NO_VALUE;
+        mNodeCount = 1;
+    }
+
+    private SmartDialTrie(SmartDialTrie other) {
+        mChildren = other.mChildren.clone();
+        mFirstValue = other.mFirstValue.clone();
+        mNodeCount = other.mNodeCount;
+        mValues = other.mValues.clone();
+        mNextValue = other.mNextValue.clone();
+        mValueCount = other.mValueCount;
+    }
+
+    /**
+     * Returns a copy of the trie, which can be added to without affecting this trie. Nodes keep
+     * their numbers in the copy.
+     */
+    public SmartDialTrie copy() {
+        return new SmartDialTrie(this);
+    }
+
+    /**
+     * Associates a value with a key.
+     *
+     * @param key Digit string. Keys containing characters other than 0-9 are ignored.
+     * @param value Value to store at the node for the key.
+     * @return Whether the key was valid and has been stored.
+     */
+    public boolean put(CharSequence key, int value) {
+        final int length = key.length();
+        if (length == 0) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            final char ch = key.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        int node = ROOT;
+        for (int i = 0; i < length; i++) {
+            final int slot = node * RADIX + (key.charAt(i) - '0');
+            int child = mChildren[slot];
+            if (child == NO_CHILD) {
+                child = newNode();
+                mChildren[slot] = child;
+            }
+            node = child;
+        }
+        /** Values for a contact are added consecutively, so only the head needs to be checked. */
+        final int head = mFirstValue[node];
+        if (head != NO_VALUE && mValues[head] == value) {
+            return true;
+        }
+        final int index = newValue(value);
+        mNextValue[index] = head;
+        mFirstValue[node] = index;
+        return true;
+    }
+
+    /**
+     * Finds the node reached by following the given digits from the root.
+     *
+     * @return The node, or -1 if no key starts with the digits.
+     */
+    public int findNode(CharSequence prefix) {
+        return findNode(ROOT, prefix, 0);
+    }
+
+    /**
+     * Finds the node reached by following the digits of key, starting at the given offset, from
+     * an already known node.
+     *
+     * @return The node, or -1 if no key continues with the digits.
+     */
+    public int findNode(int fromNode, CharSequence key, int offset) {
+        if (fromNode < 0 || fromNode >= mNodeCount) {
+            return -1;
+        }
+        int node = fromNode;
+        final int length = key.length();
+        for (int i = offset; i < length; i++) {
+            final char ch = key.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            node = mChildren[node * RADIX + (ch - '0')];
+            if (node == NO_CHILD) {
+                return -1;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Sets the bits of all values stored at the node and at any node below it, i.e. the values of
+     * every key that starts with the path to the node.
+     */
+    public void collect(int node, BitSet out) {
+        if (node < 0 || node >= mNodeCount) {
+            return;
+        }
+        int[] stack = new int[32];
+        int top = 0;
+        stack[top++] = node;
+        while (top > 0) {
+            final int current = stack[--top];
+            for (int v = mFirstValue[current]; v != NO_VALUE; v = mNextValue[v]) {
+                out.set(mValues[v]);
+            }
+            final int base = current * RADIX;
+            for (int digit = 0; digit < RADIX; digit++) {
+                final int child = mChildren[base + digit];
+                if (child != NO_CHILD) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * Convenience method combining {@link #findNode(CharSequence)} and
+     * {@link #collect(int, BitSet)}.
+     *
+     * @return Whether any key starts with the prefix.
+     */
+    public boolean collect(CharSequence prefix, BitSet out) {
+        final int node = findNode(prefix);
+        if (node < 0) {
+            return false;
+        }
+        collect(node, out);
+        return true;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    public int getValueCount() {
+        return mValueCount;
+    }
+
+    private int newNode() {
+        if (mNodeCount == mFirstValue.length) {
+            final int capacity = mNodeCount * 2;
+            mFirstValue = Arrays.copyOf(mFirstValue, capacity);
+            mChildren = Arrays.copyOf(mChildren, capacity * RADIX);
+        }
+        mFirstValue[mNodeCount] = NO_VALUE;
+        return mNodeCount++;
+    }
+
+    private int newValue(int value) {
+        if (mValueCount == mValues.length) {
+            final int capacity = mValueCount * 2;
+            mValues = Arrays.copyOf(mValues, capacity);
+            mNextValue = Arrays.copyOf(mNextValue, capacity);
+        }
+        mValues[mValueCount] = value;
+        return mValueCount++;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Contacts;
+import android.util.Log;
+
+import com.android.dialer.dialpad.SmartDialPrefix;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Keeps the smart dial database up to date while the dialer is shown, so that it is already fresh
+ * when the dialpad is opened.
+ *
+ * The updater observes the contacts provider. Bursts of change notifications, such as the ones of
+ * a sync, are coalesced into a single incremental update of the smart dial database, which runs
+ * on a background thread. An update also runs when the updater starts, to catch up with the
+ * changes made while it was stopped.
+ */
+class SmartDialUpdater {
+    private static final String TAG = "SmartDialUpdater";
+    private static final boolean DEBUG = false | Debug.isDebug();
+
+    /** An update waits this long after a change, in case more changes follow. */
+    @VisibleForTesting
+    static final long COALESCE_DELAY_MS = 1000;
+
+    /** Changes never keep the update waiting longer than this after the first of them. */
+    @VisibleForTesting
+    static final long MAX_COALESCE_DELAY_MS = 10000;
+
+    private static final int MSG_INITIALIZE = 1;
+    private static final int MSG_UPDATE = 2;
+
+    private final Context mContext;
+    private final DialerDatabaseHelper mHelper;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final ContentObserver mObserver;
+
+    /**
+     * Time of the first change that has not been applied yet, or -1. Only accessed on the update
+     * thread.
+     */
+    private long mFirstPendingChangeMillis = -1;
+
+    SmartDialUpdater(Context context, DialerDatabaseHelper helper) {
+        mContext = context.getApplicationContext();
+        mHelper = helper;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_INITIALIZE:
+                        /** Prefixes of numbers depend on the NANP settings. */
+                        SmartDialPrefix.initializeNanpSettings(mContext);
+                        break;
+                    case MSG_UPDATE:
+                        update();
+                        break;
+                }
+            }
+        };
+        /** Notifications are delivered on the update thread, like the updates. */
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onContactsChanged(SystemClock.uptimeMillis());
+            }
+        };
+    }
+
+    /**
+     * Starts observing the contacts provider, and schedules an update right away.
+     */
+    void start() {
+        mContext.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true,
+                mObserver);
+        mHandler.sendEmptyMessage(MSG_INITIALIZE);
+        mHandler.sendEmptyMessage(MSG_UPDATE);
+    }
+
+    /**
+     * Stops observing the contacts provider. Pending updates are dropped.
+     */
+    void stop() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+    }
+
+    private void onContactsChanged(long nowMillis) {
+        if (mFirstPendingChangeMillis < 0) {
+            mFirstPendingChangeMillis = nowMillis;
+        }
+        mHandler.removeMessages(MSG_UPDATE);
+        mHandler.sendEmptyMessageAtTime(MSG_UPDATE,
+                getUpdateTimeMillis(mFirstPendingChangeMillis, nowMillis));
+    }
+
+    /**
+     * Returns when the update of pending changes should run.
+     *
+     * @param firstChangeMillis Time of the first pending change.
+     * @param lastChangeMillis Time of the latest pending change.
+     */
+    @VisibleForTesting
+    static long getUpdateTimeMillis(long firstChangeMillis, long lastChangeMillis) {
+        return Math.min(lastChangeMillis + COALESCE_DELAY_MS,
+                firstChangeMillis + MAX_COALESCE_DELAY_MS);
+    }
+
+    private void update() {
+        /** Changes notified from now on schedule another update. */
+        mFirstPendingChangeMillis = -1;
+        if (DEBUG) {
+            Log.v(TAG, "Updating smart dial database");
+        }
+        try {
+            mHelper.updateSmartDialDatabase();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to update the smart dial database", e);
+        }
+    }
+}
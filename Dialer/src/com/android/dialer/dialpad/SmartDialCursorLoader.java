@@ -19,14 +19,16 @@ package com.android.dialer.dialpad;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
-import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
 import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.SmartDialSearchSession;
 import com.android.dialerbind.DatabaseHelperManager;
 
 import java.util.ArrayList;
@@ -45,6 +47,13 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
 
     private String mQuery;
     private SmartDialNameMatcher mNameMatcher;
+    private SmartDialSearchSession mSearchSession;
+    private SmartDialDebouncer mDebouncer;
+    /** Time at which the query was configured, from {@link SystemClock#uptimeMillis}. */
+    private long mQueryMillis;
+
+    /** Cancels the load in progress, if any. */
+    private CancellationSignal mCancellationSignal;
 
     public SmartDialCursorLoader(Context context) {
         super(context);
@@ -60,14 +69,35 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
             Log.v(TAG, "Configure new query to be " + query);
         }
         mQuery = SmartDialNameMatcher.normalizeNumber(query, SmartDialPrefix.getMap());
+        mQueryMillis = SystemClock.uptimeMillis();
 
         /** Constructs a name matcher object for matching names. */
         mNameMatcher = new SmartDialNameMatcher(mQuery, SmartDialPrefix.getMap());
     }
 
+    /**
+     * Sets the session shared by the loaders of consecutive keystrokes. When the query extends
+     * the previous query of the session, the previous results are narrowed down instead of
+     * querying the database again.
+     * @param session The session, or null to always run a full query.
+     */
+    public void setSearchSession(SmartDialSearchSession session) {
+        mSearchSession = session;
+    }
+
+    /**
+     * Sets the debouncer shared by the loaders of consecutive keystrokes. The load waits for the
+     * delay it gives, so that it can be canceled before doing any work if another key is typed.
+     * @param debouncer The debouncer, or null to load right away.
+     */
+    public void setDebouncer(SmartDialDebouncer debouncer) {
+        mDebouncer = debouncer;
+    }
+
     /**
      * Queries the SmartDial database and loads results in background.
      * @return Cursor of contacts that matches the SmartDial query.
+     * @throws OperationCanceledException If the load has been canceled.
      */
     @Override
     public Cursor loadInBackground() {
@@ -75,29 +105,48 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
             Log.v(TAG, "Load in background " + mQuery);
         }
 
-        /** Loads results from the database helper. */
-        final DialerDatabaseHelper dialerDatabaseHelper = DatabaseHelperManager.getDatabaseHelper(
-                mContext);
-        final ArrayList<ContactNumber> allMatches = dialerDatabaseHelper.getLooseMatches(mQuery,
-                mNameMatcher);
+        final CancellationSignal cancellationSignal;
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            cancellationSignal = new CancellationSignal();
+            mCancellationSignal = cancellationSignal;
+        }
+        final ArrayList<ContactNumber> allMatches;
+        try {
+            if (mDebouncer != null) {
+                mDebouncer.await(mQueryMillis, cancellationSignal);
+            }
+
+            /** Loads results from the database helper. */
+            final DialerDatabaseHelper dialerDatabaseHelper =
+                    DatabaseHelperManager.getDatabaseHelper(mContext);
+            allMatches = dialerDatabaseHelper.getLooseMatches(mQuery, mNameMatcher,
+                    mSearchSession, cancellationSignal);
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
 
         if (DEBUG) {
             Log.v(TAG, "Loaded matches " + String.valueOf(allMatches.size()));
         }
 
-        /** Constructs a cursor for the returned array of results. */
-        final MatrixCursor cursor = new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
-        Object[] row = new Object[PhoneQuery.PROJECTION_PRIMARY.length];
-        for (ContactNumber contact : allMatches) {
-            row[PhoneQuery.PHONE_ID] = contact.dataId;
-            row[PhoneQuery.PHONE_NUMBER] = contact.phoneNumber;
-            row[PhoneQuery.CONTACT_ID] = contact.id;
-            row[PhoneQuery.LOOKUP_KEY] = contact.lookupKey;
-            row[PhoneQuery.PHOTO_ID] = contact.photoId;
-            row[PhoneQuery.DISPLAY_NAME] = contact.displayName;
-            cursor.addRow(row);
+        /** Wraps the results without copying them. */
+        return new SmartDialResultCursor(allMatches);
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
         }
-        return cursor;
     }
 
     @Override
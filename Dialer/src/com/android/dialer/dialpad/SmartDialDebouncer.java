@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Delays SmartDial lookups while the user is typing quickly, so that the lookup of a keystroke
+ * that is about to be superseded by the next one does not compete for the CPU with the lookup
+ * that will actually be shown.
+ *
+ * The delay adapts to the typing speed: it follows an exponentially weighted moving average of
+ * the interval between keystrokes. A pause between two keystrokes resets it, so that the first
+ * digits of a new number and slow typists get no delay at all.
+ *
+ * A debouncer is meant to live as long as the dialpad search UI, and outlives the individual
+ * loaders that are created for each keystroke. It is thread-safe.
+ */
+public class SmartDialDebouncer {
+
+    /** Keystrokes further apart than this are not considered part of the same burst. */
+    @VisibleForTesting
+    static final long MAX_TYPING_INTERVAL_MS = 400;
+
+    /** Upper bound of the delay, so that results never feel late. */
+    @VisibleForTesting
+    static final long MAX_DELAY_MS = 150;
+
+    /** Weight of the latest interval in the moving average. */
+    private static final float SMOOTHING = 0.3f;
+
+    /**
+     * The delay slightly exceeds the expected interval, so that the next keystroke usually
+     * arrives before the lookup starts.
+     */
+    private static final float DELAY_FACTOR = 1.25f;
+
+    /** Source of time for {@link #await}, replaced by tests. */
+    @VisibleForTesting
+    interface Clock {
+        /** Returns the current time, like {@link SystemClock#uptimeMillis}. */
+        long uptimeMillis();
+
+        /** Waits on the lock, which is held by the caller, for at most the given time. */
+        void waitOn(Object lock, long millis) throws InterruptedException;
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void waitOn(Object lock, long millis) throws InterruptedException {
+            lock.wait(millis);
+        }
+    };
+
+    private final Clock mClock;
+
+    private String mLastQuery;
+    private long mLastKeystrokeMillis = -1;
+    /** Average interval between keystrokes of the current burst, or -1 outside of bursts. */
+    private float mAverageIntervalMillis = -1;
+
+    public SmartDialDebouncer() {
+        this(SYSTEM_CLOCK);
+    }
+
+    @VisibleForTesting
+    SmartDialDebouncer(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Records a keystroke, if the query differs from the previous one.
+     *
+     * @param query Query after the keystroke.
+     * @param uptimeMillis Time of the keystroke, from {@link android.os.SystemClock#uptimeMillis}.
+     */
+    public synchronized void onQueryChanged(String query, long uptimeMillis) {
+        if (query == null ? mLastQuery == null : query.equals(mLastQuery)) {
+            return;
+        }
+        mLastQuery = query;
+        if (mLastKeystrokeMillis >= 0) {
+            final long interval = uptimeMillis - mLastKeystrokeMillis;
+            if (interval < 0 || interval > MAX_TYPING_INTERVAL_MS) {
+                mAverageIntervalMillis = -1;
+            } else if (mAverageIntervalMillis < 0) {
+                mAverageIntervalMillis = interval;
+            } else {
+                mAverageIntervalMillis += SMOOTHING * (interval - mAverageIntervalMillis);
+            }
+        }
+        mLastKeystrokeMillis = uptimeMillis;
+    }
+
+    /**
+     * Returns how long the lookup of the latest keystroke should wait after the keystroke.
+     */
+    public synchronized long getDelayMillis() {
+        if (mAverageIntervalMillis < 0) {
+            return 0;
+        }
+        return Math.min(MAX_DELAY_MS, Math.round(mAverageIntervalMillis * DELAY_FACTOR));
+    }
+
+    /**
+     * Blocks until the delay has elapsed since the keystroke, or until the lookup is canceled.
+     *
+     * @param keystrokeMillis Time of the keystroke, from
+     * {@link android.os.SystemClock#uptimeMillis}.
+     * @param cancellationSignal Signal canceling the lookup.
+     * @throws OperationCanceledException If the lookup has been canceled.
+     */
+    public void await(long keystrokeMillis, CancellationSignal cancellationSignal) {
+        final long deadlineMillis = keystrokeMillis + getDelayMillis();
+        if (deadlineMillis <= mClock.uptimeMillis()) {
+            cancellationSignal.throwIfCanceled();
+            return;
+        }
+        final Object lock = new Object();
+        cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+        });
+        try {
+            synchronized (lock) {
+                long remainingMillis = deadlineMillis - mClock.uptimeMillis();
+                while (remainingMillis > 0 && !cancellationSignal.isCanceled()) {
+                    mClock.waitOn(lock, remainingMillis);
+                    remainingMillis = deadlineMillis - mClock.uptimeMillis();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        } finally {
+            /** The signal is handed to the database next, which sets its own listener. */
+            cancellationSignal.setOnCancelListener(null);
+        }
+        cancellationSignal.throwIfCanceled();
+    }
+}
@@ -45,21 +45,41 @@ public class SmartDialNameMatcher {
 
     private final ArrayList<SmartDialMatchPosition> mMatchPositions = Lists.newArrayList();
 
-    public static final SmartDialMap LATIN_SMART_DIAL_MAP = new LatinSmartDialMap();
+    /**
+     * Table-backed {@link LatinSmartDialMap}. Building the tables maps every char, so this single
+     * instance is shared by all the users of the Latin map.
+     */
+    public static final SmartDialMap LATIN_TABLE_SMART_DIAL_MAP =
+            new TableSmartDialMap(new LatinSmartDialMap());
 
     private final SmartDialMap mMap;
 
     private String mNameMatchMask = "";
     private String mPhoneNumberMatchMask = "";
 
+    // Marks characters of a normalized name that have no dialpad equivalent
+    private static final char SEPARATOR = ' ';
+
+    // Scratch buffers of matchesInPlace, reused from one name to the next. mNameChars holds the
+    // dialpad digit of each character of the name, or SEPARATOR. mLevelPositions holds, for each
+    // level of recursion, the start/end pairs of the match found at that level.
+    private final char[] mQueryChars;
+    private char[] mNameChars = new char[32];
+    private final int[][] mLevelPositions;
+    private int mMatchPositionCount;
+
     @VisibleForTesting
     public SmartDialNameMatcher(String query) {
-        this(query, LATIN_SMART_DIAL_MAP);
+        this(query, LATIN_TABLE_SMART_DIAL_MAP);
     }
 
     public SmartDialNameMatcher(String query, SmartDialMap map) {
         mQuery = query;
         mMap = map;
+        mQueryChars = query == null ? new char[0] : query.toCharArray();
+        // Each level of recursion consumes at least one character of the query, and adds at most
+        // one match position per character consumed.
+        mLevelPositions = new int[mQueryChars.length + 1][mQueryChars.length * 2];
     }
 
     /**
@@ -85,6 +105,39 @@ public class SmartDialNameMatcher {
         }
     }
 
+    /**
+     * Converts a display name to the form consumed by {@link #matchesNormalized(String)}: each
+     * character is replaced by its dialpad digit, or by a space if it has no dialpad equivalent.
+     * The result has the same length as the name, so token boundaries and match positions are
+     * the same in both.
+     *
+     * @param displayName Display name to normalize
+     * @return The normalized name, or null if displayName is null
+     */
+    public static String normalizeName(String displayName, SmartDialMap map) {
+        if (displayName == null) {
+            return null;
+        }
+        final char[] chars = new char[displayName.length()];
+        normalizeName(displayName, chars, map);
+        return new String(chars);
+    }
+
+    private static void normalizeName(String displayName, char[] out, SmartDialMap map) {
+        final int length = displayName.length();
+        for (int i = 0; i < length; i++) {
+            char ch = map.normalizeCharacter(displayName.charAt(i));
+            if (map.isValidDialpadCharacter(ch)) {
+                if (map.isValidDialpadAlphabeticChar(ch)) {
+                    ch = map.getDialpadNumericCharacter(ch);
+                }
+            } else {
+                ch = SEPARATOR;
+            }
+            out[i] = ch;
+        }
+    }
+
     /**
      * Strips a phone number of unnecessary characters (spaces, dashes, etc.)
      *
@@ -182,6 +235,39 @@ public class SmartDialNameMatcher {
         return matchesNumber(phoneNumber, query, true);
     }
 
+    /**
+     * Same as {@link #matchesNumber(String, String)} != null, but takes a number that has already
+     * been normalized and parsed, so that it is matched without parsing or allocation. The
+     * positions of the match are not recorded.
+     *
+     * @param normalizedNumber - Number normalized by {@link #normalizeNumber(String, SmartDialMap)}
+     * @param query - Normalized query (only contains numbers from 0-9)
+     * @param countryCodeOffset - Offset of the national number in the normalized number, or 0
+     * @param nanpCodeOffset - Offset of the NANP local number in the normalized number, or 0
+     * @return Whether the number, the national number or the local number match the query
+     */
+    public boolean matchesNormalizedNumber(String normalizedNumber, String query,
+            int countryCodeOffset, int nanpCodeOffset) {
+        if (TextUtils.isEmpty(normalizedNumber) || TextUtils.isEmpty(query)) {
+            return false;
+        }
+        return matchesNormalizedNumberWithOffset(normalizedNumber, query, 0)
+                || (countryCodeOffset != 0 && matchesNormalizedNumberWithOffset(
+                        normalizedNumber, query, countryCodeOffset))
+                || (nanpCodeOffset != 0 && matchesNormalizedNumberWithOffset(
+                        normalizedNumber, query, nanpCodeOffset));
+    }
+
+    /**
+     * Like {@link #matchesNumberWithOffset}, the digits are compared until either the query or the
+     * number ends.
+     */
+    private static boolean matchesNormalizedNumberWithOffset(String normalizedNumber,
+            String query, int offset) {
+        final int length = Math.min(query.length(), normalizedNumber.length() - offset);
+        return length >= 0 && normalizedNumber.regionMatches(offset, query, 0, length);
+    }
+
     /**
      * Matches a phone number against a query, taking care of formatting characters
      *
@@ -419,6 +505,144 @@ public class SmartDialNameMatcher {
         return matchesCombination(displayName, mQuery, mMatchPositions);
     }
 
+    /**
+     * Same as {@link #matches(String)}, but does not allocate any memory once the name buffer is
+     * large enough, which makes it suitable for filtering many candidates per keystroke. Each
+     * character of the name is normalized exactly once, and the highlight mask returned by
+     * {@link #getNameMatchPositionsInString()} is not updated.
+     *
+     * The match positions are available from {@link #getMatchPositionArray()} until the next call.
+     */
+    public boolean matchesInPlace(String displayName) {
+        mMatchPositionCount = 0;
+        if (TextUtils.isEmpty(displayName) || mQueryChars.length == 0) {
+            return false;
+        }
+        final int nameLength = displayName.length();
+        ensureNameCapacity(nameLength);
+        normalizeName(displayName, mNameChars, mMap);
+        mMatchPositionCount = matchesCombinationInPlace(0, 0, 0, nameLength);
+        return mMatchPositionCount > 0;
+    }
+
+    /**
+     * Same as {@link #matchesInPlace(String)}, but takes a name that has already been converted
+     * by {@link #normalizeName(String, SmartDialMap)} with the map of this matcher, so that no
+     * transliteration happens while matching.
+     */
+    public boolean matchesNormalized(String normalizedName) {
+        mMatchPositionCount = 0;
+        if (TextUtils.isEmpty(normalizedName) || mQueryChars.length == 0) {
+            return false;
+        }
+        final int nameLength = normalizedName.length();
+        ensureNameCapacity(nameLength);
+        normalizedName.getChars(0, nameLength, mNameChars, 0);
+        mMatchPositionCount = matchesCombinationInPlace(0, 0, 0, nameLength);
+        return mMatchPositionCount > 0;
+    }
+
+    private void ensureNameCapacity(int nameLength) {
+        if (mNameChars.length < nameLength) {
+            mNameChars = new char[Math.max(nameLength, mNameChars.length * 2)];
+        }
+    }
+
+    /**
+     * Returns the number of match positions found by the last call to {@link #matchesInPlace}.
+     */
+    public int getMatchPositionCount() {
+        return mMatchPositionCount;
+    }
+
+    /**
+     * Returns the match positions found by the last call to {@link #matchesInPlace}, as
+     * consecutive start/end pairs. Only the first 2 * {@link #getMatchPositionCount()} elements
+     * are valid, and the array is overwritten by the next call.
+     */
+    public int[] getMatchPositionArray() {
+        return mLevelPositions[0];
+    }
+
+    /**
+     * Counterpart of {@link #matchesCombination} working on the pre-normalized name in mNameChars
+     * with absolute offsets instead of substrings, so that positions found by the recursion do
+     * not need to be advanced.
+     *
+     * @param level Depth of recursion, selects the buffer of mLevelPositions to write to.
+     * @param nameFrom Offset in the name to start matching at.
+     * @param queryFrom Offset in the query to start matching at.
+     * @param nameLength Length of the name.
+     * @return Number of match positions written to mLevelPositions[level], 0 if no match.
+     */
+    private int matchesCombinationInPlace(int level, int nameFrom, int queryFrom, int nameLength) {
+        final char[] name = mNameChars;
+        final char[] query = mQueryChars;
+        final int queryLength = query.length - queryFrom;
+        if (queryLength == 0 || nameLength - nameFrom < queryLength) {
+            return 0;
+        }
+        final int[] positions = mLevelPositions[level];
+        int partialCount = 0;
+
+        int nameStart = nameFrom;
+        int queryStart = 0;
+        int tokenStart = nameFrom;
+        int seperatorCount = 0;
+        while (nameStart < nameLength && queryStart < queryLength) {
+            final char ch = name[nameStart];
+            if (ch != SEPARATOR) {
+                if (ch != query[queryFrom + queryStart]) {
+                    // See matchesCombination for the three cases handled here.
+                    if (queryStart == 0 || name[nameStart - 1] != SEPARATOR) {
+                        while (nameStart < nameLength && name[nameStart] != SEPARATOR) {
+                            nameStart++;
+                        }
+                        nameStart++;
+                    }
+                    queryStart = 0;
+                    seperatorCount = 0;
+                    tokenStart = nameStart;
+                } else {
+                    if (queryStart == queryLength - 1) {
+                        // A full token match takes precedence over any partial match
+                        positions[0] = tokenStart;
+                        positions[1] = queryLength + tokenStart + seperatorCount;
+                        return 1;
+                    } else if (ALLOW_INITIAL_MATCH && queryStart < INITIAL_LENGTH_LIMIT) {
+                        int j;
+                        for (j = nameStart; j < nameLength; j++) {
+                            if (name[j] == SEPARATOR) {
+                                break;
+                            }
+                        }
+                        if (j < nameLength - 1) {
+                            final int count = matchesCombinationInPlace(level + 1, j + 1,
+                                    queryFrom + queryStart + 1, nameLength);
+                            if (count > 0) {
+                                positions[0] = nameStart;
+                                positions[1] = nameStart + 1;
+                                System.arraycopy(mLevelPositions[level + 1], 0, positions, 2,
+                                        count * 2);
+                                partialCount = count + 1;
+                            }
+                        }
+                    }
+                    nameStart++;
+                    queryStart++;
+                }
+            } else {
+                nameStart++;
+                if (queryStart == 0) {
+                    tokenStart = nameStart;
+                } else {
+                    seperatorCount++;
+                }
+            }
+        }
+        return partialCount;
+    }
+
     public ArrayList<SmartDialMatchPosition> getMatchPositions() {
         // Return a clone of mMatchPositions so that the caller can use it without
         // worrying about it changing
@@ -27,6 +27,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -49,46 +50,58 @@ public class SmartDialPrefix {
     private static final int LAST_TOKENS_FOR_INITIALS = 2;
     private static final int FIRST_TOKENS_FOR_INITIALS = 2;
 
+    /** Default cap on the total length of the name prefixes stored for one contact, see
+     * {@link #generateBoundedNamePrefixes(String, int)}. Prefixes are made of ASCII digits, so
+     * their length is their size in bytes.
+     */
+    public static final int DEFAULT_MAX_NAME_PREFIX_BYTES = 128;
+
     /** The country code of the user's sim card obtained by calling getSimCountryIso*/
     private static final String PREF_USER_SIM_COUNTRY_CODE =
             "DialtactsActivity_user_sim_country_code";
     private static final String PREF_USER_SIM_COUNTRY_CODE_DEFAULT = null;
-    private static String sUserSimCountryCode = PREF_USER_SIM_COUNTRY_CODE_DEFAULT;
+    private static volatile String sUserSimCountryCode = PREF_USER_SIM_COUNTRY_CODE_DEFAULT;
 
-    /** Indicates whether user is in NANP regions.*/
-    private static boolean sUserInNanpRegion = false;
+    /**
+     * Indicates whether user is in NANP regions. Set on the main thread, but read by the threads
+     * generating prefixes.
+     */
+    private static volatile boolean sUserInNanpRegion = false;
 
     /** Set of country names that use NANP code.*/
-    private static Set<String> sNanpCountries = null;
+    private static volatile Set<String> sNanpCountries = null;
 
     /** Set of supported country codes in front of the phone number. */
-    private static Set<String> sCountryCodes = null;
+    private static volatile Set<String> sCountryCodes = null;
 
     /** Dialpad mapping. */
-    private static final SmartDialMap mMap = new LatinSmartDialMap();
+    private static final SmartDialMap mMap = SmartDialNameMatcher.LATIN_TABLE_SMART_DIAL_MAP;
 
-    private static boolean sNanpInitialized = false;
+    private static volatile boolean sNanpInitialized = false;
 
     /** Initializes the Nanp settings, and finds out whether user is in a NANP region.*/
     public static void initializeNanpSettings(Context context){
         final TelephonyManager manager = (TelephonyManager) context.getSystemService(
                 Context.TELEPHONY_SERVICE);
+        /** Worked out locally, so that other threads never see an intermediate value. */
+        String userSimCountryCode = PREF_USER_SIM_COUNTRY_CODE_DEFAULT;
         if (manager != null) {
-            sUserSimCountryCode = manager.getSimCountryIso();
+            userSimCountryCode = manager.getSimCountryIso();
         }
 
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
-        if (sUserSimCountryCode != null) {
+        if (userSimCountryCode != null) {
             /** Updates shared preferences with the latest country obtained from getSimCountryIso.*/
-            prefs.edit().putString(PREF_USER_SIM_COUNTRY_CODE, sUserSimCountryCode).apply();
+            prefs.edit().putString(PREF_USER_SIM_COUNTRY_CODE, userSimCountryCode).apply();
         } else {
             /** Uses previously stored country code if loading fails. */
-            sUserSimCountryCode = prefs.getString(PREF_USER_SIM_COUNTRY_CODE,
+            userSimCountryCode = prefs.getString(PREF_USER_SIM_COUNTRY_CODE,
                     PREF_USER_SIM_COUNTRY_CODE_DEFAULT);
         }
+        sUserSimCountryCode = userSimCountryCode;
         /** Queries the NANP country list to find out whether user is in a NANP region.*/
-        sUserInNanpRegion = isCountryNanp(sUserSimCountryCode);
+        sUserInNanpRegion = isCountryNanp(userSimCountryCode);
         sNanpInitialized = true;
     }
 
@@ -108,10 +121,10 @@ public class SmartDialPrefix {
         final String countryCode;
 
         /** Offset of national number after the country code. */
-        final int countryCodeOffset;
+        public final int countryCodeOffset;
 
         /** Offset of local number after NANP area code.*/
-        final int nanpCodeOffset;
+        public final int nanpCodeOffset;
 
         public PhoneNumberTokens(String countryCode, int countryCodeOffset, int nanpCodeOffset) {
             this.countryCode = countryCode;
@@ -164,10 +177,17 @@ public class SmartDialPrefix {
      * @return A List of strings, whose prefix can be used to look up the contact.
      */
     public static ArrayList<String> generateNamePrefixes(String index) {
-        final ArrayList<String> result = Lists.newArrayList();
-
         /** Parses the name into a list of tokens.*/
-        final ArrayList<String> indexTokens = parseToIndexTokens(index);
+        return generateNamePrefixes(parseToIndexTokens(index));
+    }
+
+    /**
+     * Generates the same list as {@link #generateNamePrefixes(String)} from the tokens of the
+     * name. The first indexTokens.size() strings of the list are the full token combinations,
+     * from the one starting at the last token to the one starting at the first token.
+     */
+    private static ArrayList<String> generateNamePrefixes(ArrayList<String> indexTokens) {
+        final ArrayList<String> result = Lists.newArrayList();
 
         if (indexTokens.size() > 0) {
             /** Adds the full token combinations to the list. For example, a contact with name
@@ -214,6 +234,85 @@ public class SmartDialPrefix {
         return result;
     }
 
+    /**
+     * Generates a bounded list of strings, any prefix of which can be used to look up the
+     * contact's name. Names with many tokens, such as company names, generate long lists of
+     * combinations through {@link #generateNamePrefixes(String)}, most of which are never typed.
+     *
+     * Every token and every initial combination is always kept, so that the contact can still be
+     * found by any single word of its name or by its initials. The combinations spanning several
+     * full tokens share the remaining length, up to maxBytes: from the shortest to the longest,
+     * each one is truncated to an equal share of what is left, so that a long name loses the end
+     * of its longest combinations rather than whole combinations.
+     *
+     * Since the prefix table is looked up by prefix, a string that is a prefix of another one
+     * in the list finds nothing more, and is dropped.
+     *
+     * @param index The contact's name in string.
+     * @param maxBytes Maximum total length of the returned strings, unless the tokens and the
+     * initial combinations alone are longer.
+     * @return A List of strings, whose prefix can be used to look up the contact.
+     */
+    public static ArrayList<String> generateBoundedNamePrefixes(String index, int maxBytes) {
+        final ArrayList<String> indexTokens = parseToIndexTokens(index);
+        final ArrayList<String> prefixes = generateNamePrefixes(indexTokens);
+        final int tokenCount = indexTokens.size();
+
+        final ArrayList<String> result = Lists.newArrayList();
+        int bytes = 0;
+        for (int i = 0; i < tokenCount; i++) {
+            bytes += addIfNotPrefix(indexTokens.get(i), result);
+        }
+        for (int i = tokenCount; i < prefixes.size(); i++) {
+            bytes += addIfNotPrefix(prefixes.get(i), result);
+        }
+
+        /** Full token combinations are generated from the shortest to the longest, the first one
+         * being the last token alone.
+         */
+        for (int i = 1; i < tokenCount && bytes < maxBytes; i++) {
+            final String combination = prefixes.get(i);
+            final int share = (maxBytes - bytes) / (tokenCount - i);
+            final int length = Math.min(combination.length(), share);
+            /** Shorter than its first token, the combination would find nothing more. */
+            if (length > indexTokens.get(tokenCount - 1 - i).length()) {
+                bytes += addIfNotPrefix(combination.substring(0, length), result);
+            }
+        }
+
+        /** Drops the strings covered by a longer string that was kept after them. */
+        final ArrayList<String> sorted = new ArrayList<String>(result);
+        Collections.sort(sorted);
+        for (int i = 0; i < sorted.size() - 1; i++) {
+            if (sorted.get(i + 1).startsWith(sorted.get(i))) {
+                result.remove(sorted.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the prefix to the strings unless it is a prefix of one of them.
+     *
+     * @return The length added to the strings.
+     */
+    private static int addIfNotPrefix(String prefix, ArrayList<String> strings) {
+        if (isPrefixOfAny(prefix, strings)) {
+            return 0;
+        }
+        strings.add(prefix);
+        return prefix.length();
+    }
+
+    private static boolean isPrefixOfAny(String prefix, ArrayList<String> strings) {
+        for (int i = 0; i < strings.size(); i++) {
+            if (strings.get(i).startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Computes a list of number strings based on tokens of a given phone number. Any prefix
      * of any string in the list can be used to look up the phone number. The list include the
@@ -228,27 +327,58 @@ public class SmartDialPrefix {
      * @return A list of strings where any prefix of any entry can be used to look up the number.
      */
     public static ArrayList<String> parseToNumberTokens(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return Lists.newArrayList();
+        }
+        final PhoneNumberTokens phoneNumberTokens = parsePhoneNumber(number);
+        return parseToNumberTokens(SmartDialNameMatcher.normalizeNumber(number, mMap),
+                getNormalizedOffset(number, phoneNumberTokens.countryCodeOffset),
+                getNormalizedOffset(number, phoneNumberTokens.nanpCodeOffset));
+    }
+
+    /**
+     * Same as {@link #parseToNumberTokens(String)}, for a number that has already been
+     * normalized and parsed.
+     *
+     * @param normalizedNumber Number normalized by {@link SmartDialNameMatcher#normalizeNumber}.
+     * @param countryCodeOffset Offset of the national number in the normalized number, or 0.
+     * @param nanpCodeOffset Offset of the NANP local number in the normalized number, or 0.
+     * @return A list of strings where any prefix of any entry can be used to look up the number.
+     */
+    public static ArrayList<String> parseToNumberTokens(String normalizedNumber,
+            int countryCodeOffset, int nanpCodeOffset) {
         final ArrayList<String> result = Lists.newArrayList();
-        if (!TextUtils.isEmpty(number)) {
+        if (!TextUtils.isEmpty(normalizedNumber)) {
             /** Adds the full number to the list.*/
-            result.add(SmartDialNameMatcher.normalizeNumber(number, mMap));
+            result.add(normalizedNumber);
 
-            final PhoneNumberTokens phoneNumberTokens = parsePhoneNumber(number);
-            if (phoneNumberTokens == null) {
-                return result;
+            if (countryCodeOffset != 0 && countryCodeOffset < normalizedNumber.length()) {
+                result.add(normalizedNumber.substring(countryCodeOffset));
             }
 
-            if (phoneNumberTokens.countryCodeOffset != 0) {
-                result.add(SmartDialNameMatcher.normalizeNumber(number,
-                        phoneNumberTokens.countryCodeOffset, mMap));
+            if (nanpCodeOffset != 0 && nanpCodeOffset < normalizedNumber.length()) {
+                result.add(normalizedNumber.substring(nanpCodeOffset));
             }
+        }
+        return result;
+    }
 
-            if (phoneNumberTokens.nanpCodeOffset != 0) {
-                result.add(SmartDialNameMatcher.normalizeNumber(number,
-                        phoneNumberTokens.nanpCodeOffset, mMap));
+    /**
+     * Converts an offset in a raw phone number, such as the ones of {@link PhoneNumberTokens},
+     * to the matching offset in the normalized number.
+     *
+     * @param number Raw phone number.
+     * @param offset Offset in the raw phone number.
+     * @return The number of dialpad digits before the offset.
+     */
+    public static int getNormalizedOffset(String number, int offset) {
+        int normalizedOffset = 0;
+        for (int i = 0; i < offset; i++) {
+            if (mMap.isValidDialpadNumericChar(number.charAt(i))) {
+                normalizedOffset++;
             }
         }
-        return result;
+        return normalizedOffset;
     }
 
     /**
@@ -261,6 +391,8 @@ public class SmartDialPrefix {
         String countryCode = "";
         int countryCodeOffset = 0;
         int nanpNumberOffset = 0;
+        /** Read once, so that the whole number is parsed for the same region. */
+        final boolean userInNanpRegion = sUserInNanpRegion;
 
         if (!TextUtils.isEmpty(number)) {
             String normalizedNumber = SmartDialNameMatcher.normalizeNumber(number, mMap);
@@ -281,7 +413,7 @@ public class SmartDialPrefix {
                  * format and has '1' preceding the number.
                  */
                 if ((normalizedNumber.length() == 11) && (normalizedNumber.charAt(0) == '1') &&
-                        (sUserInNanpRegion)) {
+                        (userInNanpRegion)) {
                     countryCode = "1";
                     countryCodeOffset = number.indexOf(normalizedNumber.charAt(1));
                     if (countryCodeOffset == -1) {
@@ -291,7 +423,7 @@ public class SmartDialPrefix {
             }
 
             /** If user is in NANP region, finds out whether a number is in NANP format.*/
-            if (sUserInNanpRegion)  {
+            if (userInNanpRegion)  {
                 String areaCode = "";
                 if (countryCode.equals("") && normalizedNumber.length() == 10){
                     /** if the number has no country code but fits the NANP format, extracts the
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+
+import java.util.List;
+
+/**
+ * Read-only cursor over SmartDial results, with the columns of
+ * {@link PhoneQuery#PROJECTION_PRIMARY}. The fields of the results are read directly, instead of
+ * being copied into rows of boxed values like a MatrixCursor does. Columns that SmartDial does
+ * not provide are null.
+ */
+public class SmartDialResultCursor extends AbstractCursor {
+
+    private final List<ContactNumber> mResults;
+
+    /**
+     * @param results Results of a SmartDial lookup, which must not be modified afterwards.
+     */
+    public SmartDialResultCursor(List<ContactNumber> results) {
+        mResults = results;
+    }
+
+    /**
+     * Returns the result at the current position.
+     */
+    private ContactNumber getCurrentResult() {
+        checkPosition();
+        return mResults.get(getPosition());
+    }
+
+    @Override
+    public int getCount() {
+        return mResults.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return PhoneQuery.PROJECTION_PRIMARY;
+    }
+
+    @Override
+    public int getType(int column) {
+        if (isNumericColumn(column)) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        }
+        return isNull(column) ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(int column) {
+        final ContactNumber contact = getCurrentResult();
+        switch (column) {
+            case PhoneQuery.PHONE_ID:
+                return Long.toString(contact.dataId);
+            case PhoneQuery.PHONE_NUMBER:
+                return contact.phoneNumber;
+            case PhoneQuery.CONTACT_ID:
+                return Long.toString(contact.id);
+            case PhoneQuery.LOOKUP_KEY:
+                return contact.lookupKey;
+            case PhoneQuery.PHOTO_ID:
+                return Long.toString(contact.photoId);
+            case PhoneQuery.DISPLAY_NAME:
+                return contact.displayName;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        final ContactNumber contact = getCurrentResult();
+        switch (column) {
+            case PhoneQuery.PHONE_ID:
+                return contact.dataId;
+            case PhoneQuery.CONTACT_ID:
+                return contact.id;
+            case PhoneQuery.PHOTO_ID:
+                return contact.photoId;
+            default:
+                /** Like SQLite, text reads as its leading integer, and null reads as 0. */
+                return parseLeadingLong(getString(column));
+        }
+    }
+
+    /**
+     * Returns the integer at the start of the text, or 0 if the text does not start with one.
+     * Out of range values are clamped.
+     */
+    private static long parseLeadingLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        final int length = value.length();
+        int i = 0;
+        while (i < length && Character.isWhitespace(value.charAt(i))) {
+            i++;
+        }
+        boolean negative = false;
+        if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative = value.charAt(i) == '-';
+            i++;
+        }
+        /** Accumulated as a negative number, which has the larger range. */
+        long result = 0;
+        for (; i < length; i++) {
+            final char ch = value.charAt(i);
+            if (ch < '0' || ch > '9') {
+                break;
+            }
+            final int digit = ch - '0';
+            if (result < (Long.MIN_VALUE + digit) / 10) {
+                return negative ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+            result = result * 10 - digit;
+        }
+        if (negative) {
+            return result;
+        }
+        return result == Long.MIN_VALUE ? Long.MAX_VALUE : -result;
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        if (isNumericColumn(column)) {
+            checkPosition();
+            return false;
+        }
+        return getString(column) == null;
+    }
+
+    private static boolean isNumericColumn(int column) {
+        return column == PhoneQuery.PHONE_ID || column == PhoneQuery.CONTACT_ID
+                || column == PhoneQuery.PHOTO_ID;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+/**
+ * {@link SmartDialMap} answering every query with a table lookup instead of the switch
+ * statements of the map it is built from. The answers of the source map are computed once for
+ * every char: characters of the Latin blocks are stored in dense arrays, and the few characters
+ * above them that the source map does not leave untouched are stored in a small open addressing
+ * hash table.
+ *
+ * The lookups return exactly what the source map returns. The map is immutable and thread-safe.
+ */
+public class TableSmartDialMap implements SmartDialMap {
+
+    /** Basic Latin, Latin-1 Supplement, Latin Extended-A and Latin Extended-B. */
+    private static final int DENSE_SIZE = 0x250;
+
+    private static final byte FLAG_VALID = 1;
+    private static final byte FLAG_ALPHABETIC = 2;
+    private static final byte FLAG_NUMERIC = 4;
+
+    /** Marks an empty slot of the hash table. Char 0 lies in the dense range. */
+    private static final char NO_KEY = 0;
+
+    private final char[] mNormalized = new char[DENSE_SIZE];
+    private final char[] mNumeric = new char[DENSE_SIZE];
+    private final byte[] mIndex = new byte[DENSE_SIZE];
+    private final byte[] mFlags = new byte[DENSE_SIZE];
+
+    private final char[] mSparseKeys;
+    private final char[] mSparseNormalized;
+    private final char[] mSparseNumeric;
+    private final byte[] mSparseIndex;
+    private final byte[] mSparseFlags;
+    private final int mSparseMask;
+
+    public TableSmartDialMap(SmartDialMap source) {
+        for (int i = 0; i < DENSE_SIZE; i++) {
+            final char ch = (char) i;
+            mNormalized[i] = source.normalizeCharacter(ch);
+            mNumeric[i] = source.getDialpadNumericCharacter(ch);
+            mIndex[i] = source.getDialpadIndex(ch);
+            mFlags[i] = flagsOf(source, ch);
+        }
+
+        int sparseCount = 0;
+        for (int i = DENSE_SIZE; i <= Character.MAX_VALUE; i++) {
+            if (!isTrivial(source, (char) i)) {
+                sparseCount++;
+            }
+        }
+        int capacity = 2;
+        while (capacity < sparseCount * 2) {
+            capacity <<= 1;
+        }
+        mSparseKeys = new char[capacity];
+        mSparseNormalized = new char[capacity];
+        mSparseNumeric = new char[capacity];
+        mSparseIndex = new byte[capacity];
+        mSparseFlags = new byte[capacity];
+        mSparseMask = capacity - 1;
+        for (int i = DENSE_SIZE; i <= Character.MAX_VALUE; i++) {
+            final char ch = (char) i;
+            if (isTrivial(source, ch)) {
+                continue;
+            }
+            int slot = hash(ch) & mSparseMask;
+            while (mSparseKeys[slot] != NO_KEY) {
+                slot = (slot + 1) & mSparseMask;
+            }
+            mSparseKeys[slot] = ch;
+            mSparseNormalized[slot] = source.normalizeCharacter(ch);
+            mSparseNumeric[slot] = source.getDialpadNumericCharacter(ch);
+            mSparseIndex[slot] = source.getDialpadIndex(ch);
+            mSparseFlags[slot] = flagsOf(source, ch);
+        }
+    }
+
+    @Override
+    public boolean isValidDialpadCharacter(char ch) {
+        return (flags(ch) & FLAG_VALID) != 0;
+    }
+
+    @Override
+    public boolean isValidDialpadAlphabeticChar(char ch) {
+        return (flags(ch) & FLAG_ALPHABETIC) != 0;
+    }
+
+    @Override
+    public boolean isValidDialpadNumericChar(char ch) {
+        return (flags(ch) & FLAG_NUMERIC) != 0;
+    }
+
+    @Override
+    public byte getDialpadIndex(char ch) {
+        if (ch < DENSE_SIZE) {
+            return mIndex[ch];
+        }
+        final int slot = findSparseSlot(ch);
+        return slot < 0 ? -1 : mSparseIndex[slot];
+    }
+
+    @Override
+    public char getDialpadNumericCharacter(char ch) {
+        if (ch < DENSE_SIZE) {
+            return mNumeric[ch];
+        }
+        final int slot = findSparseSlot(ch);
+        return slot < 0 ? ch : mSparseNumeric[slot];
+    }
+
+    @Override
+    public char normalizeCharacter(char ch) {
+        if (ch < DENSE_SIZE) {
+            return mNormalized[ch];
+        }
+        final int slot = findSparseSlot(ch);
+        return slot < 0 ? ch : mSparseNormalized[slot];
+    }
+
+    private byte flags(char ch) {
+        if (ch < DENSE_SIZE) {
+            return mFlags[ch];
+        }
+        final int slot = findSparseSlot(ch);
+        return slot < 0 ? 0 : mSparseFlags[slot];
+    }
+
+    private int findSparseSlot(char ch) {
+        int slot = hash(ch) & mSparseMask;
+        while (true) {
+            final char key = mSparseKeys[slot];
+            if (key == ch) {
+                return slot;
+            } else if (key == NO_KEY) {
+                return -1;
+            }
+            slot = (slot + 1) & mSparseMask;
+        }
+    }
+
+    private static int hash(char ch) {
+        return ch * 0x9E3779B1 >>> 16;
+    }
+
+    private static byte flagsOf(SmartDialMap source, char ch) {
+        byte flags = 0;
+        if (source.isValidDialpadCharacter(ch)) {
+            flags |= FLAG_VALID;
+        }
+        if (source.isValidDialpadAlphabeticChar(ch)) {
+            flags |= FLAG_ALPHABETIC;
+        }
+        if (source.isValidDialpadNumericChar(ch)) {
+            flags |= FLAG_NUMERIC;
+        }
+        return flags;
+    }
+
+    /**
+     * Returns whether the source map treats the character like the hash table does when the
+     * character is missing from it.
+     */
+    private static boolean isTrivial(SmartDialMap source, char ch) {
+        return source.normalizeCharacter(ch) == ch
+                && source.getDialpadNumericCharacter(ch) == ch
+                && source.getDialpadIndex(ch) == -1
+                && flagsOf(source, ch) == 0;
+    }
+}
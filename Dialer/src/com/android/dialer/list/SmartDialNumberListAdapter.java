@@ -19,6 +19,7 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Callable;
 import android.telephony.PhoneNumberUtils;
@@ -27,7 +28,9 @@ import android.util.Log;
 import com.android.contacts.common.list.ContactListItemView;
 import com.android.contacts.common.list.PhoneNumberListAdapter;
 import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
+import com.android.dialer.database.SmartDialSearchSession;
 import com.android.dialer.dialpad.SmartDialCursorLoader;
+import com.android.dialer.dialpad.SmartDialDebouncer;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
 import com.android.dialer.dialpad.SmartDialMatchPosition;
@@ -44,6 +47,12 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
 
     private SmartDialNameMatcher mNameMatcher;
 
+    /** Lets the loader of each keystroke narrow down the results of the previous one. */
+    private final SmartDialSearchSession mSearchSession = new SmartDialSearchSession();
+
+    /** Delays the loads while the user is typing quickly. */
+    private final SmartDialDebouncer mDebouncer = new SmartDialDebouncer();
+
     public SmartDialNumberListAdapter(Context context) {
         super(context);
         if (DEBUG) {
@@ -59,6 +68,10 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
             Log.v(TAG, "Configure Loader with query" + getQueryString());
         }
 
+        loader.setSearchSession(mSearchSession);
+        loader.setDebouncer(mDebouncer);
+        mDebouncer.onQueryChanged(getQueryString(), SystemClock.uptimeMillis());
+
         if (getQueryString() == null) {
             mNameMatcher = new SmartDialNameMatcher("", SmartDialPrefix.getMap());
             loader.configureQuery("");
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.util;
+
+import com.android.dialer.util.ExpirableCache.CachedValue;
+import com.google.common.base.Preconditions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A variant of {@link ExpirableCache} for caches that are read and written from several threads
+ * at once, such as a cache read while binding views on the UI thread and filled by background
+ * threads.
+ * <p>
+ * It has the same semantics as {@link ExpirableCache}, except for eviction: the
+ * {@link android.util.LruCache} used by {@link ExpirableCache} takes a single lock for every
+ * operation, including reads, so that threads using the cache at the same time wait for each
+ * other. Instead, this cache splits its entries into segments by hash, each of them holding a
+ * share of the maximum size:
+ * <ul>
+ *   <li>Reads do not take any lock, they only record the time of the access.</li>
+ *   <li>Writes only take the lock of their segment when it is full, to evict the entry of the
+ *   segment that was accessed least recently.</li>
+ * </ul>
+ * Eviction is therefore only approximately LRU: the entry evicted is the least recently used of
+ * its segment, not of the whole cache, and the cache may briefly hold a few more entries than
+ * its maximum size while writes race.
+ * <p>
+ * Like {@link ExpirableCache}, expiring all the entries is a single increment of the current
+ * generation.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+@ThreadSafe
+public class StripedExpirableCache<K, V> {
+    /** Number of segments used by {@link #create(int)}. */
+    private static final int DEFAULT_SEGMENT_COUNT = 8;
+
+    /**
+     * Cached values storing the generation at which they were added, and when they were last
+     * accessed.
+     */
+    private static final class Entry<V> implements CachedValue<V> {
+        private final V mValue;
+        private final int mGeneration;
+        private final AtomicInteger mCacheGeneration;
+        /** Clock of the segment at the last access, racy updates are fine. */
+        private volatile long mLastAccess;
+
+        public Entry(V value, AtomicInteger cacheGeneration, long now) {
+            mValue = value;
+            mCacheGeneration = cacheGeneration;
+            mGeneration = cacheGeneration.get();
+            mLastAccess = now;
+        }
+
+        @Override
+        public V getValue() {
+            return mValue;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return mGeneration != mCacheGeneration.get();
+        }
+    }
+
+    private static final class Segment<K, V> {
+        private final ConcurrentHashMap<K, Entry<V>> mEntries;
+        private final AtomicInteger mSize = new AtomicInteger();
+        /** Ordering of the accesses to the entries of this segment. */
+        private final AtomicLong mClock = new AtomicLong();
+        private final int mMaxSize;
+
+        public Segment(int maxSize) {
+            mMaxSize = maxSize;
+            mEntries = new ConcurrentHashMap<K, Entry<V>>(maxSize * 4 / 3 + 1);
+        }
+
+        public Entry<V> get(K key) {
+            final Entry<V> entry = mEntries.get(key);
+            if (entry != null) {
+                entry.mLastAccess = mClock.incrementAndGet();
+            }
+            return entry;
+        }
+
+        public void put(K key, V value, AtomicInteger cacheGeneration) {
+            final Entry<V> entry = new Entry<V>(value, cacheGeneration, mClock.incrementAndGet());
+            if (mEntries.put(key, entry) == null && mSize.incrementAndGet() > mMaxSize) {
+                evict();
+            }
+        }
+
+        /** Removes the least recently used entries until the segment is no longer full. */
+        private synchronized void evict() {
+            while (mSize.get() > mMaxSize) {
+                Map.Entry<K, Entry<V>> eldest = null;
+                for (Map.Entry<K, Entry<V>> entry : mEntries.entrySet()) {
+                    if (eldest == null
+                            || entry.getValue().mLastAccess < eldest.getValue().mLastAccess) {
+                        eldest = entry;
+                    }
+                }
+                if (eldest == null) {
+                    return;
+                }
+                // Fails if the entry was replaced meanwhile, in which case another is picked.
+                if (mEntries.remove(eldest.getKey(), eldest.getValue())) {
+                    mSize.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private final Segment<K, V>[] mSegments;
+    private final int mSegmentMask;
+
+    /**
+     * The current generation of items added to the cache.
+     *
+     * @see ExpirableCache.CachedValue#isExpired()
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+
+    @SuppressWarnings("unchecked")
+    private StripedExpirableCache(int maxSize, int segmentCount) {
+        mSegments = new Segment[segmentCount];
+        // Spread the maximum size over the segments, rounding up.
+        final int segmentMaxSize = (maxSize + segmentCount - 1) / segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = new Segment<K, V>(segmentMaxSize);
+        }
+        mSegmentMask = segmentCount - 1;
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key.hashCode();
+        // The low bits select the segment, so mix the high bits into them.
+        hash ^= (hash >>> 16);
+        return mSegments[hash & mSegmentMask];
+    }
+
+    /**
+     * Returns the cached value for the given key, or null if no value exists.
+     *
+     * @see ExpirableCache#getCachedValue(Object)
+     */
+    public CachedValue<V> getCachedValue(K key) {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Returns the value for the given key, or null if no value exists, whether it is expired or
+     * not.
+     *
+     * @see ExpirableCache#getPossiblyExpired(Object)
+     */
+    public V getPossiblyExpired(K key) {
+        CachedValue<V> cachedValue = getCachedValue(key);
+        return cachedValue == null ? null : cachedValue.getValue();
+    }
+
+    /**
+     * Returns the value for the given key only if it is not expired, or null if no value exists or
+     * is expired.
+     *
+     * @see ExpirableCache#get(Object)
+     */
+    public V get(K key) {
+        CachedValue<V> cachedValue = getCachedValue(key);
+        return cachedValue == null || cachedValue.isExpired() ? null : cachedValue.getValue();
+    }
+
+    /**
+     * Puts an item in the cache, evicting the least recently used item of its segment if the
+     * segment is full.
+     * <p>
+     * Newly added item will not be expired until {@link #expireAll()} is next called.
+     */
+    public void put(K key, V value) {
+        segmentFor(key).put(key, value, mGeneration);
+    }
+
+    /**
+     * Mark all items currently in the cache as expired.
+     *
+     * @see ExpirableCache#expireAll()
+     */
+    public void expireAll() {
+        mGeneration.incrementAndGet();
+    }
+
+    /** Returns the number of items in the cache. */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : mSegments) {
+            size += segment.mSize.get();
+        }
+        return size;
+    }
+
+    /**
+     * Creates a new {@link StripedExpirableCache} with the given maximum size, split into the
+     * given number of segments.
+     *
+     * @param segmentCount the number of segments, a power of two no larger than the maximum size
+     */
+    public static <K, V> StripedExpirableCache<K, V> create(int maxSize, int segmentCount) {
+        Preconditions.checkArgument(segmentCount > 0 && (segmentCount & (segmentCount - 1)) == 0,
+                "The number of segments must be a power of two");
+        Preconditions.checkArgument(segmentCount <= maxSize,
+                "The number of segments must not be larger than the maximum size");
+        return new StripedExpirableCache<K, V>(maxSize, segmentCount);
+    }
+
+    /**
+     * Creates a new {@link StripedExpirableCache} with the given maximum size.
+     */
+    public static <K, V> StripedExpirableCache<K, V> create(int maxSize) {
+        return create(maxSize, Math.min(DEFAULT_SEGMENT_COUNT, Integer.highestOneBit(maxSize)));
+    }
+}
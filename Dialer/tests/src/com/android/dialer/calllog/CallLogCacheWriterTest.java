@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+/**
+ * Unit tests for {@link CallLogCacheWriter}.
+ */
+@SmallTest
+public class CallLogCacheWriterTest extends AndroidTestCase {
+
+    /** Records the batches applied to the call log. */
+    private static final class FakeCallLogProvider extends MockContentProvider {
+        public final ArrayList<ArrayList<ContentProviderOperation>> batches =
+                new ArrayList<ArrayList<ContentProviderOperation>>();
+
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations) {
+            batches.add(operations);
+            return new ContentProviderResult[operations.size()];
+        }
+    }
+
+    private FakeCallLogProvider mProvider;
+    private CallLogCacheWriter mWriter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeCallLogProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(CallLog.AUTHORITY, mProvider);
+        mWriter = new CallLogCacheWriter(resolver);
+    }
+
+    public void testFlushWritesSingleBatch() {
+        mWriter.update(new NumberWithCountryIso("5551234", "US"), name("John"));
+        mWriter.update(new NumberWithCountryIso("5556789", null), name("Jane"));
+        assertEquals(2, mWriter.getPendingCount());
+        assertTrue(mProvider.batches.isEmpty());
+
+        assertEquals(2, mWriter.flush());
+        assertEquals(1, mProvider.batches.size());
+        assertEquals(2, mProvider.batches.get(0).size());
+        assertEquals(0, mWriter.getPendingCount());
+        assertEquals(1, mWriter.getFlushCount());
+        assertEquals(2, mWriter.getLastBatchSize());
+        assertEquals(2, mWriter.getWrittenCount());
+    }
+
+    public void testUpdatesOfSameNumberAreMerged() {
+        final NumberWithCountryIso number = new NumberWithCountryIso("5551234", "US");
+        mWriter.update(number, name("John"));
+        final ContentValues values = name("John Smith");
+        values.put(Calls.CACHED_NUMBER_TYPE, 2);
+        mWriter.update(number, values);
+        assertEquals(1, mWriter.getPendingCount());
+
+        assertEquals(1, mWriter.flush());
+        assertEquals(1, mProvider.batches.get(0).size());
+    }
+
+    public void testFlushWithoutUpdates() {
+        assertEquals(0, mWriter.flush());
+        assertTrue(mProvider.batches.isEmpty());
+        assertEquals(0, mWriter.getFlushCount());
+    }
+
+    public void testFullBuffer() {
+        for (int i = 1; i < CallLogCacheWriter.MAX_BATCH_SIZE; i++) {
+            assertFalse(mWriter.update(new NumberWithCountryIso("555" + i, "US"), name("A")));
+        }
+        assertTrue(mWriter.update(new NumberWithCountryIso("5550", "US"), name("A")));
+
+        assertEquals(CallLogCacheWriter.MAX_BATCH_SIZE, mWriter.flush());
+        assertEquals(CallLogCacheWriter.MAX_BATCH_SIZE, mWriter.getMaxBatchSize());
+    }
+
+    private static ContentValues name(String name) {
+        final ContentValues values = new ContentValues();
+        values.put(Calls.CACHED_NAME, name);
+        return values;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.DeletedContacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.database.DialerDatabaseHelper;
+import com.android.dialer.database.DialerDatabaseHelper.CallerIdCacheColumns;
+import com.android.dialer.database.DialerDatabaseHelper.Tables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link CallerIdCache}.
+ */
+@SmallTest
+public class CallerIdCacheTest extends AndroidTestCase {
+    private static final NumberWithCountryIso NUMBER =
+            new NumberWithCountryIso("6502530000", "US");
+
+    /** Answers the queries of the latest updated and deleted contact. */
+    private static final class FakeContactsProvider extends MockContentProvider {
+        long lastUpdated = 1000;
+        long lastDeleted = 500;
+        boolean failing;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (failing) {
+                return null;
+            }
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            final boolean deleted = uri.getPath().startsWith(
+                    DeletedContacts.CONTENT_URI.getPath());
+            cursor.addRow(new Object[] {deleted ? lastDeleted : lastUpdated});
+            return cursor;
+        }
+    }
+
+    private FakeContactsProvider mProvider;
+    private DialerDatabaseHelper mHelper;
+    private CallerIdCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeContactsProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        final Context context = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        // An in-memory database.
+        mHelper = new DialerDatabaseHelper(context, null) {};
+        mCache = new CallerIdCache(mHelper);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        super.tearDown();
+    }
+
+    public void testPutAndGet() {
+        final long generation = mCache.getGeneration();
+        final ContactInfo info = createContactInfo("John Doe");
+        mCache.putAll(singleton(NUMBER, info), generation);
+
+        final Map<NumberWithCountryIso, ContactInfo> infos =
+                mCache.getAll(Sets.newHashSet(NUMBER), generation);
+        assertEquals(1, infos.size());
+        assertEquals(info, infos.get(NUMBER));
+    }
+
+    public void testOtherGeneration() {
+        final long generation = mCache.getGeneration();
+        mCache.putAll(singleton(NUMBER, createContactInfo("John Doe")), generation);
+        assertTrue(mCache.getAll(Sets.newHashSet(NUMBER), generation + 1).isEmpty());
+    }
+
+    public void testGenerationIsStableWithoutContactChanges() {
+        final long generation = mCache.getGeneration();
+        assertTrue(generation >= 0);
+        assertEquals(generation, mCache.getGeneration());
+    }
+
+    public void testContactUpdatedWithoutSmartDialUpdate() {
+        final long generation = mCache.getGeneration();
+        mCache.putAll(singleton(NUMBER, createContactInfo("John Doe")), generation);
+        assertEquals(1, mCache.getAll(Sets.newHashSet(NUMBER), generation).size());
+
+        // The contact is renamed while nothing updates the smart dial database.
+        mProvider.lastUpdated += 1000;
+        final long newGeneration = mCache.getGeneration();
+        assertTrue(newGeneration != generation);
+        assertTrue(mCache.getAll(Sets.newHashSet(NUMBER), newGeneration).isEmpty());
+    }
+
+    public void testContactDeletedWithoutSmartDialUpdate() {
+        final long generation = mCache.getGeneration();
+        mCache.putAll(singleton(NUMBER, createContactInfo("John Doe")), generation);
+
+        mProvider.lastDeleted += 1000;
+        final long newGeneration = mCache.getGeneration();
+        assertTrue(newGeneration != generation);
+        assertTrue(mCache.getAll(Sets.newHashSet(NUMBER), newGeneration).isEmpty());
+    }
+
+    public void testContactsProviderFailure() {
+        final long generation = mCache.getGeneration();
+        mCache.putAll(singleton(NUMBER, createContactInfo("John Doe")), generation);
+
+        // Without knowing whether contacts changed, the cache is not used.
+        mProvider.failing = true;
+        assertEquals(-1, mCache.getGeneration());
+        assertTrue(mCache.getAll(Sets.newHashSet(NUMBER), -1).isEmpty());
+    }
+
+    public void testNumberWrittenDifferently() {
+        final long generation = mCache.getGeneration();
+        mCache.putAll(singleton(NUMBER, createContactInfo("John Doe")), generation);
+
+        // Same row, but the formatted number would differ.
+        final NumberWithCountryIso otherNumber = new NumberWithCountryIso("+16502530000", "US");
+        assertTrue(mCache.getAll(Sets.newHashSet(otherNumber), generation).isEmpty());
+        assertEquals(1, mCache.getAll(Sets.newHashSet(NUMBER), generation).size());
+    }
+
+    public void testRemoteInfoIsNotStored() {
+        final long generation = mCache.getGeneration();
+        final ContactInfo info = createContactInfo("Business");
+        info.sourceType = 1;
+        mCache.putAll(singleton(NUMBER, info), generation);
+        assertTrue(mCache.getAll(Sets.newHashSet(NUMBER), generation).isEmpty());
+    }
+
+    public void testNullCountryIso() {
+        final long generation = mCache.getGeneration();
+        final NumberWithCountryIso number = new NumberWithCountryIso("6502530000", null);
+        final ContactInfo info = createContactInfo("John Doe");
+        mCache.putAll(singleton(number, info), generation);
+        assertEquals(info, mCache.getAll(Sets.newHashSet(number), generation).get(number));
+        assertTrue(mCache.getAll(Sets.newHashSet(NUMBER), generation).isEmpty());
+    }
+
+    public void testUnknownNumberIsStored() {
+        final long generation = mCache.getGeneration();
+        // What ContactInfoHelper returns for a number matching no contact.
+        final ContactInfo info = new ContactInfo();
+        info.number = NUMBER.number;
+        info.formattedNumber = "650-253-0000";
+        info.lookupUri = Uri.parse("content://com.android.contacts/contacts/lookup/encoded");
+        mCache.putAll(singleton(NUMBER, info), generation);
+
+        assertEquals(info, mCache.getAll(Sets.newHashSet(NUMBER), generation).get(NUMBER));
+    }
+
+    public void testLastUsedIsOnlyUpdatedWhenStale() {
+        final long generation = mCache.getGeneration();
+        mCache.putAll(singleton(NUMBER, createContactInfo("John Doe")), generation);
+
+        final long recent = System.currentTimeMillis() - 1000;
+        setLastUsedMillis(recent);
+        assertEquals(1, mCache.getAll(Sets.newHashSet(NUMBER), generation).size());
+        assertEquals(recent, getLastUsedMillis());
+
+        final long stale = recent - CallerIdCache.LAST_USED_UPDATE_MILLIS;
+        setLastUsedMillis(stale);
+        assertEquals(1, mCache.getAll(Sets.newHashSet(NUMBER), generation).size());
+        assertTrue(getLastUsedMillis() > stale);
+    }
+
+    private void setLastUsedMillis(long millis) {
+        final ContentValues values = new ContentValues();
+        values.put(CallerIdCacheColumns.LAST_USED_MILLIS, millis);
+        assertEquals(1, mHelper.getWritableDatabase().update(Tables.CALLER_ID_CACHE, values,
+                null, null));
+    }
+
+    private long getLastUsedMillis() {
+        return DatabaseUtils.longForQuery(mHelper.getReadableDatabase(), "SELECT "
+                + CallerIdCacheColumns.LAST_USED_MILLIS + " FROM " + Tables.CALLER_ID_CACHE,
+                null);
+    }
+
+    private static Map<NumberWithCountryIso, ContactInfo> singleton(NumberWithCountryIso number,
+            ContactInfo info) {
+        final Map<NumberWithCountryIso, ContactInfo> infos = Maps.newHashMap();
+        infos.put(number, info);
+        return infos;
+    }
+
+    private static ContactInfo createContactInfo(String name) {
+        final ContactInfo info = new ContactInfo();
+        info.name = name;
+        info.type = 2;
+        info.label = "Work";
+        info.number = "+16502530000";
+        info.formattedNumber = "650-253-0000";
+        info.normalizedNumber = "+16502530000";
+        info.lookupUri = Uri.parse("content://com.android.contacts/contacts/lookup/abc/1");
+        info.photoId = 3;
+        return info;
+    }
+}
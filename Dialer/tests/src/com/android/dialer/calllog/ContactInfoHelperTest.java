@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.SipAddress;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+
+import com.google.common.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ContactInfoHelper#lookupNumbers}.
+ */
+@SmallTest
+public class ContactInfoHelperTest extends AndroidTestCase {
+
+    /** A phone number or SIP address of a contact. */
+    private static final class FakeData {
+        final long contactId;
+        final String name;
+        final String mimeType;
+        final String number;
+        final String normalizedNumber;
+
+        FakeData(long contactId, String name, String mimeType, String number,
+                String normalizedNumber) {
+            this.contactId = contactId;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.number = number;
+            this.normalizedNumber = normalizedNumber;
+        }
+    }
+
+    /**
+     * Answers the bulk queries of the contacts data and the PhoneLookup queries from a list of
+     * data rows, and records them.
+     */
+    private static final class FakeContactsProvider extends MockContentProvider {
+        final List<FakeData> data = new ArrayList<FakeData>();
+        /** The values of each bulk query, prefixed with its MIME type. */
+        final List<List<String>> dataQueries = new ArrayList<List<String>>();
+        final List<String> phoneLookups = new ArrayList<String>();
+        final List<String> sipLookups = new ArrayList<String>();
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            if (uri.equals(Data.CONTENT_URI)) {
+                dataQueries.add(Arrays.asList(selectionArgs));
+                final String mimeType = selectionArgs[0];
+                final List<String> values =
+                        Arrays.asList(selectionArgs).subList(1, selectionArgs.length);
+                for (FakeData row : data) {
+                    final String value = Phone.CONTENT_ITEM_TYPE.equals(mimeType)
+                            ? row.normalizedNumber : row.number;
+                    if (row.mimeType.equals(mimeType) && values.contains(value)) {
+                        addRow(cursor, row);
+                    }
+                }
+            } else if (uri.getPathSegments().get(0).equals(
+                    PhoneLookup.CONTENT_FILTER_URI.getLastPathSegment())) {
+                final String number = uri.getLastPathSegment();
+                final boolean sip = uri.getQueryParameter(
+                        PhoneLookup.QUERY_PARAMETER_SIP_ADDRESS) != null;
+                (sip ? sipLookups : phoneLookups).add(number);
+                for (FakeData row : data) {
+                    if (sip ? row.mimeType.equals(SipAddress.CONTENT_ITEM_TYPE)
+                            && row.number.equals(number)
+                            : row.mimeType.equals(Phone.CONTENT_ITEM_TYPE)
+                            && PhoneNumberUtils.compare(row.number, number)) {
+                        addRow(cursor, row);
+                    }
+                }
+            }
+            return cursor;
+        }
+
+        /** PhoneQuery._PROJECTION and PhoneQuery._DATA_PROJECTION have the same layout. */
+        private static void addRow(MatrixCursor cursor, FakeData row) {
+            cursor.addRow(new Object[] {row.contactId, row.name, Phone.TYPE_MOBILE, null,
+                    row.number, row.normalizedNumber, 0, "lookup" + row.contactId, null});
+        }
+    }
+
+    private FakeContactsProvider mProvider;
+    private ContactInfoHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeContactsProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        final Context context = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mHelper = new ContactInfoHelper(context, "US");
+    }
+
+    public void testPhoneNumbersAndSipAddressesAreSplit() {
+        mProvider.data.add(new FakeData(1, "John", Phone.CONTENT_ITEM_TYPE, "650-253-0000",
+                "+16502530000"));
+        mProvider.data.add(new FakeData(2, "Jane", SipAddress.CONTENT_ITEM_TYPE,
+                "jane@sip.example.com", null));
+        final NumberWithCountryIso phone = new NumberWithCountryIso("6502530000", "US");
+        final NumberWithCountryIso sip = new NumberWithCountryIso("jane@sip.example.com", "US");
+
+        final Map<NumberWithCountryIso, ContactInfo> infos =
+                mHelper.lookupNumbers(Sets.newHashSet(phone, sip));
+        assertEquals("John", infos.get(phone).name);
+        assertEquals("Jane", infos.get(sip).name);
+
+        // One bulk query per kind: the phone number by its E164 form, and both numbers as SIP
+        // addresses. Nothing is left to look up one at a time.
+        assertEquals(2, mProvider.dataQueries.size());
+        assertEquals(Arrays.asList(Phone.CONTENT_ITEM_TYPE, "+16502530000"),
+                mProvider.dataQueries.get(0));
+        assertEquals(SipAddress.CONTENT_ITEM_TYPE, mProvider.dataQueries.get(1).get(0));
+        assertEquals(Sets.newHashSet("6502530000", "jane@sip.example.com"),
+                Sets.newHashSet(mProvider.dataQueries.get(1).subList(1, 3)));
+        assertTrue(mProvider.phoneLookups.isEmpty());
+        assertTrue(mProvider.sipLookups.isEmpty());
+    }
+
+    public void testNumbersWithTheSameKey() {
+        mProvider.data.add(new FakeData(1, "John", Phone.CONTENT_ITEM_TYPE, "650-253-0000",
+                "+16502530000"));
+        final NumberWithCountryIso plain = new NumberWithCountryIso("6502530000", "US");
+        final NumberWithCountryIso international =
+                new NumberWithCountryIso("+16502530000", "US");
+
+        final Map<NumberWithCountryIso, ContactInfo> infos =
+                mHelper.lookupNumbers(Sets.newHashSet(plain, international));
+        assertEquals("John", infos.get(plain).name);
+        assertEquals("John", infos.get(international).name);
+        // Each number keeps its own contact info, formatted from the number as it was written.
+        assertNotSame(infos.get(plain), infos.get(international));
+
+        // Both numbers are matched by a single value.
+        assertEquals(Arrays.asList(Phone.CONTENT_ITEM_TYPE, "+16502530000"),
+                mProvider.dataQueries.get(0));
+        assertTrue(mProvider.phoneLookups.isEmpty());
+    }
+
+    public void testLooseMatchFallsBackToPhoneLookup() {
+        // Stored without a normalized number, so only the PhoneLookup table finds it.
+        mProvider.data.add(new FakeData(1, "John", Phone.CONTENT_ITEM_TYPE, "650-253-0000",
+                null));
+        final NumberWithCountryIso number = new NumberWithCountryIso("6502530000", "US");
+
+        final Map<NumberWithCountryIso, ContactInfo> infos =
+                mHelper.lookupNumbers(Sets.newHashSet(number));
+        assertEquals("John", infos.get(number).name);
+        assertEquals(1, mProvider.phoneLookups.size());
+        assertTrue(mProvider.sipLookups.isEmpty());
+    }
+
+    public void testPhoneNumberSavedAsSipAddress() {
+        mProvider.data.add(new FakeData(1, "John", SipAddress.CONTENT_ITEM_TYPE, "6502530000",
+                null));
+        final NumberWithCountryIso number = new NumberWithCountryIso("6502530000", "US");
+
+        final Map<NumberWithCountryIso, ContactInfo> infos =
+                mHelper.lookupNumbers(Sets.newHashSet(number));
+        assertEquals("John", infos.get(number).name);
+        // The PhoneLookup table is still tried first, like lookupNumber does.
+        assertEquals(1, mProvider.phoneLookups.size());
+        // The bulk query already looked the number up as a SIP address.
+        assertTrue(mProvider.sipLookups.isEmpty());
+    }
+
+    public void testUnknownNumbers() {
+        final NumberWithCountryIso phone = new NumberWithCountryIso("6502530000", "US");
+        final NumberWithCountryIso sip = new NumberWithCountryIso("jane@sip.example.com", "US");
+
+        final Map<NumberWithCountryIso, ContactInfo> infos =
+                mHelper.lookupNumbers(Sets.newHashSet(phone, sip));
+        for (NumberWithCountryIso number : new NumberWithCountryIso[] {phone, sip}) {
+            final ContactInfo info = infos.get(number);
+            assertTrue(TextUtils.isEmpty(info.name));
+            assertEquals(number.number, info.number);
+            assertNotNull(info.lookupUri);
+        }
+        // A phone number matching no contact costs a single query of its own, and a SIP address
+        // whose user name is not a phone number none.
+        assertEquals(2, mProvider.dataQueries.size());
+        assertEquals(Arrays.asList("6502530000"), mProvider.phoneLookups);
+        assertTrue(mProvider.sipLookups.isEmpty());
+    }
+
+    public void testSameAsLookupNumber() {
+        mProvider.data.add(new FakeData(1, "John", Phone.CONTENT_ITEM_TYPE, "650-253-0000",
+                "+16502530000"));
+        mProvider.data.add(new FakeData(2, "Jane", SipAddress.CONTENT_ITEM_TYPE,
+                "jane@sip.example.com", null));
+        final NumberWithCountryIso[] numbers = new NumberWithCountryIso[] {
+                new NumberWithCountryIso("6502530000", "US"),
+                new NumberWithCountryIso("jane@sip.example.com", "US"),
+                new NumberWithCountryIso("6505550000", "US"),
+                new NumberWithCountryIso("5550000", null)};
+
+        final Map<NumberWithCountryIso, ContactInfo> infos =
+                mHelper.lookupNumbers(Sets.newHashSet(numbers));
+        for (NumberWithCountryIso number : numbers) {
+            assertEquals(number.number, mHelper.lookupNumber(number.number, number.countryIso),
+                    infos.get(number));
+        }
+    }
+}
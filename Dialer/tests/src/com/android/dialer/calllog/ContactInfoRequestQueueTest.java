@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ContactInfoRequestQueue}.
+ */
+@SmallTest
+public class ContactInfoRequestQueueTest extends TestCase {
+    private ContactInfoRequestQueue<String> mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new ContactInfoRequestQueue<String>();
+    }
+
+    public void testDuplicatesAreQueuedOnce() throws Exception {
+        mQueue.add("1", false);
+        mQueue.add("2", false);
+        mQueue.add("1", false);
+        assertEquals(2, mQueue.size());
+        assertEquals("1", mQueue.take(1));
+        assertEquals("2", mQueue.take(1));
+        assertTrue(mQueue.isEmpty());
+    }
+
+    public void testUrgentRequestsFirst() throws Exception {
+        mQueue.add("1", true);
+        mQueue.add("2", false);
+        mQueue.add("3", true);
+        mQueue.add("4", false);
+        assertEquals("3", mQueue.take(1));
+        assertEquals("1", mQueue.take(1));
+        assertEquals("4", mQueue.take(1));
+        assertEquals("2", mQueue.take(1));
+    }
+
+    public void testRequestsStayUrgent() throws Exception {
+        mQueue.add("1", true);
+        mQueue.add("2", true);
+        mQueue.add("1", false);
+        assertEquals(2, mQueue.size());
+        assertEquals("1", mQueue.take(1));
+        assertEquals("2", mQueue.take(1));
+    }
+
+    public void testRequestBecomesUrgent() throws Exception {
+        mQueue.add("1", false);
+        mQueue.add("2", false);
+        mQueue.add("2", true);
+        mQueue.add("3", false);
+        assertEquals("2", mQueue.take(1));
+        assertEquals("3", mQueue.take(1));
+        assertEquals("1", mQueue.take(1));
+    }
+
+    public void testTakeTimesOut() throws Exception {
+        assertNull(mQueue.take(1));
+    }
+
+    public void testTakeWaitsForRequest() throws Exception {
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                mQueue.add("1", false);
+            }
+        };
+        synchronized (mQueue) {
+            producer.start();
+            assertEquals("1", mQueue.take(10000));
+        }
+        producer.join();
+    }
+
+    public void testDrainTo() throws Exception {
+        mQueue.add("1", false);
+        mQueue.add("2", true);
+        mQueue.add("3", false);
+        final ArrayList<String> requests = new ArrayList<String>();
+        assertEquals(2, mQueue.drainTo(requests, 2));
+        assertEquals(Arrays.asList("2", "3"), requests);
+        assertEquals(1, mQueue.drainTo(requests, 2));
+        assertEquals(Arrays.asList("2", "3", "1"), requests);
+        assertEquals(0, mQueue.drainTo(requests, 2));
+    }
+
+    public void testClear() throws Exception {
+        mQueue.add("1", true);
+        mQueue.add("2", false);
+        mQueue.clear();
+        assertTrue(mQueue.isEmpty());
+        assertNull(mQueue.take(1));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SmartDialMaintenancePolicy}.
+ */
+@SmallTest
+public class SmartDialMaintenancePolicyTest extends TestCase {
+
+    public void testFirstBuild() {
+        final SmartDialMaintenancePolicy policy = new SmartDialMaintenancePolicy(0, 0, 0);
+        assertTrue(policy.needsIndices());
+        policy.recordChangedRows(1);
+        assertTrue(policy.needsAnalyze());
+        policy.onIndicesCreated();
+        policy.onAnalyzed(1);
+        assertFalse(policy.needsIndices());
+        assertFalse(policy.needsAnalyze());
+    }
+
+    public void testSmallUpdatesSkipAnalyze() {
+        final SmartDialMaintenancePolicy policy = new SmartDialMaintenancePolicy(
+                SmartDialMaintenancePolicy.INDEX_VERSION, 0, 10000);
+        policy.recordChangedRows(1);
+        assertFalse(policy.needsIndices());
+        assertFalse(policy.needsAnalyze());
+        policy.recordChangedRows(998);
+        assertFalse(policy.needsAnalyze());
+        policy.recordChangedRows(1);
+        assertTrue(policy.needsAnalyze());
+        policy.onAnalyzed(11000);
+        assertFalse(policy.needsAnalyze());
+    }
+
+    public void testMinimumChangedRows() {
+        final SmartDialMaintenancePolicy policy = new SmartDialMaintenancePolicy(
+                SmartDialMaintenancePolicy.INDEX_VERSION, 0, 10);
+        policy.recordChangedRows(SmartDialMaintenancePolicy.ANALYZE_MIN_CHANGED_ROWS - 1);
+        assertFalse(policy.needsAnalyze());
+        policy.recordChangedRows(1);
+        assertTrue(policy.needsAnalyze());
+    }
+
+    public void testIndexVersionChange() {
+        final SmartDialMaintenancePolicy policy = new SmartDialMaintenancePolicy(
+                SmartDialMaintenancePolicy.INDEX_VERSION - 1, 0, 10000);
+        assertTrue(policy.needsIndices());
+        assertFalse(policy.needsAnalyze());
+        policy.recordChangedRows(1);
+        assertTrue(policy.needsAnalyze());
+    }
+}
@@ -16,8 +16,11 @@
 
 package com.android.dialer.database;
 
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Suppress;
 import android.test.AndroidTestCase;
@@ -30,11 +33,15 @@ import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.lang.Exception;
 import java.lang.FindBugsSuppressWarnings;
 import java.lang.Override;
 import java.lang.String;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -45,6 +52,7 @@ import junit.framework.TestCase;
  */
 @SmallTest
 public class SmartDialPrefixTest extends AndroidTestCase {
+    private static final String TAG = "SmartDialPrefixTest";
 
     private DialerDatabaseHelper mTestHelper;
 
@@ -255,6 +263,140 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         assertFalse(getLooseMatchesFromDb("66").contains(jasonfwilliams));
     }
 
+    public void testQueryCache() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "", 0, "Sarah Smith");
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "", 1, "Jason Smitt");
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "7654321", 2, "Mary Jane");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final String[] queries = {"7", "72", "76", "6", "5", "0", "00"};
+        final ArrayList<ArrayList<ContactNumber>> expected =
+                new ArrayList<ArrayList<ContactNumber>>();
+        for (String query : queries) {
+            expected.add(getLooseMatchesFromDb(query));
+        }
+
+        mTestHelper.rebuildSmartDialQueryCache(db);
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(expected.get(i), getLooseMatchesFromDb(queries[i]));
+        }
+        assertEquals(3, getLooseMatchesFromDb("7").size());
+    }
+
+    public void testParallelPrefixGeneration() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        /** Several chunks of contacts with two numbers each. */
+        for (int i = 0; i < 600; i++) {
+            constructNewContact(contactCursor, nameCursor, 2 * i, "650555" + i, i, "key" + i,
+                    "Contact Number " + i, 0, i, 0, 0, 0, 0, 1);
+            constructNewContact(contactCursor, nameCursor, 2 * i + 1, "415555" + i, i, "key" + i,
+                    "Contact Number " + i, 0, i, 0, 0, 0, 0, 0);
+        }
+
+        assertEquals(1200, mTestHelper.insertContactsInChunks(db, contactCursor, Long.valueOf(0),
+                DialerDatabaseHelper.Tables.SMARTDIAL_TABLE,
+                DialerDatabaseHelper.Tables.PREFIX_TABLE, false, 0));
+        final int serialPrefixes = mTestHelper.countPrefixTableRows(db);
+        final ArrayList<ContactNumber> serialMatches = getLooseMatchesFromDb("2668");
+        final ArrayList<ContactNumber> serialNumberMatches = getLooseMatchesFromDb("41555");
+        mTestHelper.removeAllContacts(db);
+
+        assertEquals(1200, mTestHelper.insertContactsInChunks(db, contactCursor, Long.valueOf(0),
+                DialerDatabaseHelper.Tables.SMARTDIAL_TABLE,
+                DialerDatabaseHelper.Tables.PREFIX_TABLE, false, 3));
+        nameCursor.close();
+        contactCursor.close();
+
+        assertEquals(serialPrefixes, mTestHelper.countPrefixTableRows(db));
+        assertEquals(serialMatches, getLooseMatchesFromDb("2668"));
+        assertEquals(serialNumberMatches, getLooseMatchesFromDb("41555"));
+        assertEquals(20, serialMatches.size());
+    }
+
+    public void testUpdateProgress() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        /** Three chunks of contacts with two numbers each. */
+        for (int i = 0; i < 600; i++) {
+            constructNewContact(contactCursor, nameCursor, 2 * i, "650555" + i, i, "key" + i,
+                    "Contact Number " + i, 0, i, 0, 0, 0, 0, 1);
+            constructNewContact(contactCursor, nameCursor, 2 * i + 1, "415555" + i, i, "key" + i,
+                    "Contact Number " + i, 0, i, 0, 0, 0, 0, 0);
+        }
+
+        final ArrayList<Integer> progress = new ArrayList<Integer>();
+        mTestHelper.setSmartDialUpdateListener(
+                new DialerDatabaseHelper.SmartDialUpdateListener() {
+                    @Override
+                    public void onSmartDialUpdateProgress(int rowsDone, int totalRows) {
+                        assertEquals(1200, totalRows);
+                        progress.add(rowsDone);
+                    }
+                });
+        mTestHelper.insertContactsInChunks(db, contactCursor, Long.valueOf(0),
+                DialerDatabaseHelper.Tables.SMARTDIAL_TABLE,
+                DialerDatabaseHelper.Tables.PREFIX_TABLE, false, 0);
+        mTestHelper.setSmartDialUpdateListener(null);
+        nameCursor.close();
+        contactCursor.close();
+
+        assertEquals(3, progress.size());
+        assertEquals(500, progress.get(0).intValue());
+        assertEquals(1000, progress.get(1).intValue());
+        assertEquals(1200, progress.get(2).intValue());
+    }
+
+    public void testPrefixUpperBound() {
+        assertEquals("6", DialerDatabaseHelper.getPrefixUpperBound("5"));
+        assertEquals("52:", DialerDatabaseHelper.getPrefixUpperBound("529"));
+        assertEquals("\uffff", DialerDatabaseHelper.getPrefixUpperBound(""));
+    }
+
+    public void testLooseMatchQueryUsesPrefixIndex() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        mTestHelper.createSmartDialTableIndices(db);
+
+        final Cursor cursor = db.rawQuery(
+                "EXPLAIN QUERY PLAN " + DialerDatabaseHelper.LOOSE_MATCH_QUERY,
+                new String[] {"52", DialerDatabaseHelper.getPrefixUpperBound("52")});
+        final StringBuilder plan = new StringBuilder();
+        boolean usesPrefixIndex = false;
+        boolean scansPrefixTable = false;
+        try {
+            final int columnDetail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                final String detail = cursor.getString(columnDetail);
+                plan.append(detail).append('\n');
+                /** e.g. "SEARCH TABLE prefix_table USING INDEX nameprefix_index (prefix>? AND
+                 * prefix<?)". Older versions of SQLite print "TABLE", newer ones do not.
+                 */
+                if (detail.contains(DialerDatabaseHelper.Tables.PREFIX_TABLE)) {
+                    usesPrefixIndex |= detail.startsWith("SEARCH")
+                            && detail.contains("nameprefix_index");
+                    scansPrefixTable |= detail.startsWith("SCAN");
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        assertTrue(plan.toString(), usesPrefixIndex);
+        assertFalse(plan.toString(), scansPrefixTable);
+    }
+
     public void testPutForInitialMatches() {
         final SQLiteDatabase db = mTestHelper.getWritableDatabase();
 
@@ -347,7 +489,131 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("2222").contains(alphabet));
-        assertEquals(40, mTestHelper.countPrefixTableRows(db));
+        /** Tokens mapping to the same digits are stored once, and the combinations spanning
+         * several tokens are truncated to the cap on the length of the name prefixes.
+         */
+        assertEquals(18, mTestHelper.countPrefixTableRows(db));
+    }
+
+    public void testBoundedNamePrefixes() {
+        final String name = "Albert Ben Charles Daniel Ed Foster";
+        final ArrayList<String> all = SmartDialPrefix.generateNamePrefixes(name);
+        final ArrayList<String> bounded = SmartDialPrefix.generateBoundedNamePrefixes(name,
+                Integer.MAX_VALUE);
+
+        /** Without a cap, every lookup that finds the contact still finds it. */
+        for (String prefix : all) {
+            assertTrue(prefix, isPrefixOfAny(prefix, bounded));
+        }
+        /** No string is a prefix of another one. */
+        for (int i = 0; i < bounded.size(); i++) {
+            for (int j = 0; j < bounded.size(); j++) {
+                assertTrue(i == j || !bounded.get(j).startsWith(bounded.get(i)));
+            }
+        }
+        assertTrue(bounded.size() < all.size());
+
+        /** With a cap, every token and every initial combination are still kept, and the
+         * combinations spanning several tokens are truncated to fit.
+         */
+        final ArrayList<String> tokens = SmartDialPrefix.parseToIndexTokens(name);
+        final ArrayList<String> capped = SmartDialPrefix.generateBoundedNamePrefixes(name, 128);
+        for (String token : tokens) {
+            assertTrue(token, isPrefixOfAny(token, capped));
+        }
+        for (String prefix : all.subList(tokens.size(), all.size())) {
+            assertTrue(prefix, isPrefixOfAny(prefix, capped));
+        }
+        /** "AlbertBen" is found through the truncated combination spanning the whole name. */
+        assertTrue(isPrefixOfAny("252378236", capped));
+        assertFalse(isPrefixOfAny("252378236242753732643533367837", capped));
+        assertTrue(getLength(capped) <= 128);
+    }
+
+    /**
+     * Reports the size of the name prefixes of a synthetic corpus with and without the bound,
+     * and checks that the bound keeps every word and the initials of each name.
+     */
+    public void testBoundedNamePrefixesTableSize() {
+        final Random random = new Random(0);
+        final String[] words = new String[] {"acme", "international", "holdings", "north",
+                "american", "services", "group", "and", "of", "the", "pacific", "trading",
+                "company", "limited", "john", "mary", "smith", "garcia", "lee", "müller"};
+        int allRows = 0;
+        int allBytes = 0;
+        int boundedRows = 0;
+        int boundedBytes = 0;
+        for (int i = 0; i < 2000; i++) {
+            /** One contact in four is a company with a long name. */
+            final int tokenCount = i % 4 == 0 ? 5 + random.nextInt(4) : 1 + random.nextInt(3);
+            final StringBuilder name = new StringBuilder();
+            for (int j = 0; j < tokenCount; j++) {
+                name.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            final ArrayList<String> tokens = SmartDialPrefix.parseToIndexTokens(name.toString());
+            final ArrayList<String> all = SmartDialPrefix.generateNamePrefixes(name.toString());
+            final ArrayList<String> bounded = SmartDialPrefix.generateBoundedNamePrefixes(
+                    name.toString(), SmartDialPrefix.DEFAULT_MAX_NAME_PREFIX_BYTES);
+            for (String token : tokens) {
+                assertTrue(token, isPrefixOfAny(token, bounded));
+            }
+            /** The initial combinations follow the full token combinations. */
+            for (String initials : all.subList(tokens.size(), all.size())) {
+                assertTrue(initials, isPrefixOfAny(initials, bounded));
+            }
+            allRows += all.size();
+            allBytes += getLength(all);
+            boundedRows += bounded.size();
+            boundedBytes += getLength(bounded);
+        }
+        Log.d(TAG, "Name prefixes: " + allRows + " rows, " + allBytes + " bytes unbounded; " +
+                boundedRows + " rows, " + boundedBytes + " bytes bounded (" +
+                (100 - boundedRows * 100 / allRows) + "% fewer rows, " +
+                (100 - boundedBytes * 100 / allBytes) + "% fewer bytes)");
+        assertTrue(boundedRows < allRows);
+        assertTrue(boundedBytes < allBytes);
+    }
+
+    public void testBoundedNamePrefixesLongName() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final String name = "Acme International Holdings North American Services Group";
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber acme = constructNewContact(contactCursor, nameCursor, 0, "5551234", 1,
+                "acme", name, 0, 0, 0, 0, 0, 0, 1);
+
+        /** Goes through the same prefix generation as an update of the database. */
+        mTestHelper.insertContactsInChunks(db, contactCursor, Long.valueOf(0),
+                DialerDatabaseHelper.Tables.SMARTDIAL_TABLE,
+                DialerDatabaseHelper.Tables.PREFIX_TABLE, false, 0);
+        nameCursor.close();
+        contactCursor.close();
+
+        /** However long the name, each of its words still finds the contact. */
+        for (String token : SmartDialPrefix.parseToIndexTokens(name)) {
+            assertTrue(token, getLooseMatchesFromDb(token).contains(acme));
+        }
+        /** So do its initials, "ASG" and "AIG". */
+        assertTrue(getLooseMatchesFromDb("274").contains(acme));
+        assertTrue(getLooseMatchesFromDb("244").contains(acme));
+    }
+
+    private static boolean isPrefixOfAny(String prefix, ArrayList<String> strings) {
+        for (String string : strings) {
+            if (string.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getLength(ArrayList<String> strings) {
+        int length = 0;
+        for (String string : strings) {
+            length += string.length();
+        }
+        return length;
     }
 
     public void testAccentedCharacters() {
@@ -553,6 +819,386 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         assertFalse(getLooseMatchesFromDb("2849170").contains(contactno1));
     }
 
+    public void testNormalizedNumberColumns() {
+        SmartDialPrefix.setUserInNanpRegion(true);
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "+1-510-284-9170", 0, "Mike");
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "+65 9177-6930", 1, "Kim");
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "5276", 2, "Harry");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final Cursor cursor = db.rawQuery("SELECT " +
+                DialerDatabaseHelper.SmartDialDbColumns.NORMALIZED_NUMBER + ", " +
+                DialerDatabaseHelper.SmartDialDbColumns.COUNTRY_CODE_OFFSET + ", " +
+                DialerDatabaseHelper.SmartDialDbColumns.NANP_CODE_OFFSET +
+                " FROM " + DialerDatabaseHelper.Tables.SMARTDIAL_TABLE +
+                " ORDER BY " + DialerDatabaseHelper.SmartDialDbColumns.DATA_ID, null);
+        try {
+            assertTrue(cursor.moveToNext());
+            assertEquals("15102849170", cursor.getString(0));
+            assertEquals(1, cursor.getInt(1));
+            assertEquals(4, cursor.getInt(2));
+
+            assertTrue(cursor.moveToNext());
+            assertEquals("6591776930", cursor.getString(0));
+            assertEquals(2, cursor.getInt(1));
+            assertEquals(0, cursor.getInt(2));
+
+            assertTrue(cursor.moveToNext());
+            assertEquals("5276", cursor.getString(0));
+            assertEquals(0, cursor.getInt(1));
+            assertEquals(0, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testIndexMatchesDatabase() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContact(contactCursor, nameCursor, 0, "510-527-2357", 10, "a", "Jason Smith",
+                0, 0, 3, 0, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 1, "77212862357", 11, "b", "Jason Smitt",
+                0, 0, 1, 1, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 2, "5276", 12, "c", "Martin Jr Harry",
+                0, 0, 7, 0, 1, 1, 1);
+        constructNewContact(contactCursor, nameCursor, 3, "+65 9177-6930", 12, "c",
+                "Martin Jr Harry", 0, 0, 7, 0, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 4, "", 13, "d", "Mary Jane",
+                0, 0, 0, 0, 0, 0, 0);
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final String[] queries = new String[] {"5", "52", "5276", "654", "7", "6591776930",
+                "9177", "510", "1"};
+        final ArrayList<ArrayList<ContactNumber>> fromDatabase =
+                new ArrayList<ArrayList<ContactNumber>>();
+        for (String query : queries) {
+            fromDatabase.add(getLooseMatchesFromDb(query));
+        }
+
+        mTestHelper.rebuildSmartDialIndex(db);
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(queries[i], fromDatabase.get(i), getLooseMatchesFromDb(queries[i]));
+        }
+    }
+
+    public void testApplySmartDialChanges() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        MatrixCursor nameCursor =  constructNewNameCursor();
+        MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContact(contactCursor, nameCursor, 0, "510-527-2357", 10, "a", "Jason Smith",
+                0, 0, 3, 0, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 1, "77212862357", 11, "b", "Jason Smitt",
+                0, 0, 1, 1, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 2, "5276", 12, "c", "Martin Jr Harry",
+                0, 0, 7, 0, 1, 1, 1);
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+        nameCursor.close();
+        contactCursor.close();
+
+        mTestHelper.rebuildSmartDialIndex(db);
+        mTestHelper.rebuildSmartDialQueryCache(db);
+
+        /** Removes one contact and adds another one. */
+        db.delete(DialerDatabaseHelper.Tables.SMARTDIAL_TABLE,
+                DialerDatabaseHelper.SmartDialDbColumns.CONTACT_ID + "=11", null);
+        db.delete(DialerDatabaseHelper.Tables.PREFIX_TABLE,
+                DialerDatabaseHelper.PrefixColumns.CONTACT_ID + "=11", null);
+        nameCursor =  constructNewNameCursor();
+        contactCursor = constructNewContactCursor();
+        constructNewContact(contactCursor, nameCursor, 3, "5556", 13, "d", "Kathy Lee",
+                0, 0, 2, 0, 0, 1, 0);
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+        nameCursor.close();
+        contactCursor.close();
+
+        final HashSet<Long> changedContactIds = new HashSet<Long>();
+        changedContactIds.add(11L);
+        changedContactIds.add(13L);
+        mTestHelper.applySmartDialChanges(db, changedContactIds);
+
+        final String[] queries = new String[] {"5", "52", "55", "7", "76", "6", "0", "527",
+                "5556", "772"};
+        final ArrayList<ArrayList<ContactNumber>> applied =
+                new ArrayList<ArrayList<ContactNumber>>();
+        for (String query : queries) {
+            applied.add(getLooseMatchesFromDb(query));
+        }
+
+        mTestHelper.rebuildSmartDialIndex(db);
+        mTestHelper.rebuildSmartDialQueryCache(db);
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(queries[i], getLooseMatchesFromDb(queries[i]), applied.get(i));
+        }
+    }
+
+    public void testIndexWithChangedContacts() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContact(contactCursor, nameCursor, 0, "5552341", 10, "a", "Jason Smith",
+                0, 0, 3, 0, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 1, "5556", 11, "b", "Jason Smitt",
+                0, 0, 1, 1, 0, 1, 0);
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+        nameCursor.close();
+        contactCursor.close();
+
+        final SmartDialIndex previous = SmartDialIndex.build(db);
+        final int node = previous.findNode("52");
+        db.delete(DialerDatabaseHelper.Tables.SMARTDIAL_TABLE,
+                DialerDatabaseHelper.SmartDialDbColumns.CONTACT_ID + "=11", null);
+        db.delete(DialerDatabaseHelper.Tables.PREFIX_TABLE,
+                DialerDatabaseHelper.PrefixColumns.CONTACT_ID + "=11", null);
+
+        final HashSet<Long> changedContactIds = new HashSet<Long>();
+        changedContactIds.add(11L);
+        assertTrue(previous.canApplyChanges(changedContactIds.size()));
+        final SmartDialIndex index = previous.withChangedContacts(db, changedContactIds);
+        assertEquals(2, previous.getContactCount());
+        assertEquals(1, index.getContactCount());
+        assertEquals(2, index.getSlotCount());
+        /** Both contacts are found under "52", and one of them has been removed. */
+        assertEquals(node, index.findNode("52"));
+        assertTrue(index.hasChangesUnder(node));
+        assertFalse(previous.hasChangesUnder(node));
+
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher("52",
+                SmartDialPrefix.getMap());
+        assertEquals(2, previous.getLooseMatches("52", nameMatcher, 0, 20).size());
+        assertEquals(1, index.getLooseMatches("52", nameMatcher, 0, 20).size());
+    }
+
+    public void testContactsGeneration() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        final long generation = mTestHelper.getContactsGeneration();
+        mTestHelper.removeAllContacts(db);
+        assertEquals(generation + 1, mTestHelper.getContactsGeneration());
+    }
+
+    public void testSnapshotMatchesIndex() throws Exception {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContact(contactCursor, nameCursor, 0, "510-527-2357", 10, "a", "Jason Smith",
+                0, 0, 3, 0, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 1, "77212862357", 11, "b", "Jason Smitt",
+                0, 0, 1, 1, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 2, "5276", 12, "c", "Martin Jr Harry",
+                0, 0, 7, 0, 1, 1, 1);
+        constructNewContact(contactCursor, nameCursor, 3, "+65 9177-6930", 12, "c",
+                "Martin Jr Harry", 0, 0, 7, 0, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 4, "", 13, "d", "Mary Jane",
+                0, 0, 0, 0, 0, 0, 0);
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final SmartDialIndex index = SmartDialIndex.build(db);
+        final File file = new File(getContext().getCacheDir(), "smartdial-snapshot-test");
+        try {
+            SmartDialSnapshot.write(index, db, 42, file);
+            final SmartDialSnapshot snapshot = SmartDialSnapshot.open(file);
+            assertEquals(42, snapshot.getGeneration());
+            assertEquals(index.getEntryCount(), snapshot.getEntryCount());
+            assertEquals(index.getSlotCount(), snapshot.getSlotCount());
+
+            final long now = System.currentTimeMillis();
+            for (String query : new String[] {"5", "52", "5276", "654", "7", "6591776930",
+                    "9177", "510", "1", "627", "0"}) {
+                assertEquals(query,
+                        index.getLooseMatches(query, new SmartDialNameMatcher(query,
+                                SmartDialPrefix.getMap()), now, 20),
+                        snapshot.getLooseMatches(query, new SmartDialNameMatcher(query,
+                                SmartDialPrefix.getMap()), now, 20, null));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testDamagedSnapshotIsRejected() throws Exception {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContact(contactCursor, nameCursor, 0, "510-527-2357", 10, "a", "Jason Smith",
+                0, 0, 3, 0, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 1, "77212862357", 11, "b", "Jason Smitt",
+                0, 0, 1, 1, 0, 1, 0);
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final SmartDialIndex index = SmartDialIndex.build(db);
+        final File file = new File(getContext().getCacheDir(), "smartdial-snapshot-test");
+        try {
+            SmartDialSnapshot.write(index, db, 42, file);
+            final long length = file.length();
+            final long now = System.currentTimeMillis();
+
+            /**
+             * A truncated snapshot is either rejected when it is opened, or its lookups report
+             * the damage instead of throwing, and never return wrong results.
+             */
+            for (long truncated = length - 1; truncated >= 0; truncated -= 8) {
+                final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(truncated);
+                } finally {
+                    raf.close();
+                }
+                final SmartDialSnapshot snapshot = SmartDialSnapshot.open(file);
+                if (snapshot == null) {
+                    continue;
+                }
+                for (String query : new String[] {"5", "527", "7", "510", "0"}) {
+                    final ArrayList<ContactNumber> matches = snapshot.getLooseMatches(query,
+                            new SmartDialNameMatcher(query, SmartDialPrefix.getMap()), now, 20,
+                            null);
+                    if (matches != null) {
+                        assertEquals(query, index.getLooseMatches(query,
+                                new SmartDialNameMatcher(query, SmartDialPrefix.getMap()), now,
+                                20), matches);
+                    }
+                }
+            }
+
+            SmartDialSnapshot.write(index, db, 42, file);
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.writeInt(0);
+            } finally {
+                raf.close();
+            }
+            assertNull(SmartDialSnapshot.open(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testSessionNarrowing() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContact(contactCursor, nameCursor, 0, "5552341", 10, "a", "Jason Smith",
+                0, 0, 3, 0, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 1, "5556", 11, "b", "Jason Smitt",
+                0, 0, 1, 1, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 2, "55567", 12, "c", "Kathy Lee",
+                0, 0, 7, 0, 1, 1, 1);
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        mTestHelper.rebuildSmartDialIndex(db);
+
+        final SmartDialSearchSession session = new SmartDialSearchSession();
+        final String[] queries = new String[] {"5", "52", "527", "5276", "52", "5", "55",
+                "555", "5556", "55567", "555678", "5556", ""};
+        for (String query : queries) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap());
+            assertEquals(query, getLooseMatchesFromDb(query),
+                    mTestHelper.getLooseMatches(query, nameMatcher, session));
+        }
+    }
+
+    public void testSessionContinuesFromQueryCache() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContact(contactCursor, nameCursor, 0, "5552341", 10, "a", "Jason Smith",
+                0, 0, 3, 0, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 1, "5556", 11, "b", "Jason Smitt",
+                0, 0, 1, 1, 0, 1, 0);
+        constructNewContact(contactCursor, nameCursor, 2, "55567", 12, "c", "Kathy Lee",
+                0, 0, 7, 0, 1, 1, 1);
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final String[] queries = new String[] {"5", "52", "527", "55", "555", "5556"};
+        final ArrayList<ArrayList<ContactNumber>> expected =
+                new ArrayList<ArrayList<ContactNumber>>();
+        for (String query : queries) {
+            expected.add(getLooseMatchesFromDb(query));
+        }
+
+        mTestHelper.rebuildSmartDialIndex(db);
+        mTestHelper.rebuildSmartDialQueryCache(db);
+
+        final SmartDialSearchSession session = new SmartDialSearchSession();
+        for (int i = 0; i < queries.length; i++) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(queries[i],
+                    SmartDialPrefix.getMap());
+            assertEquals(queries[i], expected.get(i),
+                    mTestHelper.getLooseMatches(queries[i], nameMatcher, session));
+            /** Cached queries leave the session ready to narrow down the next keystroke. */
+            assertEquals(queries[i], session.getQuery());
+        }
+    }
+
+    public void testPrefixWriterBatches() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final SmartDialPrefixWriter writer = new SmartDialPrefixWriter(db,
+                DialerDatabaseHelper.Tables.PREFIX_TABLE, 100);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < 250; i++) {
+                writer.add(i % 7, String.valueOf(i));
+            }
+            /** Two full batches have been written, the last 50 rows are pending. */
+            assertEquals(200, mTestHelper.countPrefixTableRows(db));
+            writer.flush();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            writer.close();
+        }
+        assertEquals(250, writer.getRowCount());
+        assertEquals(250, mTestHelper.countPrefixTableRows(db));
+        assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT COUNT(1) FROM " +
+                DialerDatabaseHelper.Tables.PREFIX_TABLE + " WHERE " +
+                DialerDatabaseHelper.PrefixColumns.PREFIX + " = '249' AND " +
+                DialerDatabaseHelper.PrefixColumns.CONTACT_ID + " = 4", null));
+    }
+
     public void testParseInfo() {
         final String name = "Mcdonald Jamie-Cullum";
         final ArrayList<String> info = SmartDialPrefix.parseToIndexTokens(name);
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SmartDialQueryCache}.
+ */
+@SmallTest
+public class SmartDialQueryCacheTest extends TestCase {
+
+    public void testSlots() {
+        final HashSet<String> queries = new HashSet<String>();
+        for (int slot = 0; slot < SmartDialQueryCache.QUERY_COUNT; slot++) {
+            final String query = SmartDialQueryCache.getQuery(slot);
+            assertTrue(queries.add(query));
+            assertEquals(slot, SmartDialQueryCache.getSlot(query));
+        }
+        assertEquals("0", SmartDialQueryCache.getQuery(0));
+        assertEquals("00", SmartDialQueryCache.getQuery(10));
+        assertEquals("99", SmartDialQueryCache.getQuery(SmartDialQueryCache.QUERY_COUNT - 1));
+
+        assertEquals(-1, SmartDialQueryCache.getSlot(null));
+        assertEquals(-1, SmartDialQueryCache.getSlot(""));
+        assertEquals(-1, SmartDialQueryCache.getSlot("123"));
+        assertEquals(-1, SmartDialQueryCache.getSlot("*"));
+        assertEquals(-1, SmartDialQueryCache.getSlot("1#"));
+    }
+
+    public void testGet() {
+        final ArrayList<String> lookups = new ArrayList<String>();
+        final SmartDialQueryCache cache = SmartDialQueryCache.build(
+                new SmartDialQueryCache.Lookup() {
+                    @Override
+                    public ArrayList<ContactNumber> getLooseMatches(String query,
+                            SmartDialSearchSession session) {
+                        lookups.add(query);
+                        final ArrayList<ContactNumber> result = new ArrayList<ContactNumber>();
+                        result.add(new ContactNumber(0, 0, query, query, query, 0));
+                        return result;
+                    }
+                }, 1000);
+        assertEquals(SmartDialQueryCache.QUERY_COUNT, lookups.size());
+
+        assertEquals("42", cache.get("42", 999).get(0).displayName);
+        assertEquals("4", cache.get("4", 0).get(0).displayName);
+        assertNull(cache.get("421", 0));
+        /** The ranking may have changed once the cache expires. */
+        assertNull(cache.get("42", 1000));
+
+        /** Callers get their own copy of the results. */
+        cache.get("7", 0).clear();
+        assertEquals(1, cache.get("7", 0).size());
+    }
+}
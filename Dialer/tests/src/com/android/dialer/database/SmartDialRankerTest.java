@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialSortingOrder;
+import com.android.dialer.database.SmartDialIndex.Entry;
+import com.android.dialer.database.SmartDialIndex.RankComparator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SmartDialRanker}.
+ */
+@SmallTest
+public class SmartDialRankerTest extends TestCase {
+
+    private static final long NOW = 1000L * 24 * 60 * 60 * 1000;
+
+    public void testOrdersLikeSortOrder() {
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        entries.add(entry(1, 10, "Zed", false, false, 0, 0, false));
+        entries.add(entry(2, 20, "Amy", false, false, NOW, 1, false));
+        entries.add(entry(3, 30, "Bob", true, false, 0, 0, false));
+        entries.add(entry(4, 40, "Cal", false, true, 0, 0, false));
+        entries.add(entry(5, 50, "Dan", false, false, NOW, 5, false));
+        entries.add(entry(6, 60, "Eve", false, false,
+                NOW - SmartDialSortingOrder.LAST_TIME_USED_CURRENT_MS, 9, false));
+
+        final SmartDialRanker ranker = new SmartDialRanker(20, NOW);
+        for (Entry entry : entries) {
+            ranker.offer(entry);
+        }
+        assertIds(ranker.getResults(), 3, 4, 5, 2, 6, 1);
+    }
+
+    public void testKeepsBestRowOfEachContact() {
+        final SmartDialRanker ranker = new SmartDialRanker(20, NOW);
+        ranker.offer(entry(1, 10, "Amy", false, false, 0, 0, false));
+        ranker.offer(entry(2, 20, "Bob", false, false, 0, 0, false));
+        /** A primary number of the same contact ranks before the first one. */
+        ranker.offer(entry(1, 11, "Amy", false, false, 0, 0, true));
+        ranker.offer(entry(1, 12, "Amy", false, false, 0, 0, false));
+
+        final ArrayList<ContactNumber> results = ranker.getResults();
+        assertIds(results, 1, 2);
+        assertEquals(11, results.get(0).dataId);
+    }
+
+    public void testMaxEntries() {
+        final SmartDialRanker ranker = new SmartDialRanker(2, NOW);
+        ranker.offer(entry(3, 30, "Cal", false, false, 0, 0, false));
+        ranker.offer(entry(1, 10, "Amy", false, false, 0, 0, false));
+        assertFalse(ranker.isCompetitive(entry(4, 40, "Dan", false, false, 0, 0, false)));
+        assertTrue(ranker.isCompetitive(entry(2, 20, "Bob", false, false, 0, 0, false)));
+        ranker.offer(entry(2, 20, "Bob", false, false, 0, 0, false));
+        ranker.offer(entry(4, 40, "Dan", false, false, 0, 0, false));
+        assertIds(ranker.getResults(), 1, 2);
+        /** A row ranking the same as the worst kept row was offered after it. */
+        assertFalse(ranker.isCompetitive(entry(2, 21, "Bob", false, false, 0, 0, false)));
+        assertFalse(ranker.isCompetitive(entry(5, 50, "Bob", false, false, 0, 0, false)));
+
+        final SmartDialRanker empty = new SmartDialRanker(0, NOW);
+        empty.offer(entry(1, 10, "Amy", false, false, 0, 0, false));
+        assertEquals(0, empty.getResults().size());
+    }
+
+    public void testMayBeCompetitive() {
+        final SmartDialRanker ranker = new SmartDialRanker(1, NOW);
+        assertTrue(ranker.mayBeCompetitive(false, false, 0, 0, false));
+        ranker.offer(entry(1, 10, "Bob", false, false, NOW, 2, false));
+        /** Ranks after the kept row on usage alone. */
+        assertFalse(ranker.mayBeCompetitive(false, false, NOW, 1, true));
+        assertFalse(ranker.mayBeCompetitive(false, false, 0, 5, true));
+        /** Same usage, so the name decides. */
+        assertTrue(ranker.mayBeCompetitive(false, false, NOW, 2, true));
+        assertTrue(ranker.mayBeCompetitive(true, false, 0, 0, false));
+
+        final SmartDialRanker empty = new SmartDialRanker(0, NOW);
+        assertFalse(empty.mayBeCompetitive(true, true, NOW, 9, true));
+    }
+
+    /**
+     * Compares the ranker with sorting every row and keeping the first row of each contact, which
+     * is what the ORDER BY query used to do.
+     */
+    public void testMatchesFullSort() {
+        final Random random = new Random(7);
+        final String[] names = {null, "Amy", "Bob", "Cal", "Dan", "Eve"};
+        for (int round = 0; round < 500; round++) {
+            final ArrayList<Entry> entries = new ArrayList<Entry>();
+            final int rows = random.nextInt(60);
+            for (int i = 0; i < rows; i++) {
+                final long id = random.nextInt(25);
+                final long lastTimeUsed = random.nextBoolean() ? 0 :
+                        NOW - random.nextInt(40) * 24L * 60 * 60 * 1000;
+                entries.add(entry(id, i, names[(int) (id % names.length)],
+                        random.nextInt(6) == 0, random.nextInt(8) == 0, lastTimeUsed,
+                        random.nextInt(3), random.nextBoolean()));
+            }
+            final int maxEntries = random.nextInt(12);
+
+            final SmartDialRanker ranker = new SmartDialRanker(maxEntries, NOW);
+            /** Skips the rows that are not competitive, like the lookups do. */
+            final SmartDialRanker filteringRanker = new SmartDialRanker(maxEntries, NOW);
+            /** Also skips rows on their usage fields first, like the SQL fallback does. */
+            final SmartDialRanker usageRanker = new SmartDialRanker(maxEntries, NOW);
+            for (Entry entry : entries) {
+                ranker.offer(entry);
+                if (filteringRanker.isCompetitive(entry)) {
+                    filteringRanker.offer(entry);
+                }
+                if (usageRanker.mayBeCompetitive(entry.starred, entry.superPrimary,
+                        entry.lastTimeUsed, entry.timesUsed, entry.inVisibleGroup)
+                        && usageRanker.isCompetitive(entry)) {
+                    usageRanker.offer(entry);
+                }
+            }
+            assertEquals(sortAndSelect(entries, maxEntries), ranker.getResults());
+            assertEquals(sortAndSelect(entries, maxEntries), filteringRanker.getResults());
+            assertEquals(sortAndSelect(entries, maxEntries), usageRanker.getResults());
+        }
+    }
+
+    private static ArrayList<ContactNumber> sortAndSelect(ArrayList<Entry> entries,
+            int maxEntries) {
+        final ArrayList<Entry> sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, new RankComparator(NOW));
+        final ArrayList<ContactNumber> result = new ArrayList<ContactNumber>();
+        final HashSet<Long> seen = new HashSet<Long>();
+        for (Entry entry : sorted) {
+            if (result.size() >= maxEntries) {
+                break;
+            }
+            if (seen.add(entry.contact.id)) {
+                result.add(entry.contact);
+            }
+        }
+        return result;
+    }
+
+    private static Entry entry(long id, long dataId, String name, boolean starred,
+            boolean superPrimary, long lastTimeUsed, int timesUsed, boolean primary) {
+        final ContactNumber contact = new ContactNumber(id, dataId, name, "555" + dataId,
+                "lookup" + id, 0);
+        return new Entry(0, contact, starred, superPrimary, lastTimeUsed, timesUsed, true,
+                primary, null, null, 0, 0);
+    }
+
+    private static void assertIds(ArrayList<ContactNumber> results, long... ids) {
+        assertEquals(ids.length, results.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], results.get(i).id);
+        }
+    }
+}
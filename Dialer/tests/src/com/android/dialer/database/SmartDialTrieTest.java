@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SmartDialTrie}.
+ */
+@SmallTest
+public class SmartDialTrieTest extends TestCase {
+
+    public void testPutAndCollect() {
+        final SmartDialTrie trie = new SmartDialTrie();
+        assertTrue(trie.put("5276", 0));
+        assertTrue(trie.put("527", 1));
+        assertTrue(trie.put("76484", 1));
+        assertTrue(trie.put("5555", 2));
+
+        assertCollected(trie, "5", 0, 1, 2);
+        assertCollected(trie, "52", 0, 1);
+        assertCollected(trie, "527", 0, 1);
+        assertCollected(trie, "5276", 0);
+        assertCollected(trie, "7648", 1);
+        assertCollected(trie, "55555");
+        assertCollected(trie, "1");
+    }
+
+    public void testInvalidKeys() {
+        final SmartDialTrie trie = new SmartDialTrie();
+        assertFalse(trie.put("", 0));
+        assertFalse(trie.put("12a", 0));
+        assertFalse(trie.put("+1", 0));
+        assertEquals(1, trie.getNodeCount());
+        assertEquals(0, trie.getValueCount());
+        assertEquals(-1, trie.findNode("1"));
+    }
+
+    public void testDuplicateValues() {
+        final SmartDialTrie trie = new SmartDialTrie();
+        trie.put("123", 4);
+        trie.put("123", 4);
+        assertEquals(1, trie.getValueCount());
+        trie.put("123", 5);
+        assertEquals(2, trie.getValueCount());
+        assertCollected(trie, "12", 4, 5);
+    }
+
+    public void testFindNodeFromNode() {
+        final SmartDialTrie trie = new SmartDialTrie();
+        trie.put("5556", 0);
+        trie.put("5557", 1);
+        final int node = trie.findNode("555");
+        assertTrue(node > 0);
+        assertEquals(trie.findNode("5556"), trie.findNode(node, "5556", 3));
+        assertEquals(-1, trie.findNode(node, "5558", 3));
+    }
+
+    public void testCopy() {
+        final SmartDialTrie trie = new SmartDialTrie();
+        trie.put("5276", 0);
+        trie.put("5555", 1);
+        final int node = trie.findNode("52");
+
+        final SmartDialTrie copy = trie.copy();
+        copy.put("5270", 2);
+        copy.put("1", 3);
+        assertEquals(node, copy.findNode("52"));
+        assertCollected(copy, "52", 0, 2);
+        assertCollected(copy, "1", 3);
+        /** The original trie is left untouched. */
+        assertCollected(trie, "52", 0);
+        assertCollected(trie, "1");
+    }
+
+    public void testGrowth() {
+        final SmartDialTrie trie = new SmartDialTrie();
+        for (int i = 0; i < 5000; i++) {
+            trie.put(String.valueOf(100000 + i), i);
+        }
+        final BitSet out = new BitSet();
+        assertTrue(trie.collect("10", out));
+        assertEquals(5000, out.cardinality());
+        out.clear();
+        assertTrue(trie.collect("104999", out));
+        assertEquals(1, out.cardinality());
+        assertTrue(out.get(4999));
+    }
+
+    private void assertCollected(SmartDialTrie trie, String prefix, int... expected) {
+        final BitSet out = new BitSet();
+        trie.collect(prefix, out);
+        assertEquals(expected.length, out.cardinality());
+        for (int value : expected) {
+            assertTrue(out.get(value));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SmartDialUpdater}.
+ */
+@SmallTest
+public class SmartDialUpdaterTest extends TestCase {
+
+    public void testSingleChange() {
+        assertEquals(1000 + SmartDialUpdater.COALESCE_DELAY_MS,
+                SmartDialUpdater.getUpdateTimeMillis(1000, 1000));
+    }
+
+    public void testBurstOfChanges() {
+        final long first = 1000;
+        long update = SmartDialUpdater.getUpdateTimeMillis(first, first);
+        /** Every change arriving before the update postpones it... */
+        for (long now = first + 100; now < update; now += 100) {
+            final long next = SmartDialUpdater.getUpdateTimeMillis(first, now);
+            assertTrue(next >= update);
+            update = next;
+        }
+        /** ...up to the maximum delay after the first change. */
+        assertEquals(first + SmartDialUpdater.MAX_COALESCE_DELAY_MS, update);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SmartDialDebouncer}.
+ */
+@SmallTest
+public class SmartDialDebouncerTest extends TestCase {
+
+    public void testNoDelayOutsideOfBursts() {
+        final SmartDialDebouncer debouncer = new SmartDialDebouncer();
+        assertEquals(0, debouncer.getDelayMillis());
+        debouncer.onQueryChanged("6", 1000);
+        assertEquals(0, debouncer.getDelayMillis());
+        /** Slow typing. */
+        debouncer.onQueryChanged("65", 1000 + SmartDialDebouncer.MAX_TYPING_INTERVAL_MS + 1);
+        assertEquals(0, debouncer.getDelayMillis());
+    }
+
+    public void testDelayFollowsTypingSpeed() {
+        final SmartDialDebouncer debouncer = new SmartDialDebouncer();
+        long time = 1000;
+        debouncer.onQueryChanged("6", time);
+        debouncer.onQueryChanged("65", time += 80);
+        assertEquals(100, debouncer.getDelayMillis());
+        for (String query : new String[] {"650", "6502", "65025", "650253"}) {
+            debouncer.onQueryChanged(query, time += 80);
+        }
+        assertEquals(100, debouncer.getDelayMillis());
+
+        /** Slower typing lengthens the delay, up to its maximum. */
+        debouncer.onQueryChanged("6502530", time += 300);
+        final long delay = debouncer.getDelayMillis();
+        assertTrue(delay > 100);
+        assertTrue(delay <= SmartDialDebouncer.MAX_DELAY_MS);
+
+        /** Reloading the same query is not a keystroke. */
+        debouncer.onQueryChanged("6502530", time += 5);
+        assertEquals(delay, debouncer.getDelayMillis());
+
+        /** A pause ends the burst. */
+        debouncer.onQueryChanged("65025300", time += 1000);
+        assertEquals(0, debouncer.getDelayMillis());
+    }
+
+    public void testAwait() {
+        final FakeClock clock = new FakeClock(100);
+        final SmartDialDebouncer debouncer = new SmartDialDebouncer(clock);
+        debouncer.onQueryChanged("6", 0);
+        debouncer.onQueryChanged("65", 100);
+        final long delay = debouncer.getDelayMillis();
+        assertTrue(delay > 0);
+
+        debouncer.await(100, new CancellationSignal());
+        assertEquals(100 + delay, clock.uptimeMillis());
+
+        /** The delay has already elapsed. */
+        clock.mWaits = 0;
+        debouncer.await(100, new CancellationSignal());
+        assertEquals(0, clock.mWaits);
+        assertEquals(100 + delay, clock.uptimeMillis());
+    }
+
+    public void testAwaitCanceled() {
+        final FakeClock clock = new FakeClock(SmartDialDebouncer.MAX_TYPING_INTERVAL_MS);
+        final SmartDialDebouncer debouncer = new SmartDialDebouncer(clock);
+        debouncer.onQueryChanged("6", 0);
+        debouncer.onQueryChanged("65", SmartDialDebouncer.MAX_TYPING_INTERVAL_MS);
+        final long keystroke = clock.uptimeMillis();
+
+        final CancellationSignal canceled = new CancellationSignal();
+        canceled.cancel();
+        try {
+            debouncer.await(keystroke, canceled);
+            fail("Canceled wait should throw");
+        } catch (OperationCanceledException expected) {
+        }
+        assertEquals(0, clock.mWaits);
+
+        /** The lookup is canceled while waiting. */
+        final CancellationSignal signal = new CancellationSignal();
+        clock.cancelAt(keystroke + 10, signal);
+        try {
+            debouncer.await(keystroke, signal);
+            fail("Canceled wait should throw");
+        } catch (OperationCanceledException expected) {
+        }
+        assertEquals(keystroke + 10, clock.uptimeMillis());
+    }
+
+    /**
+     * Clock whose waits complete immediately, either by advancing time to their end or by
+     * canceling a lookup at a given time.
+     */
+    private static class FakeClock implements SmartDialDebouncer.Clock {
+        private long mNow;
+        private int mWaits;
+        private long mCancelAt = -1;
+        private CancellationSignal mSignal;
+
+        public FakeClock(long now) {
+            mNow = now;
+        }
+
+        public void cancelAt(long time, CancellationSignal signal) {
+            mCancelAt = time;
+            mSignal = signal;
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public void waitOn(Object lock, long millis) {
+            mWaits++;
+            if (mSignal != null && mCancelAt <= mNow + millis) {
+                mNow = Math.max(mNow, mCancelAt);
+                mSignal.cancel();
+                mSignal = null;
+            } else {
+                mNow += millis;
+            }
+        }
+    }
+}
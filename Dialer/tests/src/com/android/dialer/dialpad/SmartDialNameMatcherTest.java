@@ -23,6 +23,7 @@ import android.test.AndroidTestCase;
 
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
+import com.android.dialer.dialpad.SmartDialPrefix.PhoneNumberTokens;
 
 import java.text.Normalizer;
 import java.util.ArrayList;
@@ -245,6 +246,15 @@ public class SmartDialNameMatcherTest extends TestCase {
             assertEquals("start", matchStart, pos.start);
             assertEquals("end", matchEnd, pos.end);
         }
+
+        // The number as stored in the smartdial table should match the same way
+        final PhoneNumberTokens tokens = SmartDialPrefix.parsePhoneNumber(number);
+        final int nanpCodeOffset = matchNanp
+                ? SmartDialPrefix.getNormalizedOffset(number, tokens.nanpCodeOffset) : 0;
+        assertEquals(expectedMatches, matcher.matchesNormalizedNumber(
+                SmartDialNameMatcher.normalizeNumber(number, SmartDialPrefix.getMap()), query,
+                SmartDialPrefix.getNormalizedOffset(number, tokens.countryCodeOffset),
+                nanpCodeOffset));
     }
 
     private void checkMatches(String displayName, String query, boolean expectedMatches,
@@ -269,6 +279,20 @@ public class SmartDialNameMatcherTest extends TestCase {
                 assertEquals("end", expectedMatchPositions[i * 2 + 1], matchPositions.get(i).end);
             }
         }
+
+        // The allocation-free mode must agree with matchesCombination
+        assertEquals("matchesInPlace", matches, matcher.matchesInPlace(displayName));
+        assertEquals("count", matches ? matchPositions.size() : 0,
+                matcher.getMatchPositionCount());
+        final int[] positions = matcher.getMatchPositionArray();
+        for (int i = 0; i < matcher.getMatchPositionCount(); i++) {
+            assertEquals("start", matchPositions.get(i).start, positions[i * 2]);
+            assertEquals("end", matchPositions.get(i).end, positions[i * 2 + 1]);
+        }
+        assertEquals("matchesNormalized", matches, matcher.matchesNormalized(
+                SmartDialNameMatcher.normalizeName(displayName, SmartDialPrefix.getMap())));
+        assertEquals("count", matches ? matchPositions.size() : 0,
+                matcher.getMatchPositionCount());
     }
 
 }
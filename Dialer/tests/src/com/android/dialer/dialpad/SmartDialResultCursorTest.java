@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SmartDialResultCursor}.
+ */
+@SmallTest
+public class SmartDialResultCursorTest extends TestCase {
+
+    /**
+     * Checks that the cursor reads the same as the MatrixCursor the loader used to build.
+     */
+    public void testMatchesMatrixCursor() {
+        final ArrayList<ContactNumber> results = new ArrayList<ContactNumber>();
+        results.add(new ContactNumber(1, 10, "Jason Smith", "650-555-1234", "lookup1", 100));
+        results.add(new ContactNumber(2, 20, null, "5551234", "lookup2", 0));
+
+        final Cursor expected = toMatrixCursor(results);
+        final Cursor actual = new SmartDialResultCursor(results);
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getColumnCount(), actual.getColumnCount());
+        while (expected.moveToNext()) {
+            assertTrue(actual.moveToNext());
+            for (int column = 0; column < expected.getColumnCount(); column++) {
+                assertEquals(expected.isNull(column), actual.isNull(column));
+                assertEquals(expected.getString(column), actual.getString(column));
+            }
+            assertEquals(expected.getLong(PhoneQuery.PHONE_ID),
+                    actual.getLong(PhoneQuery.PHONE_ID));
+            assertEquals(expected.getLong(PhoneQuery.CONTACT_ID),
+                    actual.getLong(PhoneQuery.CONTACT_ID));
+            assertEquals(expected.getLong(PhoneQuery.PHOTO_ID),
+                    actual.getLong(PhoneQuery.PHOTO_ID));
+            assertEquals(expected.getInt(PhoneQuery.CONTACT_ID),
+                    actual.getInt(PhoneQuery.CONTACT_ID));
+        }
+        assertFalse(actual.moveToNext());
+        expected.close();
+        actual.close();
+    }
+
+    public void testPositionAndTypes() {
+        final ArrayList<ContactNumber> results = new ArrayList<ContactNumber>();
+        results.add(new ContactNumber(1, 10, "Jason", "5551234", "lookup", 0));
+
+        final SmartDialResultCursor cursor = new SmartDialResultCursor(results);
+        try {
+            cursor.getString(PhoneQuery.DISPLAY_NAME);
+            fail("Reading before the first row should throw");
+        } catch (CursorIndexOutOfBoundsException expected) {
+        }
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Jason", cursor.getString(PhoneQuery.DISPLAY_NAME));
+        assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(PhoneQuery.PHONE_ID));
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(PhoneQuery.DISPLAY_NAME));
+        assertEquals(Cursor.FIELD_TYPE_NULL, cursor.getType(PhoneQuery.PHONE_LABEL));
+        cursor.close();
+    }
+
+    public void testGetLongOfText() {
+        final ArrayList<ContactNumber> results = new ArrayList<ContactNumber>();
+        results.add(new ContactNumber(1, 10, "Jason", "650-555-1234", "-12lookup", 0));
+        results.add(new ContactNumber(2, 20, "99999999999999999999", "+1 650", "lookup", 0));
+
+        final SmartDialResultCursor cursor = new SmartDialResultCursor(results);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(650, cursor.getLong(PhoneQuery.PHONE_NUMBER));
+        assertEquals(-12, cursor.getLong(PhoneQuery.LOOKUP_KEY));
+        assertEquals(0, cursor.getLong(PhoneQuery.DISPLAY_NAME));
+        assertEquals(0, cursor.getLong(PhoneQuery.PHONE_LABEL));
+        assertTrue(cursor.moveToNext());
+        assertEquals(1, cursor.getLong(PhoneQuery.PHONE_NUMBER));
+        assertEquals(Long.MAX_VALUE, cursor.getLong(PhoneQuery.DISPLAY_NAME));
+        cursor.close();
+    }
+
+    private static Cursor toMatrixCursor(ArrayList<ContactNumber> results) {
+        final MatrixCursor cursor = new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
+        final Object[] row = new Object[PhoneQuery.PROJECTION_PRIMARY.length];
+        for (ContactNumber contact : results) {
+            row[PhoneQuery.PHONE_ID] = contact.dataId;
+            row[PhoneQuery.PHONE_NUMBER] = contact.phoneNumber;
+            row[PhoneQuery.CONTACT_ID] = contact.id;
+            row[PhoneQuery.LOOKUP_KEY] = contact.lookupKey;
+            row[PhoneQuery.PHOTO_ID] = contact.photoId;
+            row[PhoneQuery.DISPLAY_NAME] = contact.displayName;
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
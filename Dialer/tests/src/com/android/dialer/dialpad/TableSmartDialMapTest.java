@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class TableSmartDialMapTest extends TestCase {
+    private final SmartDialMap mLatinMap = new LatinSmartDialMap();
+    /** The shared instance used by the matcher and the prefix generator. */
+    private final SmartDialMap mTableMap = SmartDialNameMatcher.LATIN_TABLE_SMART_DIAL_MAP;
+
+    public void testIdenticalToSourceMap() {
+        for (int i = 0; i <= Character.MAX_VALUE; i++) {
+            final char ch = (char) i;
+            assertEquals("normalize " + i, mLatinMap.normalizeCharacter(ch),
+                    mTableMap.normalizeCharacter(ch));
+            assertEquals("valid " + i, mLatinMap.isValidDialpadCharacter(ch),
+                    mTableMap.isValidDialpadCharacter(ch));
+            assertEquals("alphabetic " + i, mLatinMap.isValidDialpadAlphabeticChar(ch),
+                    mTableMap.isValidDialpadAlphabeticChar(ch));
+            assertEquals("numeric " + i, mLatinMap.isValidDialpadNumericChar(ch),
+                    mTableMap.isValidDialpadNumericChar(ch));
+            assertEquals("index " + i, mLatinMap.getDialpadIndex(ch),
+                    mTableMap.getDialpadIndex(ch));
+            assertEquals("numeric char " + i, mLatinMap.getDialpadNumericCharacter(ch),
+                    mTableMap.getDialpadNumericCharacter(ch));
+        }
+    }
+
+    public void testSparseCharacters() {
+        /** Characters above the dense range that the source map does not leave untouched. */
+        final SmartDialMap source = new LatinSmartDialMap() {
+            @Override
+            public char normalizeCharacter(char ch) {
+                if (ch == 'ẞ') {
+                    return 's';
+                } else if (ch == 'ａ') {
+                    return 'a';
+                }
+                return super.normalizeCharacter(ch);
+            }
+        };
+        final SmartDialMap map = new TableSmartDialMap(source);
+        assertEquals('s', map.normalizeCharacter('ẞ'));
+        assertEquals('a', map.normalizeCharacter('ａ'));
+        assertEquals('ｂ', map.normalizeCharacter('ｂ'));
+        assertEquals('a', map.normalizeCharacter('À'));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.util;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.dialer.util.ExpirableCache.CachedValue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compares the throughput of {@link ExpirableCache} and {@link StripedExpirableCache} when
+ * several threads read and write them at the same time, as the call log does while it binds
+ * views and looks up contacts in the background.
+ * <p>
+ * The timings are only logged, the assertions only check that the caches stay consistent.
+ */
+@LargeTest
+public class ExpirableCacheContentionTest extends AndroidTestCase {
+    private static final String TAG = "ExpirableCacheContentionTest";
+
+    private static final int MAX_SIZE = 100;
+    /** How many entries a {@link StripedExpirableCache} may hold above its maximum size. */
+    private static final int SIZE_SLACK = 8;
+    private static final int KEY_COUNT = 200;
+    private static final int READER_COUNT = 3;
+    private static final int WRITER_COUNT = 2;
+    private static final int OPERATIONS_PER_THREAD = 200000;
+    /** One in this many write operations expires the whole cache. */
+    private static final int EXPIRE_INTERVAL = 10000;
+
+    /** The operations of the benchmark, implemented by both caches. */
+    private interface Cache {
+        CachedValue<Integer> getCachedValue(String key);
+        void put(String key, Integer value);
+        void expireAll();
+        int size();
+    }
+
+    private String[] mKeys;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKeys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mKeys[i] = "+1650555" + (1000 + i);
+        }
+    }
+
+    public void testExpirableCache() throws Exception {
+        final LruCache<String, CachedValue<Integer>> lruCache =
+                new LruCache<String, CachedValue<Integer>>(MAX_SIZE);
+        final ExpirableCache<String, Integer> cache = ExpirableCache.create(lruCache);
+        final long millis = run(new Cache() {
+            @Override
+            public CachedValue<Integer> getCachedValue(String key) {
+                return cache.getCachedValue(key);
+            }
+
+            @Override
+            public void put(String key, Integer value) {
+                cache.put(key, value);
+            }
+
+            @Override
+            public void expireAll() {
+                cache.expireAll();
+            }
+
+            @Override
+            public int size() {
+                return lruCache.size();
+            }
+        });
+        Log.i(TAG, "ExpirableCache: " + millis + " ms");
+    }
+
+    public void testStripedExpirableCache() throws Exception {
+        final StripedExpirableCache<String, Integer> cache =
+                StripedExpirableCache.create(MAX_SIZE);
+        final long millis = run(new Cache() {
+            @Override
+            public CachedValue<Integer> getCachedValue(String key) {
+                return cache.getCachedValue(key);
+            }
+
+            @Override
+            public void put(String key, Integer value) {
+                cache.put(key, value);
+            }
+
+            @Override
+            public void expireAll() {
+                cache.expireAll();
+            }
+
+            @Override
+            public int size() {
+                return cache.size();
+            }
+        });
+        Log.i(TAG, "StripedExpirableCache: " + millis + " ms");
+    }
+
+    /**
+     * Runs the readers and writers on the given cache until they are all done.
+     *
+     * @return How long all the threads took, in milliseconds.
+     */
+    private long run(final Cache cache) throws Exception {
+        final int threadCount = READER_COUNT + WRITER_COUNT;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        for (int i = 0; i < threadCount; i++) {
+            final boolean writer = i < WRITER_COUNT;
+            final int seed = i;
+            new Thread(TAG + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < OPERATIONS_PER_THREAD; j++) {
+                            // Stride through the keys so that threads do not go in lockstep.
+                            final String key = mKeys[(seed + j * (seed + 7)) % KEY_COUNT];
+                            if (!writer) {
+                                final CachedValue<Integer> value = cache.getCachedValue(key);
+                                if (value != null && value.getValue() == null) {
+                                    throw new AssertionError("Null value for " + key);
+                                }
+                            } else if (j % EXPIRE_INTERVAL == 0) {
+                                cache.expireAll();
+                            } else {
+                                cache.put(key, j);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        final long startMillis = SystemClock.elapsedRealtime();
+        start.countDown();
+        done.await();
+        final long millis = SystemClock.elapsedRealtime() - startMillis;
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        // Once the writers are done, eviction has brought every segment back to its share of the
+        // maximum size, which is rounded up.
+        assertTrue("Too many entries: " + cache.size(), cache.size() <= MAX_SIZE + SIZE_SLACK);
+        return millis;
+    }
+}
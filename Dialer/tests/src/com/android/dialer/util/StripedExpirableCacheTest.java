@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Unit tests for {@link StripedExpirableCache}.
+ */
+@SmallTest
+public class StripedExpirableCacheTest extends AndroidTestCase {
+    /** The object under test. */
+    private StripedExpirableCache<String, Integer> mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = StripedExpirableCache.create(20);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache = null;
+        super.tearDown();
+    }
+
+    public void testPut() {
+        mCache.put("a", 1);
+        mCache.put("b", 2);
+        assertEquals(1, mCache.getPossiblyExpired("a").intValue());
+        assertEquals(2, mCache.getPossiblyExpired("b").intValue());
+        mCache.put("a", 3);
+        assertEquals(3, mCache.getPossiblyExpired("a").intValue());
+        assertEquals(2, mCache.size());
+    }
+
+    public void testGet_NotExisting() {
+        assertNull(mCache.getPossiblyExpired("a"));
+        mCache.put("b", 1);
+        assertNull(mCache.getPossiblyExpired("a"));
+    }
+
+    public void testGet_Expired() {
+        mCache.put("a", 1);
+        assertEquals(1, mCache.getPossiblyExpired("a").intValue());
+        mCache.expireAll();
+        assertEquals(1, mCache.getPossiblyExpired("a").intValue());
+    }
+
+    public void testGetNotExpired_NotExisting() {
+        assertNull(mCache.get("a"));
+        mCache.put("b", 1);
+        assertNull(mCache.get("a"));
+    }
+
+    public void testGetNotExpired_Expired() {
+        mCache.put("a", 1);
+        assertEquals(1, mCache.get("a").intValue());
+        mCache.expireAll();
+        assertNull(mCache.get("a"));
+    }
+
+    public void testGetCachedValue_NotExisting() {
+        assertNull(mCache.getCachedValue("a"));
+        mCache.put("b", 1);
+        assertNull(mCache.getCachedValue("a"));
+    }
+
+    public void testGetCachedValue_Expired() {
+        mCache.put("a", 1);
+        assertFalse("Should not be expired", mCache.getCachedValue("a").isExpired());
+        mCache.expireAll();
+        assertTrue("Should be expired", mCache.getCachedValue("a").isExpired());
+    }
+
+    public void testGetChangedValue_PutAfterExpired() {
+        mCache.put("a", 1);
+        mCache.expireAll();
+        mCache.put("a", 1);
+        assertFalse("Should not be expired", mCache.getCachedValue("a").isExpired());
+    }
+
+    public void testEviction_MaxSize() {
+        for (int i = 0; i < 100; i++) {
+            mCache.put("key" + i, i);
+        }
+        // Each segment holds at most its share of the maximum size, rounded up.
+        assertTrue("Too many entries: " + mCache.size(), mCache.size() <= 24);
+        assertEquals(99, mCache.getPossiblyExpired("key99").intValue());
+    }
+
+    public void testEviction_LeastRecentlyUsed() {
+        // A single segment, so that eviction is exactly LRU.
+        mCache = StripedExpirableCache.create(3, 1);
+        mCache.put("a", 1);
+        mCache.put("b", 2);
+        mCache.put("c", 3);
+        // Accessing "a" makes "b" the least recently used.
+        assertEquals(1, mCache.get("a").intValue());
+        mCache.put("d", 4);
+        assertEquals(3, mCache.size());
+        assertNull(mCache.getCachedValue("b"));
+        assertEquals(1, mCache.get("a").intValue());
+        assertEquals(3, mCache.get("c").intValue());
+        assertEquals(4, mCache.get("d").intValue());
+    }
+
+    public void testEviction_ReplaceDoesNotEvict() {
+        mCache = StripedExpirableCache.create(2, 1);
+        mCache.put("a", 1);
+        mCache.put("b", 2);
+        mCache.put("a", 3);
+        assertEquals(2, mCache.size());
+        assertEquals(3, mCache.get("a").intValue());
+        assertEquals(2, mCache.get("b").intValue());
+    }
+
+    public void testCreate_InvalidSegmentCount() {
+        try {
+            StripedExpirableCache.create(20, 3);
+            fail("Should reject a number of segments that is not a power of two");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            StripedExpirableCache.create(2, 4);
+            fail("Should reject more segments than entries");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testCreate_SmallCache() {
+        mCache = StripedExpirableCache.create(1);
+        mCache.put("a", 1);
+        mCache.put("b", 2);
+        assertEquals(1, mCache.size());
+        assertEquals(2, mCache.get("b").intValue());
+    }
+}